@@ -0,0 +1,29 @@
+package edu.semo.casim.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. With no arguments every benchmark is run with
+ * the gc profiler, which adds the allocation rate (gc.alloc.rate.norm is bytes
+ * per generation) to the report. Any arguments are passed to JMH as they are,
+ * for example: java -jar benchmarks.jar StepBenchmark -p size=1024 -prof gc
+ */
+public class Benchmarks
+{
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        Options opt = new OptionsBuilder()
+            .include("edu\\.semo\\.casim\\.bench\\..*")
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(opt).run();
+    }
+}
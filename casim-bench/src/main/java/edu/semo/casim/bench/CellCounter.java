@@ -0,0 +1,24 @@
+package edu.semo.casim.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the cells a benchmark processed. JMH reports it next to the primary
+ * result as cells per second, so ns/cell is 1e9 divided by the "cells" row.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class CellCounter
+{
+    public long cells;
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        cells = 0;
+    }
+}
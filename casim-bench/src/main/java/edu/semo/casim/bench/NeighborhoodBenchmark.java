@@ -0,0 +1,126 @@
+package edu.semo.casim.bench;
+
+import edu.semo.casim.CAGrid;
+import edu.semo.casim.Tile;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-grid sweeps of the cell access and neighborhood counting functions,
+ * on toroidal and bounded grids. One operation visits every cell once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class NeighborhoodBenchmark
+{
+    @Param({"256", "1024", "4096", "8192"})
+    public int size;
+
+    @Param({"1", "3", "5"})
+    public int radius;
+
+    @Param({"true", "false"})
+    public boolean toroidal;
+
+    private Grid ca;
+    private int [] count;
+    private int [] rowCount;
+
+    /**
+     * A grid with no rules, so toroidal and bounded grids can be compared.
+     */
+    private static class Grid extends CAGrid
+    {
+        Grid(int width, int height, boolean toroidal)
+        {
+            super(width, height, 7, toroidal);
+        }
+
+        @Override
+        protected void step(Tile tile)
+        {
+        }
+
+        @Override
+        public void randomize(int percentInfected)
+        {
+            randomize();
+        }
+    }
+
+    @Setup
+    public void create()
+    {
+        ca = new Grid(size, size, toroidal);
+        ca.setSeed(42);
+        ca.randomize();
+        count = new int[ca.getNumStates()];
+        rowCount = new int[ca.getNumStates() * size];
+    }
+
+    @Benchmark
+    public long getCell(CellCounter counter)
+    {
+        long sum = 0;
+        for(int y=0; y<size; y++) {
+            for(int x=0; x<size; x++) {
+                sum += ca.getCell(x, y);
+            }
+        }
+        counter.cells += (long) size * size;
+        return sum;
+    }
+
+    @Benchmark
+    public long countNeighborhoodAllocating(CellCounter counter)
+    {
+        long sum = 0;
+        for(int y=0; y<size; y++) {
+            for(int x=0; x<size; x++) {
+                sum += ca.countNeighborhood(x, y, radius)[0];
+            }
+        }
+        counter.cells += (long) size * size;
+        return sum;
+    }
+
+    @Benchmark
+    public long countNeighborhood(CellCounter counter)
+    {
+        long sum = 0;
+        for(int y=0; y<size; y++) {
+            for(int x=0; x<size; x++) {
+                ca.countNeighborhood(x, y, radius, count);
+                sum += count[0];
+            }
+        }
+        counter.cells += (long) size * size;
+        return sum;
+    }
+
+    @Benchmark
+    public long countNeighborhoodRow(CellCounter counter)
+    {
+        long sum = 0;
+        for(int y=0; y<size; y++) {
+            ca.countNeighborhoodRow(y, 0, size, radius, rowCount);
+            sum += rowCount[0];
+        }
+        counter.cells += (long) size * size;
+        return sum;
+    }
+}
@@ -0,0 +1,58 @@
+package edu.semo.casim.bench;
+
+import edu.semo.casim.Covid7State;
+import edu.semo.casim.fx.CAGridAnimator;
+import java.util.concurrent.TimeUnit;
+import javafx.application.Platform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Frames per second of CAGridAnimator.render(). The animator is not attached to
+ * a scene, so it can be rendered off the FX thread, but the JavaFX toolkit still
+ * has to start, which needs a display (or the Monocle headless platform).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RenderBenchmark
+{
+    @Param({"256", "1024", "4096"})
+    public int size;
+
+    private CAGridAnimator anim;
+
+    @Setup
+    public void create()
+    {
+        try {
+            Platform.startup(() -> {});
+        } catch(IllegalStateException e) {
+            // the toolkit is already running
+        }
+
+        Covid7State ca = new Covid7State(size, size);
+        ca.setSeed(42);
+        ca.randomize(10);
+        anim = new CAGridAnimator(ca);
+    }
+
+    @Benchmark
+    public void render(CellCounter counter)
+    {
+        anim.render();
+        counter.cells += (long) size * size;
+    }
+}
@@ -0,0 +1,76 @@
+package edu.semo.casim.bench;
+
+import edu.semo.casim.CAGrid;
+import edu.semo.casim.Covid7State;
+import edu.semo.casim.Life;
+import edu.semo.casim.Stochastic3State;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generations per second of each rule set. The grid is randomized again before
+ * every iteration so a run does not drift into a quiet, cheaper state.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StepBenchmark
+{
+    @Param({"covid", "life", "stochastic"})
+    public String rule;
+
+    @Param({"256", "1024", "4096", "8192"})
+    public int size;
+
+    @Param({"1", "0"})
+    public int threads;
+
+    private CAGrid ca;
+
+    @Setup(Level.Trial)
+    public void create()
+    {
+        switch(rule) {
+            case "covid":      ca = new Covid7State(size, size); break;
+            case "life":       ca = new Life(size, size); break;
+            case "stochastic": ca = new Stochastic3State(size, size); break;
+            default: throw new IllegalArgumentException(rule);
+        }
+        ca.setSeed(42);
+        ca.setParallelism(threads);
+    }
+
+    @Setup(Level.Iteration)
+    public void randomize()
+    {
+        ca.randomize(rule.equals("covid") ? 10 : 30);
+    }
+
+    @Benchmark
+    public void next(CellCounter counter)
+    {
+        ca.next();
+        counter.cells += (long) size * size;
+    }
+
+    @Benchmark
+    public int[][] nextGeneration(CellCounter counter)
+    {
+        counter.cells += (long) size * size;
+        return ca.nextGeneration();
+    }
+}
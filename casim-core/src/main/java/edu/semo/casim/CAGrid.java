@@ -0,0 +1,1712 @@
+package edu.semo.casim;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * This class stores and provides fascilities for the processing of a 2d cellular automata.
+ * This class is an abstract class, where its update functions are provided by subclasses.
+ *
+ * The cells are kept in two flat byte buffers indexed y*width+x. The front buffer
+ * holds the current generation, and subclasses write the next generation into the
+ * back buffer. The two are swapped by next(), so no memory is allocated per generation.
+ * The buffers are CellStorage, on the heap by default, or off the heap for grids
+ * too large for it. Neighborhoods are counted from rows copied out of the storage,
+ * so the rules run the same on either.
+ *
+ * A generation is computed tile by tile. The tiles are a fixed TILE_SIZE square, and
+ * each gets its own random stream derived from the seed, the generation and the tile
+ * index, so a run is reproducible no matter how many threads step it. Randomizing
+ * draws from a stream derived from the seed and the row, so it is reproducible too.
+ *
+ * A sparse grid only steps the tiles which could change: those which changed or could
+ * have changed last generation, and those next to a tile which changed. Tiles holding
+ * nothing but absorbing states are never stepped. A skipped tile's back buffer already
+ * matches its front buffer, so it costs nothing at all.
+ */
+public abstract class CAGrid
+{
+    public static final int TILE_SIZE = 64; // The width and height of a tile
+
+    private int numStates;    // The number of states
+    private int width;        // The width of the grid
+    private int height;       // The height of the grid
+    private CellStorage cell;     // The states of the cells (front buffer)
+    private CellStorage nextCell; // The next generation of the cells (back buffer)
+    private CellStorage.Factory storage; // Makes the cell buffers
+    private boolean toroidal; // True iff the CA uses torroidal neighborhoods
+    private int generation;   // The number of generations which have been run.
+    private int [] wrapCol;   // wrapCol[x+r] is the wrapped column of x, or -1
+    private volatile int [] wrapRow; // wrapRow[y+r] is the wrapped row y, or -1
+    private ThreadLocal<int[]> scratch; // per thread count buffers
+    private ThreadLocal<byte[]> lines; // per thread copies of neighborhood rows
+    private ThreadLocal<double[]> draws; // per thread random draw buffers
+    private ThreadLocal<byte[]> rows; // per thread buffers of cell states
+    private ThreadLocal<Sweep> sweeps; // per thread running sums of shaped neighborhoods
+    private int version;      // Changes whenever the front buffer does
+    private Tile [] tiles;    // The tiles the grid is stepped in
+    private int tilesX;       // The number of tiles across
+    private int tilesY;       // The number of tiles down
+    private int [] active;    // The indices of the tiles stepped this generation
+    private int numActive;    // The number of entries in active
+    private boolean sparse;   // True iff quiet tiles are skipped
+    private boolean allActive; // True iff every tile must be stepped next generation
+    private boolean [] absorbing; // absorbing[s] is true iff no cell ever leaves state s
+    private int bandFirst;    // The first tile row stepped
+    private int bandEnd;      // The tile row after the last one stepped
+    private int rowOffset;    // The row of the whole grid that row 0 is, when this is a strip of it
+    private int totalHeight;  // The height of the whole grid
+    private long seed;        // The seed every random stream is derived from
+    private RandomSource random; // The source used for randomizing, tiles use copies of it
+    private ForkJoinPool pool; // The pool tiles are stepped on, null to step on the caller
+    private long [] transitions; // The transitions of the generation just stepped
+    private PopulationStats stats; // The population of each state over time
+    private List<StepListener> listeners; // Called after each generation
+    private Metrics metrics;  // Where the steps are timed, null for nowhere
+    private Set<Long> steppers; // The ids of the threads which have stepped the grid while it was timed
+    private volatile long [] stepperIds; // The same ids as an array, null when one has been added since
+    private Mobility mobility; // Moves the cells between generations, null for none
+    private RegionMap regions; // The region of each cell, null if they are all alike
+    private boolean masked;   // True iff some cell is empty, so the counts pass over it
+    private long population;  // The number of cells which are not empty
+
+
+    /**
+     * Construct a New CA Grid.
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     * @param numStates The number of states.
+     * @param toroidal Whether this uses toroidal neighborhoods.
+     */
+    public CAGrid(int width, int height, int numStates, boolean toroidal)
+    {
+        this(width, height, numStates, toroidal, HeapStorage.FACTORY);
+    }
+
+
+    /**
+     * Construct a New CA Grid with the given kind of storage.
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     * @param numStates The number of states.
+     * @param toroidal Whether this uses toroidal neighborhoods.
+     * @param storage Makes the front and back buffers.
+     */
+    public CAGrid(int width, int height, int numStates, boolean toroidal, CellStorage.Factory storage)
+    {
+        //states are stored in a byte per cell
+        if(numStates > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("at most " + Byte.MAX_VALUE + " states are supported");
+        }
+
+        //populate the fields
+        this.numStates = numStates;
+        this.width = width;
+        this.height = height;
+        this.toroidal = toroidal;
+        this.generation = 0;
+
+        //create the grid buffers
+        this.storage = storage;
+        cell = storage.create((long) width * height);
+        nextCell = storage.create((long) width * height);
+
+        //build the neighborhood tables for the common case
+        prepareNeighborhood(1);
+        scratch = new ThreadLocal<int[]>();
+        lines = new ThreadLocal<byte[]>();
+        draws = new ThreadLocal<double[]>();
+        rows = new ThreadLocal<byte[]>();
+        sweeps = ThreadLocal.withInitial(Sweep::new);
+
+        //cut the grid into tiles
+        int tx = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int ty = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tilesX = tx;
+        tilesY = ty;
+        tiles = new Tile[tx * ty];
+        active = new int[tx * ty];
+        sparse = false;
+        allActive = true;
+        absorbing = new boolean[numStates];
+        bandFirst = 0;
+        bandEnd = ty;
+        rowOffset = 0;
+        totalHeight = height;
+        for(int j=0; j<ty; j++) {
+            for(int i=0; i<tx; i++) {
+                int x0 = i * TILE_SIZE;
+                int y0 = j * TILE_SIZE;
+                tiles[j*tx + i] = new Tile(j*tx + i, x0, y0, Math.min(x0 + TILE_SIZE, width), Math.min(y0 + TILE_SIZE, height), numStates);
+            }
+        }
+
+        //the statistics are gathered by the tiles as they step
+        transitions = new long[numStates * numStates];
+        stats = new PopulationStats(numStates);
+        listeners = new CopyOnWriteArrayList<StepListener>();
+        steppers = ConcurrentHashMap.newKeySet();
+
+        //every cell is lived in until a region map says otherwise
+        population = (long) width * height;
+
+        //pick a seed, it can be replaced with setSeed before the run
+        seed = System.nanoTime();
+        setRandomSource(new SplitMixRandom());
+
+        //step in parallel on the common pool by default
+        pool = ForkJoinPool.commonPool();
+    }
+
+
+    /**
+     * Get the width of the grid.
+     * @return width as an integer.
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    /**
+     * Get the height of the grid.
+     * @return height as an integer.
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    /**
+     * Get the number of states in this CA.
+     * @return the number of states.
+     */
+    public int getNumStates()
+    {
+        return numStates;
+    }
+
+
+    /**
+     * Get the current generation number.
+     * @return generation number
+     */
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+
+    /**
+     * Determine whether this CA uses toroidal neighborhoods.
+     * @return true if the grid wraps around at its edges
+     */
+    public boolean isToroidal()
+    {
+        return toroidal;
+    }
+
+
+    /**
+     * Set the generation number, as when a saved grid is restored. The
+     * statistics start over from this generation.
+     * @param generation the generation the cells belong to
+     */
+    void setGeneration(int generation)
+    {
+        this.generation = generation;
+        stats.clear();
+        allActive = true;
+    }
+
+
+    /**
+     * Make this grid a strip of a taller toroidal grid, as a ClusterNode holds.
+     * Only the tile rows of the band are stepped and counted in the statistics;
+     * the rows around it are ghosts of the neighboring strips, filled in with
+     * setGhostRows. The random streams and randomizing use the rows of the
+     * whole grid, so the band steps exactly as it would in one grid.
+     * @param first the first tile row of the band
+     * @param end the tile row after the band
+     * @param rowOffset the row of the whole grid which row 0 of this one is,
+     *                  a multiple of TILE_SIZE
+     * @param totalHeight the height of the whole grid, a multiple of TILE_SIZE
+     */
+    void setBand(int first, int end, int rowOffset, int totalHeight)
+    {
+        if(first < 0 || end > tilesY || first >= end) {
+            throw new IllegalArgumentException("the band must be a run of tile rows of the grid");
+        }
+        if(rowOffset % TILE_SIZE != 0 || totalHeight % TILE_SIZE != 0) {
+            throw new IllegalArgumentException("a strip must be aligned to the tiles");
+        }
+
+        this.bandFirst = first;
+        this.bandEnd = end;
+        this.rowOffset = rowOffset;
+        this.totalHeight = totalHeight;
+        allActive = true;
+    }
+
+
+    /**
+     * Get the first row stepped, 0 unless this is a strip.
+     * @return the row
+     */
+    int getFirstRow()
+    {
+        return bandFirst * TILE_SIZE;
+    }
+
+
+    /**
+     * Get the row after the last one stepped, the height unless this is a strip.
+     * @return the row
+     */
+    int getEndRow()
+    {
+        return Math.min(bandEnd * TILE_SIZE, height);
+    }
+
+
+    /**
+     * Copy whole rows of a neighboring strip into the current generation,
+     * outside the band. Unlike setCells this does not make every tile step,
+     * only those next to the ghost tiles which changed. The rows are written
+     * to both buffers, so after next() has swapped them the front one still
+     * holds the last ghosts, which the next ones are compared with.
+     * @param y the first row
+     * @param states the states of the rows, row after row
+     * @param offset the index in states of the first cell
+     * @param rows the number of rows
+     */
+    void setGhostRows(int y, byte[] states, int offset, int rows)
+    {
+        byte [] old = rowBuffer(width);
+
+        for(int r=0; r<rows; r++) {
+            long base = (long) (y + r) * width;
+            int start = offset + r*width;
+            cell.get(base, old, 0, width);
+
+            //only the tiles whose cells differ have changed
+            for(int i=0; i<tilesX; i++) {
+                int x0 = i * TILE_SIZE;
+                int x1 = Math.min(x0 + TILE_SIZE, width);
+                if(Arrays.mismatch(old, x0, x1, states, start + x0, start + x1) >= 0) {
+                    tiles[((y + r) / TILE_SIZE) * tilesX + i].markChanged();
+                }
+            }
+            cell.set(base, states, start, width);
+            nextCell.set(base, states, start, width);
+        }
+        version++;
+    }
+
+
+    /**
+     * Get the population statistics. They cover the generations stepped with
+     * next(), and are only complete if the rules record every cell.
+     * @return the statistics
+     */
+    public PopulationStats getStats()
+    {
+        return stats;
+    }
+
+
+    /**
+     * Add a listener to be called each time next() advances the grid.
+     * @param listener the listener
+     */
+    public void addListener(StepListener listener)
+    {
+        listeners.add(listener);
+    }
+
+
+    /**
+     * Remove a listener added with addListener.
+     * @param listener the listener
+     */
+    public void removeListener(StepListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+
+    /**
+     * Move the cells about after every step.
+     * @param mobility the moves to make, or null for none
+     */
+    public void setMobility(Mobility mobility)
+    {
+        this.mobility = mobility;
+    }
+
+
+    /**
+     * Get the moves made after every step.
+     * @return the mobility, or null if cells stay put
+     */
+    public Mobility getMobility()
+    {
+        return mobility;
+    }
+
+
+    /**
+     * Give the cells regions. Empty cells are never counted as neighbors from
+     * the next generation on, and are left out of getPopulation(); it is up to
+     * the rules whether they step them, and whether regions differ otherwise.
+     * The map is read as the grid steps, so it must be given again after it is
+     * changed.
+     * @param regions the map, the same size as the grid, or null for none
+     */
+    public void setRegions(RegionMap regions)
+    {
+        if(regions != null && (regions.getWidth() != width || regions.getHeight() != height)) {
+            throw new IllegalArgumentException("the region map is " + regions.getWidth() + "x" + regions.getHeight()
+                                               + ", not " + width + "x" + height);
+        }
+
+        this.regions = regions;
+        population = regions == null ? (long) width * height : regions.countPopulated();
+        masked = population < (long) width * height;
+        for(Tile t : tiles) {
+            t.setEmpty(regions != null && regions.isEmpty(t.getX0(), t.getY0(), t.getX1(), t.getY1()));
+        }
+        markAllActive();
+        version++;
+    }
+
+
+    /**
+     * Get the regions of the cells.
+     * @return the map, or null if the cells are all alike
+     */
+    public RegionMap getRegions()
+    {
+        return regions;
+    }
+
+
+    /**
+     * Get the number of cells which are lived in, which is every cell unless
+     * a region map has empty ones.
+     * @return the number of cells which are not empty
+     */
+    public long getPopulation()
+    {
+        return population;
+    }
+
+
+    /**
+     * Determine whether a cell is empty.
+     */
+    private boolean isEmptyCell(long index)
+    {
+        return masked && regions.isEmpty(index);
+    }
+
+
+    /**
+     * Time every step into a set of metrics.
+     * @param metrics the metrics, or null to stop timing
+     */
+    public void setMetrics(Metrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Get the metrics the steps are timed into.
+     * @return the metrics, or null if there are none
+     */
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+
+    /**
+     * Note that the calling thread is stepping the grid, so the metrics count
+     * what it allocates. The threads of the pool are noted as they run tasks,
+     * and no other thread is counted.
+     */
+    private void noteStepper()
+    {
+        if(metrics != null) {
+            Long id = Thread.currentThread().getId();
+            if(!steppers.contains(id) && steppers.add(id)) {
+                stepperIds = null;
+            }
+        }
+    }
+
+
+    /**
+     * Get the ids of the threads which have stepped the grid while it was timed.
+     */
+    private long[] stepperIds()
+    {
+        long [] ids = stepperIds;
+        if(ids == null) {
+            ids = steppers.stream().mapToLong(Long::longValue).toArray();
+            stepperIds = ids;
+        }
+        return ids;
+    }
+
+
+    /**
+     * Get the seed the random streams are derived from.
+     * @return the seed
+     */
+    public long getSeed()
+    {
+        return seed;
+    }
+
+
+    /**
+     * Set the seed the random streams are derived from. Two grids with the same
+     * seed are randomized identically, and two grids with the same contents and
+     * seed produce identical generations.
+     * @param seed the seed
+     */
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+
+    /**
+     * Set the kind of random source used for randomizing and stepping. Each tile
+     * gets its own copy, and all of them are seeded from getSeed().
+     * @param random the source to use
+     */
+    public void setRandomSource(RandomSource random)
+    {
+        this.random = random;
+        for(int i=0; i<tiles.length; i++) {
+            tiles[i].setRandom(random.copy());
+        }
+    }
+
+
+    /**
+     * Get the random source used for randomizing.
+     * @return the random source
+     */
+    public RandomSource getRandomSource()
+    {
+        return random;
+    }
+
+
+    /**
+     * Get the random source reseeded for a row. Randomizing functions should draw
+     * the cells of row y from rowRandom(y), so that the result depends only on
+     * the seed.
+     * @param y the row about to be randomized
+     * @return the random source
+     */
+    protected RandomSource rowRandom(int y)
+    {
+        //a strip draws the rows of the whole grid
+        long row = Math.floorMod(y + rowOffset, totalHeight);
+        random.setSeed(SplitMixRandom.mix(seed ^ SplitMixRandom.mix(~row)));
+        return random;
+    }
+
+
+    /**
+     * Set the number of threads used to step the grid. This does not change
+     * the results, only how quickly they are produced.
+     * @param threads 1 to step on the calling thread, 0 to use the common pool,
+     *                or the size of a dedicated pool.
+     */
+    public void setParallelism(int threads)
+    {
+        if(pool != null && pool != ForkJoinPool.commonPool()) {
+            pool.shutdown();
+        }
+
+        if(threads == 1) {
+            pool = null;
+        } else if(threads <= 0) {
+            pool = ForkJoinPool.commonPool();
+        } else {
+            pool = new ForkJoinPool(threads);
+        }
+    }
+
+
+    /**
+     * Get the number of threads used to step the grid.
+     * @return the number of threads
+     */
+    public int getParallelism()
+    {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+
+    /**
+     * Turn sparse stepping on or off. A grid may only be made sparse if its rules
+     * record every cell with tile.record() and, if they are stochastic, call
+     * tile.markLive() for tiles whose cells could have changed but did not. The
+     * neighborhood radius must not exceed TILE_SIZE.
+     *
+     * A skipped tile is left as it is in the back buffer, so it must match the
+     * front one. That holds for a tile which did not change, and a tile which
+     * changed in its last step is always stepped again, even once it is
+     * absorbed, to copy its new cells across.
+     * @param sparse true to skip tiles which cannot change
+     */
+    public void setSparse(boolean sparse)
+    {
+        this.sparse = sparse;
+        allActive = true;
+    }
+
+
+    /**
+     * Determine whether quiet tiles are skipped.
+     * @return true if the grid is sparse
+     */
+    public boolean isSparse()
+    {
+        return sparse;
+    }
+
+
+    /**
+     * Make the next generation step every tile. This must be called when the
+     * rules change, or when the cells are changed other than with setCell.
+     */
+    public void markAllActive()
+    {
+        allActive = true;
+    }
+
+
+    /**
+     * Determine whether the next generation will step every tile, because the
+     * cells or the rules were changed from outside since the last step. Rules
+     * which keep their own copy of the cells use this to know when to rebuild it.
+     * @return true if every tile will be stepped
+     */
+    protected boolean isAllActive()
+    {
+        return allActive;
+    }
+
+
+    /**
+     * Get the number of tiles stepped in the latest generation.
+     * @return the number of active tiles
+     */
+    public int getNumActiveTiles()
+    {
+        return numActive;
+    }
+
+
+    /**
+     * Get the tiles the grid is stepped in, in row major order.
+     * @return the tiles
+     */
+    public Tile[] getTiles()
+    {
+        return tiles;
+    }
+
+
+    /**
+     * Get the specified cell. If this is a toroidal CA, we translate
+     * the cell coordinates and return the toroidal entry.
+     * If it is not toroidal, we return -1 on invalid entry.
+     * @param x
+     * @param y
+     * @return
+     */
+    public int getCell(int x, int y)
+    {
+        int w, h;
+        w = width;
+        h = height;
+
+        //handle an invalid request
+        if(!toroidal && (x<0 || y<0 || x>=w || y>=h)) {
+            return -1;
+        }
+
+        // perform any toroidal corrections
+        if(toroidal) {
+            if(x < 0) { x = x + w; }
+            if(y < 0) { y = y + h; }
+            if(x >= w) { x %= w; }
+            if(y >= h) { y %= h; }
+        }
+
+        return cell.get((long) y*w + x);
+    }
+
+
+    /**
+     * Get a run of cells in one row. This is the bulk version of getCell, for
+     * code which reads the whole grid, such as a renderer. No toroidal
+     * corrections or validation are performed.
+     * @param x x coordinate of the first cell (zero based)
+     * @param y y coordinate (zero based)
+     * @param states receives the states of the cells
+     * @param offset the index in states of the first cell
+     * @param length the number of cells
+     */
+    public void getCells(int x, int y, byte[] states, int offset, int length)
+    {
+        cell.get((long) y*width + x, states, offset, length);
+    }
+
+
+    /**
+     * Set the value of the specified cell. Note that this function does not
+     * perform any toroidal corrections. Also, no validation is performed by
+     * this function, so you are asked to behave yourself!
+     * @param x x coordinate (zero based)
+     * @param y y coordiante (zero based)
+     * @param state state of the cell.
+     */
+    public void setCell(int x, int y, int state)
+    {
+        cell.set((long) y*width + x, (byte) state);
+        allActive = true;
+        version++;
+    }
+
+
+    /**
+     * Set a run of cells in one row. This is the bulk version of setCell, and
+     * like it performs no toroidal corrections or validation.
+     * @param x x coordinate of the first cell (zero based)
+     * @param y y coordinate (zero based)
+     * @param states the states of the cells
+     * @param offset the index in states of the first cell
+     * @param length the number of cells
+     */
+    public void setCells(int x, int y, byte[] states, int offset, int length)
+    {
+        cell.set((long) y*width + x, states, offset, length);
+        allActive = true;
+        version++;
+    }
+
+
+    /**
+     * Set the value of the specified cell in the next generation. This is
+     * the function step(Tile) uses to write into the back buffer. As with setCell,
+     * no toroidal corrections or validation are performed.
+     * @param x x coordinate (zero based)
+     * @param y y coordinate (zero based)
+     * @param state state of the cell in the next generation.
+     */
+    protected void setNextCell(int x, int y, int state)
+    {
+        nextCell.set((long) y*width + x, (byte) state);
+    }
+
+
+    /**
+     * Set a run of cells in one row of the next generation. This is the bulk
+     * version of setNextCell, for rules which compute many cells at once.
+     * @param x x coordinate of the first cell (zero based)
+     * @param y y coordinate (zero based)
+     * @param states the states of the cells
+     * @param offset the index in states of the first cell
+     * @param length the number of cells
+     */
+    protected void setNextCells(int x, int y, byte[] states, int offset, int length)
+    {
+        nextCell.set((long) y*width + x, states, offset, length);
+    }
+
+
+    /**
+     * Randomize the grid
+     */
+    public void randomize()
+    {
+        for(int y=0; y<getHeight(); y++) {
+            RandomSource random = rowRandom(y);
+            for(int x=0; x<getWidth(); x++) {
+                setCell(x, y, random.nextInt(0, getNumStates()));
+            }
+        }
+    }
+
+    public abstract void randomize(int percentInfected);
+
+    /**
+     * Get the contents of the neighborhood. If the neighborhood is non-toroidal, -1
+     * will be present in all invalid slots.
+     * @param x x coordinate (zero based)
+     * @param y y cooridnate (zero based)
+     * @param radius the radius of the neighborhood
+     * @return The list of cell states in the neighborhood as an array.
+     */
+    public int[] getNeighborhood(int x, int y, int radius)
+    {
+        int[] neighborhood;
+        int size;
+
+        // allocate the neighborhood
+        size = 2*radius + 1;
+        size *= size;
+        neighborhood = new int[size];
+
+        // populate the neighborhood
+        int i=0;
+        for(int cy = y-radius; cy <= y+radius; cy++){
+            for(int cx = x-radius; cx <= x+radius; cx++){
+                neighborhood[i] = getCell(cx, cy);
+                i++;
+            }
+        }
+
+        return neighborhood;
+    }
+
+
+    /**
+     * Get the contents of a shaped neighborhood, the cells of non-zero weight in
+     * row major order. If the neighborhood is non-toroidal, -1 will be present in
+     * all invalid slots.
+     * @param x x coordinate (zero based)
+     * @param y y coordinate (zero based)
+     * @param shape the neighborhood
+     * @return The list of cell states in the neighborhood as an array.
+     */
+    public int[] getNeighborhood(int x, int y, Neighborhood shape)
+    {
+        int size = 0;
+        for(int k=0; k<shape.getNumRuns(); k++) {
+            size += shape.getRunX1(k) - shape.getRunX0(k) + 1;
+        }
+
+        //the runs are in row major order already
+        int [] neighborhood = new int[size];
+        int i = 0;
+        for(int k=0; k<shape.getNumRuns(); k++) {
+            for(int dx=shape.getRunX0(k); dx<=shape.getRunX1(k); dx++) {
+                neighborhood[i++] = getCell(x + dx, y + shape.getRunDy(k));
+            }
+        }
+
+        return neighborhood;
+    }
+
+
+    /**
+     * Count the number of each state in the neighborhood.
+     * @param x x coordinate (zero based)
+     * @param y y coordinate (zero based)
+     * @param radius the radius of the neighborhood
+     * @return An array containing the count of each state. The ar[k] is the count of state k.
+     */
+    public int[] countNeighborhood(int x, int y, int radius)
+    {
+        int [] count = new int[getNumStates()];
+
+        countNeighborhood(x, y, radius, count);
+
+        return count;
+    }
+
+
+    /**
+     * Count the number of each state in the neighborhood into a caller supplied
+     * array. Nothing is allocated, so this is suitable for use inside step(Tile).
+     * @param x x coordinate (zero based)
+     * @param y y coordinate (zero based)
+     * @param radius the radius of the neighborhood
+     * @param count Receives the count of each state, count[k] is the count of state k.
+     *              It must hold at least getNumStates() entries.
+     */
+    public void countNeighborhood(int x, int y, int radius, int[] count)
+    {
+        int [] row = wrapRow;
+        int [] col = wrapCol;
+
+        //make sure the tables reach far enough
+        if(2*radius > row.length - height) {
+            prepareNeighborhood(radius);
+            col = wrapCol;
+            row = wrapRow;
+        }
+        int rc = (col.length - width) / 2;
+        int rr = (row.length - height) / 2;
+
+        for(int s=0; s<numStates; s++) {
+            count[s] = 0;
+        }
+
+        for(int cy = y-radius; cy <= y+radius; cy++) {
+            int r = row[cy + rr];
+            if(r < 0) { continue; }
+            long offset = (long) r * width;
+            for(int cx = x-radius; cx <= x+radius; cx++) {
+                int c = col[cx + rc];
+                if(c < 0 || isEmptyCell(offset + c)) { continue; }
+                count[cell.get(offset + c)]++;
+            }
+        }
+    }
+
+
+    /**
+     * Count the weighted number of each state in a shaped neighborhood into a
+     * caller supplied array. Like countNeighborhood with a radius, nothing is
+     * allocated.
+     * @param x x coordinate (zero based)
+     * @param y y coordinate (zero based)
+     * @param shape the neighborhood
+     * @param count Receives the count of each state, count[k] is the summed weight
+     *              of the neighbors in state k. It must hold at least getNumStates() entries.
+     */
+    public void countNeighborhood(int x, int y, Neighborhood shape, int[] count)
+    {
+        int [] row = wrapRow;
+        int [] col = wrapCol;
+
+        //make sure the tables reach far enough
+        if(2*shape.getRadius() > row.length - height) {
+            prepareNeighborhood(shape.getRadius());
+            col = wrapCol;
+            row = wrapRow;
+        }
+        int rc = (col.length - width) / 2;
+        int rr = (row.length - height) / 2;
+
+        Arrays.fill(count, 0, numStates, 0);
+
+        for(int k=0; k<shape.getNumRuns(); k++) {
+            int r = row[y + shape.getRunDy(k) + rr];
+            if(r < 0) { continue; }
+            long offset = (long) r * width;
+            int weight = shape.getRunWeight(k);
+            for(int dx=shape.getRunX0(k); dx<=shape.getRunX1(k); dx++) {
+                int c = col[x + dx + rc];
+                if(c < 0 || isEmptyCell(offset + c)) { continue; }
+                count[cell.get(offset + c)] += weight;
+            }
+        }
+    }
+
+
+    /**
+     * Count the neighborhoods of a run of cells in one row. This is the bulk
+     * version of countNeighborhood, and it is the one the rules use in step(Tile).
+     * The counts are stored state major, so the count of state k around cell x
+     * is count[k*(x1-x0) + (x-x0)]. The rows of the neighborhood are first copied
+     * out of the storage, already wrapped, so only the cells near the edges of a
+     * non-toroidal grid need any checks.
+     * @param y y coordinate (zero based)
+     * @param x0 first x coordinate (inclusive)
+     * @param x1 last x coordinate (exclusive)
+     * @param radius the radius of the neighborhood
+     * @param count Receives the counts. It must hold at least getNumStates()*(x1-x0) entries.
+     */
+    public void countNeighborhoodRow(int y, int x0, int x1, int radius, int[] count)
+    {
+        int [] row = wrapRow;
+        int span = x1 - x0;
+        int len = span + 2*radius;
+
+        //make sure the tables reach far enough
+        if(2*radius > row.length - height) {
+            prepareNeighborhood(radius);
+            row = wrapRow;
+        }
+        int rr = (row.length - height) / 2;
+
+        //clear the counts
+        Arrays.fill(count, 0, numStates*span, 0);
+
+        //copy out the rows on the grid, columns x0-radius to x1+radius
+        byte [] c = lineBuffer((2*radius + 1) * len);
+        int n = 0;
+        for(int cy = y-radius; cy <= y+radius; cy++) {
+            int r = row[cy + rr];
+            if(r < 0) { continue; }
+            copyLine(r, x0 - radius, x1 + radius, c, n*len);
+            n++;
+        }
+
+        //the run of cells whose neighborhoods are entirely on the grid
+        int in0 = x0;
+        int in1 = x1;
+        if(!toroidal) {
+            in0 = Math.min(Math.max(x0, radius), x1);
+            in1 = Math.max(Math.min(x1, width - radius), in0);
+        }
+
+        //empty cells read as -1, which the packed counters drop into an eighth
+        //lane, and which only the border loop skips otherwise
+        int size = (2*radius + 1) * (2*radius + 1);
+        boolean packed = numStates <= (masked ? 7 : 8) && size <= 0xff;
+        if(masked && !packed) {
+            in0 = x1;
+            in1 = x1;
+        }
+
+        //left and right borders skip the cells off the grid
+        for(int l=0; l<n; l++) {
+            int base = l*len + radius - x0;
+            for(int x=x0; x<in0; x++) {
+                countPadded(c, base + x, radius, count, span, x - x0);
+            }
+            for(int x=in1; x<x1; x++) {
+                countPadded(c, base + x, radius, count, span, x - x0);
+            }
+        }
+
+        //interior, no checks needed
+        if(packed) {
+            // keep 8 one byte counters in a long so the sum stays in a register
+            for(int x=in0; x<in1; x++) {
+                long acc = 0;
+                for(int l=0; l<n; l++) {
+                    int base = l*len + radius + x - x0;
+                    for(int dx=-radius; dx<=radius; dx++) {
+                        acc += 1L << (c[base + dx] << 3);
+                    }
+                }
+                int i = x - x0;
+                for(int s=0; s<numStates; s++) {
+                    count[s*span + i] = (int) (acc >>> (s << 3)) & 0xff;
+                }
+            }
+        } else {
+            for(int l=0; l<n; l++) {
+                for(int x=in0; x<in1; x++) {
+                    int i = x - x0;
+                    int base = l*len + radius + i;
+                    for(int dx=-radius; dx<=radius; dx++) {
+                        count[c[base + dx]*span + i]++;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Count shaped neighborhoods of a run of cells in one row, laid out as by
+     * countNeighborhoodRow with a radius. Each row of the grid is reduced to
+     * prefix sums of each state once, so a run of a neighborhood row is counted
+     * with one subtraction per state whatever its length. A box sums the prefix
+     * sums of all its rows, so it is one subtraction per state in all. The sums
+     * carry over when the same thread counts the next row down, as step(Tile)
+     * does, so moving down a row only adds the row entering the neighborhood
+     * and drops the one leaving it.
+     * @param y y coordinate (zero based)
+     * @param x0 first x coordinate (inclusive)
+     * @param x1 last x coordinate (exclusive)
+     * @param shape the neighborhood
+     * @param count Receives the counts. It must hold at least getNumStates()*(x1-x0) entries.
+     */
+    public void countNeighborhoodRow(int y, int x0, int x1, Neighborhood shape, int[] count)
+    {
+        int radius = shape.getRadius();
+        int [] row = wrapRow;
+        if(2*radius > row.length - height) {
+            prepareNeighborhood(radius);
+            row = wrapRow;
+        }
+        int rr = (row.length - height) / 2;
+
+        int span = x1 - x0;
+        int len = span + 2*radius;
+        int stride = len + 1;
+        int lines = 2*radius + 1;
+        Sweep sw = sweeps.get();
+
+        //carry on from the row above, or start over
+        boolean fresh = sw.shape != shape || sw.version != version || sw.x0 != x0 || sw.x1 != x1
+            || sw.y != y - 1;
+        if(fresh) {
+            sw.shape = shape;
+            sw.x0 = x0;
+            sw.x1 = x1;
+            sw.prepare(lines, numStates * stride, len);
+        }
+        int [] box = sw.box;
+
+        for(int cy = fresh ? y-radius : y+radius; cy <= y+radius; cy++) {
+            int [] prefix = sw.prefix[Math.floorMod(cy, lines)];
+            if(shape.isBox() && !fresh) {
+                for(int j=0; j<prefix.length; j++) { box[j] -= prefix[j]; }
+            }
+
+            //sum each state along the row, a row off the grid counts nothing
+            int r = row[cy + rr];
+            if(r < 0) {
+                Arrays.fill(prefix, 0);
+            } else {
+                byte [] line = sw.line;
+                copyLine(r, x0 - radius, x1 + radius, line, 0);
+                for(int s=0; s<numStates; s++) {
+                    int base = s * stride;
+                    int sum = 0;
+                    for(int j=0; j<len; j++) {
+                        prefix[base + j] = sum;
+                        sum += line[j] == s ? 1 : 0;
+                    }
+                    prefix[base + len] = sum;
+                }
+            }
+
+            if(shape.isBox()) {
+                for(int j=0; j<prefix.length; j++) { box[j] += prefix[j]; }
+            }
+        }
+        sw.y = y;
+        sw.version = version;
+
+        //count each run from the prefix sums, column j of a line is column x0-radius+j of the grid
+        if(shape.isBox()) {
+            for(int s=0; s<numStates; s++) {
+                int base = s * stride;
+                for(int i=0; i<span; i++) {
+                    count[s*span + i] = box[base + i + lines] - box[base + i];
+                }
+            }
+            return;
+        }
+
+        Arrays.fill(count, 0, numStates*span, 0);
+        for(int k=0; k<shape.getNumRuns(); k++) {
+            int [] prefix = sw.prefix[Math.floorMod(y + shape.getRunDy(k), lines)];
+            int from = radius + shape.getRunX0(k);
+            int to = radius + shape.getRunX1(k) + 1;
+            int weight = shape.getRunWeight(k);
+            for(int s=0; s<numStates; s++) {
+                int base = s * stride;
+                for(int i=0; i<span; i++) {
+                    count[s*span + i] += weight * (prefix[base + i + to] - prefix[base + i + from]);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The running sums of countNeighborhoodRow with a shape, kept by each thread
+     * between the rows it counts.
+     */
+    private static final class Sweep
+    {
+        Neighborhood shape;   // The neighborhood being counted
+        int version = -1;     // The version of the cells the sums were taken from
+        int x0;               // The first column counted
+        int x1;               // The end of the columns counted
+        int y;                // The row last counted
+        int [][] prefix;      // prefix[cy mod lines] holds the prefix sums of each state of row cy
+        int [] box;           // The sum of all the prefix sums, for boxes
+        byte [] line;         // One row copied out of the grid
+
+
+        /**
+         * Make room for the sums and clear the box.
+         */
+        void prepare(int lines, int size, int len)
+        {
+            if(prefix == null || prefix.length != lines || prefix[0].length != size) {
+                prefix = new int[lines][size];
+                box = new int[size];
+            } else {
+                Arrays.fill(box, 0);
+            }
+            if(line == null || line.length < len) {
+                line = new byte[len];
+            }
+        }
+    }
+
+
+    /**
+     * Count the cells of one row of a neighborhood, skipping those off the grid.
+     */
+    private static void countPadded(byte[] c, int center, int radius, int[] count, int span, int i)
+    {
+        for(int j = center-radius; j <= center+radius; j++) {
+            if(c[j] < 0) { continue; }
+            count[c[j]*span + i]++;
+        }
+    }
+
+
+    /**
+     * Copy the columns [from, to) of a row into a line, wrapping them around a
+     * toroidal grid and filling them with -1 off a non-toroidal one, and where
+     * the cells are empty.
+     */
+    private void copyLine(int y, int from, int to, byte[] line, int offset)
+    {
+        long base = (long) y * width;
+
+        while(from < to) {
+            int n;
+            if(from >= 0 && from < width) {
+                n = Math.min(to, width) - from;
+                cell.get(base + from, line, offset, n);
+                if(masked) {
+                    regions.mask(base + from, line, offset, n);
+                }
+            } else if(toroidal) {
+                int x = Math.floorMod(from, width);
+                n = Math.min(to - from, width - x);
+                cell.get(base + x, line, offset, n);
+                if(masked) {
+                    regions.mask(base + x, line, offset, n);
+                }
+            } else {
+                n = from < 0 ? Math.min(to, 0) - from : to - from;
+                Arrays.fill(line, offset, offset + n, (byte) -1);
+            }
+            from += n;
+            offset += n;
+        }
+    }
+
+
+    /**
+     * Build the wrapped row and column tables for neighborhoods up to the
+     * given radius. Off grid entries are -1 for non-toroidal grids.
+     * @param radius the largest radius that will be counted
+     */
+    private synchronized void prepareNeighborhood(int radius)
+    {
+        if(wrapRow != null && 2*radius <= wrapRow.length - height) { return; }
+
+        int [] col = new int[width + 2*radius];
+        int [] row = new int[height + 2*radius];
+
+        for(int i=0; i<col.length; i++) {
+            col[i] = wrap(i - radius, width);
+        }
+        for(int i=0; i<row.length; i++) {
+            row[i] = wrap(i - radius, height);
+        }
+
+        //readers read wrapRow first, so publishing it last guarantees they
+        //see a column table at least as wide
+        wrapCol = col;
+        wrapRow = row;
+    }
+
+
+    /**
+     * Wrap a coordinate onto [0, size), or return -1 for a non-toroidal grid.
+     */
+    private int wrap(int i, int size)
+    {
+        if(i >= 0 && i < size) { return i; }
+        if(!toroidal) { return -1; }
+        return Math.floorMod(i, size);
+    }
+
+
+    /**
+     * Get a count buffer of at least the given size belonging to the calling
+     * thread. The buffer is reused between calls, so it is only valid until
+     * the same thread asks for another one.
+     * @param size the minimum number of entries
+     * @return a reusable int array
+     */
+    protected int[] countBuffer(int size)
+    {
+        int [] buf = scratch.get();
+        if(buf == null || buf.length < size) {
+            buf = new int[size];
+            scratch.set(buf);
+        }
+        return buf;
+    }
+
+
+    /**
+     * Get a line buffer of at least the given size belonging to the calling thread.
+     */
+    private byte[] lineBuffer(int size)
+    {
+        byte [] buf = lines.get();
+        if(buf == null || buf.length < size) {
+            buf = new byte[size];
+            lines.set(buf);
+        }
+        return buf;
+    }
+
+
+    /**
+     * Get a random draw buffer of at least the given size belonging to the calling
+     * thread. Like countBuffer, it is reused between calls.
+     * @param size the minimum number of entries
+     * @return a reusable double array
+     */
+    protected double[] drawBuffer(int size)
+    {
+        double [] buf = draws.get();
+        if(buf == null || buf.length < size) {
+            buf = new double[size];
+            draws.set(buf);
+        }
+        return buf;
+    }
+
+
+    /**
+     * Get a buffer of cell states of at least the given size belonging to the
+     * calling thread, for rules which step a row at a time. Like countBuffer,
+     * it is reused between calls.
+     * @param size the minimum number of entries
+     * @return a reusable byte array
+     */
+    protected byte[] rowBuffer(int size)
+    {
+        byte [] buf = rows.get();
+        if(buf == null || buf.length < size) {
+            buf = new byte[size];
+            rows.set(buf);
+        }
+        return buf;
+    }
+
+
+    /**
+     * Compute one tile of the next generation into the back buffer. This is where
+     * derivative classes specify their transition rules. Every cell of the tile
+     * must be written with setNextCell, since the back buffer still holds an
+     * older generation when this is called. Tiles may be stepped concurrently,
+     * so any randomness must come from tile.getRandom(). Each cell's transition
+     * should be passed to tile.record() to keep the statistics.
+     * @param tile the tile to compute
+     */
+    protected abstract void step(Tile tile);
+
+
+    /**
+     * Called before the tiles of a generation are stepped.
+     */
+    protected void beforeStep()
+    {
+    }
+
+
+    /**
+     * Called when cells of the current generation were moved in bulk, as
+     * Mobility and Interventions move them, without every tile being made to
+     * step. A subclass which keeps its own copy of the cells must update the
+     * tiles named before the next step.
+     * @param tiles tiles[t] is true iff cells of tile t moved; it is not kept
+     */
+    protected void cellsMoved(boolean[] tiles)
+    {
+    }
+
+
+    /**
+     * Determine whether no cell ever leaves a state. Sparse grids never step a
+     * tile holding only absorbing states.
+     * @param state the state
+     * @return true if the state is absorbing, false if unsure
+     */
+    protected boolean isAbsorbing(int state)
+    {
+        return false;
+    }
+
+
+    /**
+     * Get the counters a subclass keeps beyond the cells, such as running
+     * maxima, so they can be saved with the grid.
+     * @return the counters, empty if there are none
+     */
+    protected long[] getCounters()
+    {
+        return new long[0];
+    }
+
+
+    /**
+     * Restore the counters returned by getCounters().
+     * @param counters the saved counters
+     */
+    protected void setCounters(long[] counters)
+    {
+    }
+
+
+    /**
+     * Called by next() after the grid has advanced and getStats() has been
+     * brought up to date.
+     */
+    protected void afterStep()
+    {
+    }
+
+
+    /**
+     * Compute the whole next generation into the back buffer.
+     */
+    private void stepAll()
+    {
+        beforeStep();
+
+        // choose the tiles to step and reseed their streams for this generation
+        selectActive();
+        for(int i=0; i<numActive; i++) {
+            tiles[active[i]].getRandom().setSeed(tileSeed(generation, active[i]));
+        }
+
+        if(pool == null) {
+            for(int i=0; i<numActive; i++) {
+                step(tiles[active[i]]);
+            }
+        } else {
+            pool.invoke(new TileTask(0, numActive));
+        }
+
+        // gather the tiles' tallies
+        for(int s=0; s<numStates; s++) {
+            absorbing[s] = isAbsorbing(s);
+        }
+        Arrays.fill(transitions, 0);
+        for(int i=0; i<tiles.length; i++) {
+            tiles[i].drainTransitions(transitions, absorbing);
+        }
+    }
+
+
+    /**
+     * Fill the active list with the tiles to step this generation.
+     */
+    private void selectActive()
+    {
+        numActive = 0;
+        for(int ty=0; ty<tilesY; ty++) {
+            for(int tx=0; tx<tilesX; tx++) {
+                int i = ty*tilesX + tx;
+                boolean step = !sparse || allActive;
+
+                // the ghost rows of a strip are never stepped
+                if(ty < bandFirst || ty >= bandEnd) {
+                    tiles[i].begin(false);
+                    continue;
+                }
+
+                if(!step) {
+                    if(tiles[i].isAbsorbed()) {
+                        // an absorbed tile never changes, but if it was absorbed in the last step its
+                        // back buffer still holds the generation before, so it is stepped once more
+                        step = tiles[i].isChanged();
+                    } else {
+                        // a tile can change if it could last time, or if its neighborhood did
+                        step = tiles[i].isLive() || neighborChanged(tx, ty);
+                    }
+                }
+
+                tiles[i].begin(step);
+                if(step) {
+                    active[numActive++] = i;
+                }
+            }
+        }
+        allActive = false;
+    }
+
+
+    /**
+     * Determine whether any of the eight tiles around a tile changed last step.
+     */
+    private boolean neighborChanged(int tx, int ty)
+    {
+        for(int j=ty-1; j<=ty+1; j++) {
+            for(int i=tx-1; i<=tx+1; i++) {
+                int ni = i;
+                int nj = j;
+                if(toroidal) {
+                    ni = Math.floorMod(i, tilesX);
+                    nj = Math.floorMod(j, tilesY);
+                } else if(i < 0 || j < 0 || i >= tilesX || j >= tilesY) {
+                    continue;
+                }
+                if(tiles[nj*tilesX + ni].isChanged()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Derive the seed of a tile's random stream.
+     * @param generation the generation being computed
+     * @param index the tile index
+     * @return the seed of the stream
+     */
+    private long tileSeed(int generation, int index)
+    {
+        //a strip seeds its tiles as the tiles of the whole grid
+        int row = Math.floorMod((index / tilesX) * TILE_SIZE + rowOffset, totalHeight) / TILE_SIZE;
+        index = row * tilesX + index % tilesX;
+        return SplitMixRandom.mix(seed ^ SplitMixRandom.mix(((long) generation << 32) | index));
+    }
+
+
+    /**
+     * Get the front buffer, for bulk moves of the current generation.
+     * @return the cells of the current generation
+     */
+    CellStorage cells()
+    {
+        return cell;
+    }
+
+
+    /**
+     * Get the factory which made the cell buffers, for other storage the size
+     * of the grid.
+     * @return the factory
+     */
+    CellStorage.Factory storage()
+    {
+        return storage;
+    }
+
+
+    /**
+     * Get the index of the tile holding a cell.
+     * @param x x coordinate (zero based)
+     * @param y y coordinate (zero based)
+     * @return the tile index
+     */
+    int tileIndex(int x, int y)
+    {
+        return (y / TILE_SIZE) * tilesX + x / TILE_SIZE;
+    }
+
+
+    /**
+     * Note that cells were moved in the current generation, so the tiles they
+     * moved in are stepped and redrawn, and any copy a subclass keeps of them
+     * is brought up to date.
+     * @param moved moved[t] is true iff cells of tile t moved
+     */
+    void markMoved(boolean[] moved)
+    {
+        for(int t=0; t<tiles.length; t++) {
+            if(moved[t]) {
+                tiles[t].markChanged();
+            }
+        }
+        cellsMoved(moved);
+        version++;
+    }
+
+
+    /**
+     * Run a body for each index in [0, n), in parallel on the grid's pool
+     * unless it steps on the calling thread.
+     * @param n the number of indices
+     * @param body the body
+     */
+    void parallelFor(int n, IntConsumer body)
+    {
+        if(pool == null) {
+            for(int i=0; i<n; i++) {
+                body.accept(i);
+            }
+        } else {
+            pool.invoke(new RangeTask(0, n, body));
+        }
+    }
+
+
+    /**
+     * Runs a body over a range of indices, splitting it in half until one is left.
+     */
+    private class RangeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private int lo;
+        private int hi;
+        private transient IntConsumer body;
+
+        RangeTask(int lo, int hi, IntConsumer body)
+        {
+            this.lo = lo;
+            this.hi = hi;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(hi - lo <= 1) {
+                if(hi > lo) {
+                    noteStepper();
+                    body.accept(lo);
+                }
+                return;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RangeTask(lo, mid, body), new RangeTask(mid, hi, body));
+        }
+    }
+
+
+    /**
+     * Steps a range of the active list, splitting it in half until one tile is left.
+     */
+    private class TileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private int lo;
+        private int hi;
+
+        TileTask(int lo, int hi)
+        {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(hi - lo <= 1) {
+                if(hi > lo) {
+                    noteStepper();
+                    step(tiles[active[lo]]);
+                }
+                return;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new TileTask(lo, mid), new TileTask(mid, hi));
+        }
+    }
+
+
+    /**
+     * Compute the next generation and return it as a new array, without
+     * advancing the grid. This is kept for compatibility with code written
+     * against the old array based interface; next() does not use it.
+     * @return the next generation, indexed [y][x]
+     */
+    public int[][] nextGeneration()
+    {
+        int [][] result = new int[height][width];
+        Metrics m = metrics;
+        long start = 0;
+        long allocated = 0;
+        long [] threads = null;
+        if(m != null) {
+            noteStepper();
+            threads = stepperIds();
+            start = System.nanoTime();
+            allocated = Metrics.allocatedBytes(threads);
+        }
+
+        stepAll();
+        if(m != null) {
+            m.stepped(Metrics.NEXT_GENERATION, start, System.nanoTime(), steppedCells(), Metrics.allocatedBytes(threads) - allocated);
+        }
+
+        // the grid did not advance, so the tile flags describe the wrong step
+        allActive = true;
+        for(int y=0; y<height; y++) {
+            for(int x=0; x<width; x++) {
+                result[y][x] = nextCell.get((long) y*width + x);
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Update the CA using the step function.
+     */
+    public void next()
+    {
+        Metrics m = metrics;
+        long start = 0;
+        long allocated = 0;
+        long [] threads = null;
+        if(m != null) {
+            // the threads are those known when the step starts, so one new to it is counted from the next
+            noteStepper();
+            threads = stepperIds();
+            start = System.nanoTime();
+            allocated = Metrics.allocatedBytes(threads);
+        }
+
+        // compute the next generation into the back buffer
+        stepAll();
+
+        // swap the buffers
+        CellStorage tmp = cell;
+        cell = nextCell;
+        nextCell = tmp;
+        version++;
+
+        // count the generations
+        generation++;
+        stats.record(generation, transitions);
+
+        // people move about between generations, which leaves the counts as they are
+        if(mobility != null) {
+            mobility.move(this);
+        }
+
+        afterStep();
+        for(StepListener listener : listeners) {
+            listener.stepped(this);
+        }
+
+        // the listeners are timed as part of the step
+        if(m != null) {
+            m.stepped(Metrics.STEP, start, System.nanoTime(), steppedCells(), Metrics.allocatedBytes(threads) - allocated);
+        }
+    }
+
+
+    /**
+     * Count the cells in the tiles stepped in the latest generation.
+     */
+    private long steppedCells()
+    {
+        long n = 0;
+        for(int i=0; i<numActive; i++) {
+            Tile t = tiles[active[i]];
+            n += (long) t.getWidth() * (t.getY1() - t.getY0());
+        }
+        return n;
+    }
+}
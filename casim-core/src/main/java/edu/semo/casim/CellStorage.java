@@ -0,0 +1,74 @@
+package edu.semo.casim;
+
+/**
+ * Holds one generation of a grid's cells, a byte per cell, indexed by a long
+ * so grids may have more than 2^31 cells. A CAGrid keeps two of these, the
+ * front and back buffers, and reaches them a row at a time wherever it can, so
+ * the rules run the same on any kind of storage.
+ */
+public abstract class CellStorage
+{
+    /**
+     * Construct storage; the subclass holds the cells.
+     */
+    protected CellStorage()
+    {
+    }
+
+
+    /**
+     * Makes the storage for a grid.
+     */
+    public interface Factory
+    {
+        /**
+         * Make storage for the given number of cells, all in state 0.
+         * @param size the number of cells
+         * @return the storage
+         */
+        public CellStorage create(long size);
+    }
+
+
+    /**
+     * Get the number of cells.
+     * @return the size
+     */
+    public abstract long size();
+
+
+    /**
+     * Get one cell.
+     * @param index the index of the cell
+     * @return the state of the cell
+     */
+    public abstract byte get(long index);
+
+
+    /**
+     * Set one cell.
+     * @param index the index of the cell
+     * @param state the new state
+     */
+    public abstract void set(long index, byte state);
+
+
+    /**
+     * Copy a run of cells out.
+     * @param index the index of the first cell
+     * @param states receives the states
+     * @param offset the position in states of the first cell
+     * @param length the number of cells
+     */
+    public abstract void get(long index, byte[] states, int offset, int length);
+
+
+    /**
+     * Copy a run of cells in.
+     * @param index the index of the first cell
+     * @param states the states
+     * @param offset the position in states of the first cell
+     * @param length the number of cells
+     */
+    public abstract void set(long index, byte[] states, int offset, int length);
+}
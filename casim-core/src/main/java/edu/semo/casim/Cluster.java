@@ -0,0 +1,318 @@
+package edu.semo.casim;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a Covid7State simulation too big for one machine, split into strips
+ * across several ClusterNode processes. This is the coordinator: it hands out
+ * the strips, then sums the counts the nodes send back and writes them as CSV,
+ * in the same form as HeadlessRunner. The nodes exchange their edge rows with
+ * each other directly, and since every tile draws the same random numbers
+ * wherever it is stepped, the run matches a HeadlessRunner with the same seed.
+ *
+ * java -cp casim-core.jar edu.semo.casim.Cluster --nodes 4 --port 7070 --width 8192 --height 8192 --out run.csv
+ *
+ * then start four nodes, on this machine or others, with
+ *
+ * java -cp casim-core.jar edu.semo.casim.ClusterNode --coordinator host:7070
+ *
+ * --local n instead starts n nodes as processes on this machine, which is the
+ * simplest way to try it out. The height must be a multiple of TILE_SIZE, with
+ * at least one tile row per node.
+ *
+ * --check true also steps the whole grid in this process, and stops the run
+ * at the first generation whose counts differ from the strips' total. It is
+ * a check that the strips, and the ghost rows passed between them, give the
+ * same run as one grid.
+ */
+public class Cluster
+{
+    private int nodes = 0;          // The number of nodes
+    private boolean local = false;  // True to start the nodes as local processes
+    private int port = 0;           // The port to listen on, 0 for any
+    private int width = 800;        // The width of the grid
+    private int height = 832;       // The height of the grid
+    private int percentInfected = -1; // Initial percent infected, -1 for a uniform random grid
+    private long seed = 0;          // The seed of the run
+    private int generations = 100;  // The number of generations to run
+    private String out = "-";       // The output path, - for standard out
+    private int threads = 0;        // The number of stepping threads of local nodes, 0 for the common pool
+    private Neighborhood neighborhood = Neighborhood.moore(1); // The neighbors a cell is exposed to
+    private boolean check = false;  // True to compare the run with the whole grid stepped here
+
+
+    /**
+     * Parse the command line.
+     * @param args the arguments
+     * @throws IllegalArgumentException if an argument is not understood
+     */
+    public Cluster(String[] args)
+    {
+        for(int i=0; i<args.length; i++) {
+            String opt = args[i];
+            if(i+1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + opt);
+            }
+            String val = args[++i];
+
+            switch(opt) {
+                case "--nodes":       nodes = Integer.parseInt(val); break;
+                case "--local":       nodes = Integer.parseInt(val); local = true; break;
+                case "--port":        port = Integer.parseInt(val); break;
+                case "--width":       width = Integer.parseInt(val); break;
+                case "--height":      height = Integer.parseInt(val); break;
+                case "--infected":    percentInfected = Integer.parseInt(val); break;
+                case "--seed":        seed = Long.parseLong(val); break;
+                case "--generations": generations = Integer.parseInt(val); break;
+                case "--out":         out = val; break;
+                case "--threads":     threads = Integer.parseInt(val); break;
+                case "--neighborhood": neighborhood = Neighborhood.parse(val); break;
+                case "--check":       check = Boolean.parseBoolean(val); break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + opt);
+            }
+        }
+
+        if(nodes < 1) {
+            throw new IllegalArgumentException("--nodes or --local must be at least 1");
+        }
+        if(height % CAGrid.TILE_SIZE != 0 || height / CAGrid.TILE_SIZE < nodes) {
+            throw new IllegalArgumentException("the height must be a multiple of " + CAGrid.TILE_SIZE
+                                               + " with a tile row for every node");
+        }
+        if(neighborhood.getRadius() > CAGrid.TILE_SIZE) {
+            throw new IllegalArgumentException("the radius must be at most " + CAGrid.TILE_SIZE);
+        }
+    }
+
+
+    /**
+     * Hand out the strips, run the simulation and write the statistics.
+     * @throws IOException if a node cannot be reached or the output cannot be written
+     */
+    public void run() throws IOException
+    {
+        List<Process> processes = new ArrayList<Process>();
+        SocketChannel [] ch = new SocketChannel[nodes];
+
+        try(ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(port))) {
+            int p = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            if(local) {
+                processes = launch(p);
+            } else {
+                System.err.printf("waiting for %d nodes on port %d%n", nodes, p);
+            }
+
+            //the nodes are ranked in the order they join
+            String [] hosts = new String[nodes];
+            int [] ports = new int[nodes];
+            for(int k=0; k<nodes; k++) {
+                ch[k] = server.accept();
+                ByteBuffer hello = ClusterNode.read(ch[k], 12);
+                if(hello.getInt() != ClusterNode.MAGIC || hello.getInt() != ClusterNode.VERSION) {
+                    throw new IOException("not a cluster node at " + ch[k].getRemoteAddress());
+                }
+                ports[k] = hello.getInt();
+                hosts[k] = ClusterNode.getString(ch[k]);
+            }
+
+            //whole tile rows for each, as evenly as they go
+            int tileRows = height / CAGrid.TILE_SIZE;
+            int r = neighborhood.getRadius();
+            for(int k=0; k<nodes; k++) {
+                int first = k * tileRows / nodes * CAGrid.TILE_SIZE;
+                int end = (k + 1) * tileRows / nodes * CAGrid.TILE_SIZE;
+
+                ByteBuffer part = ByteBuffer.allocate(512 + 4 * (2*r + 1) * (2*r + 1));
+                part.putInt(k);
+                part.putInt(nodes);
+                part.putInt(width);
+                part.putInt(height);
+                part.putInt(first);
+                part.putInt(end - first);
+                part.putLong(seed);
+                part.putInt(percentInfected);
+                part.putInt(generations);
+                part.putInt(r);
+                for(int dy=-r; dy<=r; dy++) {
+                    for(int dx=-r; dx<=r; dx++) {
+                        part.putInt(neighborhood.getWeight(dx, dy));
+                    }
+                }
+                ClusterNode.putString(part, hosts[(k + 1) % nodes]);
+                part.putInt(ports[(k + 1) % nodes]);
+                ClusterNode.write(ch[k], part);
+            }
+
+            collect(ch);
+        } finally {
+            for(SocketChannel c : ch) {
+                if(c != null) { c.close(); }
+            }
+            for(Process process : processes) {
+                try {
+                    if(process.waitFor() != 0) {
+                        System.err.println("a node exited with status " + process.exitValue());
+                    }
+                } catch(InterruptedException e) {
+                    process.destroy();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Start the nodes as processes running the same Java and class path as this one.
+     */
+    private List<Process> launch(int p) throws IOException
+    {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<Process>();
+
+        for(int k=0; k<nodes; k++) {
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                   ClusterNode.class.getName(),
+                                                   "--coordinator", "127.0.0.1:" + p,
+                                                   "--threads", Integer.toString(threads));
+            pb.inheritIO();
+            processes.add(pb.start());
+        }
+        return processes;
+    }
+
+
+    /**
+     * Sum the counts of every generation from the nodes, and write them.
+     */
+    private void collect(SocketChannel[] ch) throws IOException
+    {
+        Writer w;
+        if(out.equals("-")) {
+            w = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        } else {
+            w = Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8);
+        }
+
+        int numStates = Covid7State.DEFAULT_RULES.length;
+        long [] count = new long[numStates];
+        long maxInfected = 0;
+        Covid7State whole = check ? wholeGrid() : null;
+
+        long start = System.nanoTime();
+        try(PrintWriter csv = new PrintWriter(new BufferedWriter(w))) {
+            csv.print("generation,infected,max_infected,dead");
+            for(int s=0; s<numStates; s++) {
+                csv.print(",state_" + s);
+            }
+            csv.println();
+
+            for(int g=0; g<=generations; g++) {
+                Arrays.fill(count, 0);
+                for(int k=0; k<nodes; k++) {
+                    ByteBuffer in = ClusterNode.read(ch[k], 4 + 8 * numStates);
+                    if(in.getInt() != g) {
+                        throw new IOException("node " + k + " is out of step at generation " + g);
+                    }
+                    for(int s=0; s<numStates; s++) {
+                        count[s] += in.getLong();
+                    }
+                }
+
+                //states 0 and 1 are infected, and the first generation only counts toward the peak
+                long infected = count[0] + count[1];
+                maxInfected = Math.max(maxInfected, infected);
+                if(g == 0) { continue; }
+
+                if(whole != null) {
+                    whole.next();
+                    for(int s=0; s<numStates; s++) {
+                        if(whole.getStats().getCount(g, s) != count[s]) {
+                            throw new IOException("the strips differ from the whole grid at generation " + g
+                                                  + " in state " + s + ": " + count[s] + " against "
+                                                  + whole.getStats().getCount(g, s));
+                        }
+                    }
+                }
+
+                csv.print(g);
+                csv.print(',');
+                csv.print(infected);
+                csv.print(',');
+                csv.print(maxInfected);
+                csv.print(',');
+                csv.print(count[Covid7State.DEAD]);
+                for(int s=0; s<numStates; s++) {
+                    csv.print(',');
+                    csv.print(count[s]);
+                }
+                csv.println();
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.err.printf("%d generations of %dx%d on %d nodes in %.2f s (%.1f gen/s)%n",
+                          generations, width, height, nodes, secs, generations / secs);
+        if(whole != null) {
+            System.err.println("the strips match the whole grid in every generation");
+        }
+    }
+
+
+    /**
+     * Set up the whole grid as the nodes set up their strips, for --check.
+     */
+    private Covid7State wholeGrid()
+    {
+        Covid7State ca = new Covid7State(width, height);
+        ca.setSeed(seed);
+        ca.setParallelism(threads);
+        ca.setNeighborhood(neighborhood);
+        if(percentInfected != -1) {
+            ca.randomize(percentInfected);
+        } else {
+            ca.randomize();
+        }
+        return ca;
+    }
+
+
+    public static void main(String[] args)
+    {
+        Cluster cluster;
+
+        try {
+            cluster = new Cluster(args);
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: Cluster --nodes n | --local n [--port n] [--width n] [--height n]");
+            System.err.println("               [--infected percent] [--seed n] [--generations n] [--out file.csv]");
+            System.err.println("               [--threads n] [--neighborhood moore|vonneumann|circular:radius]");
+            System.err.println("               [--check true|false]");
+            System.exit(1);
+            return;
+        }
+
+        try {
+            cluster.run();
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package edu.semo.casim;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One process of a Cluster. A node holds a horizontal strip of the grid, whole
+ * tile rows of it, with a tile row of ghost cells above and below. After every
+ * generation it sends the rows at the edges of its strip to the nodes above and
+ * below, and fills its ghost rows with theirs, so each node steps its strip in
+ * lockstep with the others and exactly as one big grid would.
+ *
+ * java -cp casim-core.jar edu.semo.casim.ClusterNode --coordinator host:7070
+ *
+ * The nodes form a ring, the last strip being above the first as the grid is
+ * toroidal. Each node connects to the one below it and accepts a connection from
+ * the one above, then the coordinator only collects the population counts.
+ *
+ * Every message is big endian. A node opens with
+ *   int magic "CASC", int version, int port, string host
+ * and is answered with its part,
+ *   int rank, int nodes, int width, int height, int first row, int rows,
+ *   long seed, int percent infected, int generations, int radius,
+ *   (2*radius+1)^2 int neighborhood weights, string host, int port of the node below.
+ * A node opens to the node below with int magic, int rank. Each generation a
+ * node sends the nodes above and below
+ *   int generation, radius rows of cells
+ * and the coordinator
+ *   int generation, long count of each state.
+ * A string is a short length and that many bytes of UTF-8.
+ */
+public class ClusterNode implements Closeable
+{
+    static final int MAGIC = 0x43415343;  // "CASC"
+    static final int VERSION = 1;         // The version of the protocol
+    private static final int HALO = CAGrid.TILE_SIZE; // The rows of ghost cells above and below the strip
+
+    private SocketChannel coordinator; // The connection to the coordinator
+    private ServerSocketChannel server; // Where the node above connects
+    private SocketChannel up;          // The connection to the node above
+    private SocketChannel down;        // The connection to the node below
+    private Selector selector;         // Waits on up and down
+    private int rank;                  // The position of the strip, from the top
+    private int nodes;                 // The number of nodes
+    private int width;                 // The width of the grid
+    private int rows;                  // The number of rows in the strip
+    private int radius;                // The number of ghost rows exchanged each way
+    private int generations;           // The number of generations to run
+    private Covid7State ca;            // The strip and its ghost rows
+    private ByteBuffer toUp;           // The rows sent up
+    private ByteBuffer toDown;         // The rows sent down
+    private ByteBuffer fromUp;         // The rows received from above
+    private ByteBuffer fromDown;       // The rows received from below
+    private ByteBuffer counts;         // The counts sent to the coordinator
+
+
+    /**
+     * Join a cluster and set up the strip.
+     * @param address the coordinator
+     * @param threads the number of stepping threads, as for CAGrid.setParallelism
+     * @throws IOException if the coordinator or the other nodes cannot be reached
+     */
+    public ClusterNode(InetSocketAddress address, int threads) throws IOException
+    {
+        coordinator = SocketChannel.open(address);
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+
+        //tell the coordinator where the node above can reach us
+        String host = ((InetSocketAddress) coordinator.getLocalAddress()).getAddress().getHostAddress();
+        ByteBuffer hello = ByteBuffer.allocate(512);
+        hello.putInt(MAGIC);
+        hello.putInt(VERSION);
+        hello.putInt(((InetSocketAddress) server.getLocalAddress()).getPort());
+        putString(hello, host);
+        write(coordinator, hello);
+
+        //get our part
+        ByteBuffer part = read(coordinator, 44);
+        rank = part.getInt();
+        nodes = part.getInt();
+        width = part.getInt();
+        int height = part.getInt();
+        int first = part.getInt();
+        rows = part.getInt();
+        long seed = part.getLong();
+        int percent = part.getInt();
+        generations = part.getInt();
+        radius = part.getInt();
+        int size = 2*radius + 1;
+        ByteBuffer w = read(coordinator, 4 * size * size);
+        int [][] weights = new int[size][size];
+        for(int [] row : weights) {
+            for(int i=0; i<size; i++) {
+                row[i] = w.getInt();
+            }
+        }
+        String nextHost = getString(coordinator);
+        int nextPort = read(coordinator, 4).getInt();
+
+        //the strip, with a tile row of ghosts either side, seeded as part of the whole grid
+        ca = new Covid7State(width, rows + 2*HALO);
+        ca.setBand(1, 1 + rows / HALO, first - HALO, height);
+        ca.setSeed(seed);
+        ca.setParallelism(threads);
+        ca.setNeighborhood(Neighborhood.weighted(weights));
+        if(percent != -1) {
+            ca.randomize(percent);
+        } else {
+            ca.randomize();
+        }
+
+        int n = 4 + radius * width;
+        toUp = ByteBuffer.allocate(n);
+        toDown = ByteBuffer.allocate(n);
+        fromUp = ByteBuffer.allocate(n);
+        fromDown = ByteBuffer.allocate(n);
+        counts = ByteBuffer.allocate(4 + 8 * ca.getNumStates());
+
+        //join the ring, the node below is already listening
+        if(nodes > 1) {
+            down = SocketChannel.open(new InetSocketAddress(nextHost, nextPort));
+            ByteBuffer greet = ByteBuffer.allocate(8);
+            greet.putInt(MAGIC);
+            greet.putInt(rank);
+            write(down, greet);
+
+            up = server.accept();
+            ByteBuffer from = read(up, 8);
+            if(from.getInt() != MAGIC || from.getInt() != Math.floorMod(rank - 1, nodes)) {
+                throw new IOException("unexpected connection from " + up.getRemoteAddress());
+            }
+
+            selector = Selector.open();
+            up.configureBlocking(false);
+            down.configureBlocking(false);
+            up.register(selector, 0, fromUp);
+            down.register(selector, 0, fromDown);
+        }
+        server.close();
+    }
+
+
+    /**
+     * Step the strip through every generation, reporting the counts of each.
+     * @throws IOException if another process goes away
+     */
+    public void run() throws IOException
+    {
+        //the first generation is counted from the cells
+        long [] start = new long[ca.getNumStates()];
+        byte [] row = new byte[width];
+        for(int y=HALO; y<HALO+rows; y++) {
+            ca.getCells(0, y, row, 0, width);
+            for(byte s : row) {
+                start[s]++;
+            }
+        }
+        report(0, start);
+
+        long [] count = new long[ca.getNumStates()];
+        PopulationStats stats = ca.getStats();
+        for(int g=1; g<=generations; g++) {
+            ca.next();
+            exchange(g);
+
+            for(int s=0; s<count.length; s++) {
+                count[s] = stats.getCount(g, s);
+            }
+            report(g, count);
+        }
+    }
+
+
+    /**
+     * Swap edge rows with the nodes above and below, and fill in the ghost rows.
+     */
+    private void exchange(int generation) throws IOException
+    {
+        //the top of the strip goes up and the bottom goes down
+        fill(toUp, generation, HALO);
+        fill(toDown, generation, HALO + rows - radius);
+        fromUp.clear();
+        fromDown.clear();
+
+        if(nodes == 1) {
+            //the strip is the whole grid and wraps onto itself
+            fromUp.put(toDown);
+            fromDown.put(toUp);
+        } else {
+            SelectionKey upKey = up.keyFor(selector);
+            SelectionKey downKey = down.keyFor(selector);
+            upKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            downKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+            while(upKey.interestOps() != 0 || downKey.interestOps() != 0) {
+                selector.select();
+                for(SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel ch = (SocketChannel) key.channel();
+                    ByteBuffer in = (ByteBuffer) key.attachment();
+                    ByteBuffer out = key == upKey ? toUp : toDown;
+
+                    if(key.isReadable() && ch.read(in) < 0) {
+                        throw new EOFException("node " + (key == upKey ? "above" : "below") + " went away");
+                    }
+                    if(key.isWritable()) {
+                        ch.write(out);
+                    }
+
+                    int ops = (in.hasRemaining() ? SelectionKey.OP_READ : 0) | (out.hasRemaining() ? SelectionKey.OP_WRITE : 0);
+                    key.interestOps(ops);
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        fromUp.flip();
+        fromDown.flip();
+        if(fromUp.getInt() != generation || fromDown.getInt() != generation) {
+            throw new IOException("nodes out of step at generation " + generation);
+        }
+
+        // the rows above the strip are the bottom of the strip above, and the rows below the top of the one below
+        ca.setGhostRows(HALO - radius, fromUp.array(), 4, radius);
+        ca.setGhostRows(HALO + rows, fromDown.array(), 4, radius);
+    }
+
+
+    /**
+     * Put rows of the strip into a message.
+     */
+    private void fill(ByteBuffer out, int generation, int y)
+    {
+        out.clear();
+        out.putInt(generation);
+        for(int r=0; r<radius; r++) {
+            ca.getCells(0, y + r, out.array(), out.position(), width);
+            out.position(out.position() + width);
+        }
+        out.flip();
+    }
+
+
+    /**
+     * Send the counts of a generation to the coordinator.
+     */
+    private void report(int generation, long[] count) throws IOException
+    {
+        counts.clear();
+        counts.putInt(generation);
+        for(long c : count) {
+            counts.putLong(c);
+        }
+        write(coordinator, counts);
+    }
+
+
+    /**
+     * Leave the cluster.
+     * @throws IOException if a connection cannot be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(selector != null) {
+            selector.close();
+            up.close();
+            down.close();
+        }
+        coordinator.close();
+    }
+
+
+    /**
+     * Write a whole buffer to a blocking channel.
+     * @param ch the channel
+     * @param buf the buffer, written from its start to its position
+     * @throws IOException if the channel fails
+     */
+    static void write(SocketChannel ch, ByteBuffer buf) throws IOException
+    {
+        if(buf.position() > 0) {
+            buf.flip();
+        }
+        while(buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+
+    /**
+     * Read a number of bytes from a blocking channel.
+     * @param ch the channel
+     * @param n the number of bytes
+     * @return a buffer holding them, ready to get from
+     * @throws IOException if the channel fails or closes first
+     */
+    static ByteBuffer read(SocketChannel ch, int n) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        while(buf.hasRemaining()) {
+            if(ch.read(buf) < 0) {
+                throw new EOFException("connection closed by " + ch.getRemoteAddress());
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+
+    /**
+     * Put a string.
+     * @param buf the buffer
+     * @param s the string
+     */
+    static void putString(ByteBuffer buf, String s)
+    {
+        byte [] b = s.getBytes(StandardCharsets.UTF_8);
+        buf.putShort((short) b.length);
+        buf.put(b);
+    }
+
+
+    /**
+     * Read a string from a blocking channel.
+     * @param ch the channel
+     * @return the string
+     * @throws IOException if the channel fails or closes first
+     */
+    static String getString(SocketChannel ch) throws IOException
+    {
+        int n = read(ch, 2).getShort() & 0xffff;
+        return new String(read(ch, n).array(), StandardCharsets.UTF_8);
+    }
+
+
+    public static void main(String[] args)
+    {
+        InetSocketAddress address = null;
+        int threads = 0;
+
+        try {
+            for(int i=0; i<args.length; i++) {
+                String opt = args[i];
+                if(i+1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + opt);
+                }
+                String val = args[++i];
+
+                switch(opt) {
+                    case "--coordinator":
+                        int colon = val.lastIndexOf(':');
+                        if(colon < 0) {
+                            throw new IllegalArgumentException("coordinator must be host:port");
+                        }
+                        address = new InetSocketAddress(val.substring(0, colon), Integer.parseInt(val.substring(colon + 1)));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(val);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + opt);
+                }
+            }
+            if(address == null) {
+                throw new IllegalArgumentException("no coordinator given");
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: ClusterNode --coordinator host:port [--threads n]");
+            System.exit(1);
+            return;
+        }
+
+        try(ClusterNode node = new ClusterNode(address, threads)) {
+            node.run();
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
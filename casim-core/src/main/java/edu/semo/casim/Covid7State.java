@@ -0,0 +1,350 @@
+package edu.semo.casim;
+
+public class Covid7State extends CAGrid {
+
+    private static final int RADIUS = 1; // The radius of the default neighborhood
+    static final double DEFAULT_RULES[][] = {
+        {0.9, 0, 0.5, 0.6, 0.4, 0.45, 0.5},
+        {0.9, 0.1, 0.9, 0.1, 0.8, 0.2, 0.1},
+        {0.7, 0.9, 0.8, 0.65, 0.99, 0.88, 0},
+        {0.6, 0.8, 0.77, 0.8, 0.89, 0.92, 0.78},
+        {0.1, 0.1, 0.8, 0.1, 0.9, 0.1, 0.1},
+        {0.4, 0.1, 0.4, 0.6, 0.7, 0.5, 0.1},
+        {0, 0, 0, 0, 0, 0, 1}
+    };
+
+    public static final int DEAD = 6; // The absorbing state
+
+    private long currentlyInfected;
+    private long maxInfected;
+    private int maxInfectedGeneration; // The generation in which maxInfected was reached
+    private long numDead;
+    private TransitionTable rules; // The compiled transition rules
+    private TransitionTable [] regionRules = new TransitionTable[RegionMap.MAX_REGIONS]; // regionRules[r] are the compiled rules of region r, null for rules
+    private Neighborhood neighborhood = Neighborhood.moore(RADIUS); // The neighbors a cell is exposed to
+
+    public Covid7State(int width, int height)
+    {
+        this(width, height, DEFAULT_RULES);
+    }
+
+    /**
+     * Construct a grid with a custom rule matrix.
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     * @param rules 7x7 matrix, rules[from][to] is the chance one neighbor in
+     *              state "to" moves a cell in state "from" to "to".
+     */
+    public Covid7State(int width, int height, double[][] rules)
+    {
+        this(width, height, rules, HeapStorage.FACTORY);
+    }
+
+    /**
+     * Construct a grid with the given kind of storage, such as
+     * OffHeapStorage.FACTORY for grids larger than the heap.
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     * @param rules 7x7 matrix, as for Covid7State(int, int, double[][]).
+     * @param storage Makes the cell buffers.
+     */
+    public Covid7State(int width, int height, double[][] rules, CellStorage.Factory storage)
+    {
+        super(width, height, 7, true, storage);
+        currentlyInfected = 0;
+        maxInfected = 0;
+        maxInfectedGeneration = 0;
+        setRules(rules);
+        setSparse(true);
+    }
+
+    /**
+     * Replace the transition rules. They are compiled once here, and take
+     * effect from the next generation.
+     * @param rules 7x7 matrix, rules[from][to] is the chance one neighbor in
+     *              state "to" moves a cell in state "from" to "to".
+     */
+    public void setRules(double[][] rules) {
+        if(rules.length != getNumStates()) {
+            throw new IllegalArgumentException("expected a " + getNumStates() + "x" + getNumStates() + " rule matrix");
+        }
+        setRules(new TransitionTable(rules, neighborhood.getMaxCount()));
+    }
+
+    /**
+     * Replace the transition rules with ones already compiled, so they can be
+     * swapped in mid run at no cost. They take effect from the next generation.
+     * @param table the rules, compiled for getNeighborhood().getMaxCount()
+     */
+    public void setRules(TransitionTable table) {
+        this.rules = checkTable(table);
+        markAllActive();
+    }
+
+    /**
+     * Check that a compiled table fits this grid.
+     */
+    private TransitionTable checkTable(TransitionTable table) {
+        if(table.getNumStates() != getNumStates() || table.getMaxCount() != neighborhood.getMaxCount()) {
+            throw new IllegalArgumentException("the table is not compiled for " + getNumStates()
+                                               + " states and counts up to " + neighborhood.getMaxCount());
+        }
+        return table;
+    }
+
+    /**
+     * Replace the neighborhood, for instance with a wider one to model
+     * airborne spread. The counts the rules see are the summed weights of the
+     * neighbors, and take effect from the next generation.
+     * @param neighborhood the neighborhood, at most TILE_SIZE in radius
+     */
+    public void setNeighborhood(Neighborhood neighborhood) {
+        if(neighborhood.getRadius() > TILE_SIZE) {
+            throw new IllegalArgumentException("the radius must be at most " + TILE_SIZE);
+        }
+        this.neighborhood = neighborhood;
+        setRules(rules.getRules());
+        for(int r=0; r<regionRules.length; r++) {
+            if(regionRules[r] != null) {
+                regionRules[r] = new TransitionTable(regionRules[r].getRules(), neighborhood.getMaxCount());
+            }
+        }
+    }
+
+    /**
+     * Give the cells of one region of the region map rules of their own, in
+     * place of those of setRules(). They are compiled once here, and take
+     * effect from the next generation.
+     * @param region the region, 1 to 255
+     * @param rules 7x7 matrix as for setRules(), or null to use the grid's rules again
+     */
+    public void setRegionRules(int region, double[][] rules) {
+        if(region <= RegionMap.EMPTY || region >= RegionMap.MAX_REGIONS) {
+            throw new IllegalArgumentException("regions with rules must be between 1 and " + (RegionMap.MAX_REGIONS - 1));
+        }
+        if(rules != null && rules.length != getNumStates()) {
+            throw new IllegalArgumentException("expected a " + getNumStates() + "x" + getNumStates() + " rule matrix");
+        }
+        setRegionRules(region, rules == null ? null : new TransitionTable(rules, neighborhood.getMaxCount()));
+    }
+
+    /**
+     * Give the cells of one region rules already compiled, as setRules() does
+     * for the whole grid.
+     * @param region the region, 1 to 255
+     * @param table the rules, compiled for getNeighborhood().getMaxCount(), or null to use the grid's rules again
+     */
+    public void setRegionRules(int region, TransitionTable table) {
+        if(region <= RegionMap.EMPTY || region >= RegionMap.MAX_REGIONS) {
+            throw new IllegalArgumentException("regions with rules must be between 1 and " + (RegionMap.MAX_REGIONS - 1));
+        }
+        regionRules[region] = table == null ? null : checkTable(table);
+        markAllActive();
+    }
+
+    /**
+     * Get the rules of one region.
+     * @param region the region, 1 to 255
+     * @return a copy of the region's rule matrix, or null if it uses the grid's rules
+     */
+    public double[][] getRegionRules(int region) {
+        TransitionTable t = regionRules[region];
+        return t == null ? null : t.getRules();
+    }
+
+    /**
+     * Get the neighborhood.
+     * @return the neighborhood
+     */
+    public Neighborhood getNeighborhood() {
+        return neighborhood;
+    }
+
+    /**
+     * Get the transition rules.
+     * @return a copy of the rule matrix
+     */
+    public double[][] getRules() {
+        return rules.getRules();
+    }
+
+    public long getCurrentlyInfected() {
+        return currentlyInfected;
+    }
+
+    public long getMaxInfected() {
+        return maxInfected;
+    }
+
+    /**
+     * Get the generation in which the number infected peaked.
+     * @return the generation of getMaxInfected()
+     */
+    public int getMaxInfectedGeneration() {
+        return maxInfectedGeneration;
+    }
+
+    public long getNumDead(){
+        return numDead;
+    }
+
+    /**
+     * Get the share of the grid which is dead.
+     * @return a percentage from 0 to 100, not rounded
+     */
+    public double getPercentDead(){
+        return ((double)numDead / (double)Math.max(getPopulation(), 1)) * 100;
+    }
+
+    @Override
+    protected boolean isAbsorbing(int state) {
+        boolean absorbing = rules.isAbsorbing(state);
+        for(TransitionTable t : regionRules) {
+            absorbing &= t == null || t.isAbsorbing(state);
+        }
+        return absorbing;
+    }
+
+    @Override
+    protected void step(Tile tile) {
+        TransitionTable rules = this.rules;
+        TransitionTable [] regionRules = this.regionRules;
+        Neighborhood neighborhood = this.neighborhood;
+        RegionMap regions = getRegions();
+        boolean live = false;
+        int x0 = tile.getX0();
+        int w = tile.getWidth();
+        int [] count = countBuffer(getNumStates() * w);
+        double [] draw = drawBuffer(w);
+        byte [] row = rowBuffer(3*w);
+        RandomSource random = tile.getRandom();
+
+        //nobody lives here, so the cells only need carrying over
+        if(tile.isEmpty()) {
+            for(int y=tile.getY0(); y<tile.getY1(); y++) {
+                getCells(x0, y, row, 0, w);
+                setNextCells(x0, y, row, 0, w);
+            }
+            return;
+        }
+
+        //step a row at a time, the current states first in row, the next after them and then the regions
+        for(int y=tile.getY0(); y<tile.getY1(); y++) {
+            getCells(x0, y, row, 0, w);
+            if(regions == null) {
+                countNeighborhoodRow(y, x0, tile.getX1(), neighborhood, count);
+                random.nextDoubles(draw, 0, w);
+                live |= rules.nextRow(row, count, w, draw, row, w, w);
+                for(int i=0; i<w; i++) {
+                    tile.record(row[i], row[w + i]);
+                }
+                setNextCells(x0, y, row, w, w);
+                continue;
+            }
+
+            //each run of one region steps through its own table, and empty runs are carried over
+            regions.get(x0, y, row, 2*w, w);
+            boolean counted = false;
+            for(int a=0, b; a<w; a=b) {
+                byte region = row[2*w + a];
+                for(b=a+1; b<w && row[2*w + b] == region; b++) { }
+                if(region == RegionMap.EMPTY) {
+                    System.arraycopy(row, a, row, w + a, b - a);
+                    continue;
+                }
+                if(!counted) {
+                    countNeighborhoodRow(y, x0, tile.getX1(), neighborhood, count);
+                    random.nextDoubles(draw, 0, w);
+                    counted = true;
+                }
+                TransitionTable table = regionRules[region & 0xff];
+                live |= (table == null ? rules : table).nextRun(row, count, w, draw, row, w, a, b);
+                for(int i=a; i<b; i++) {
+                    tile.record(row[i], row[w + i]);
+                }
+            }
+            setNextCells(x0, y, row, w, w);
+        }
+
+        if(live) {
+            tile.markLive();
+        }
+    }
+
+    @Override
+    protected void afterStep() {
+        PopulationStats stats = getStats();
+        int g = getGeneration();
+
+        //states 0 and 1 are infected
+        currentlyInfected = stats.getCount(g, 0) + stats.getCount(g, 1);
+        numDead = stats.getCount(g, DEAD);
+
+        //calculate maxinfected ever, the first step also tells us the starting grid
+        for(int i=Math.max(stats.getFirstGeneration(), g-1); i<=g; i++) {
+            long infected = stats.getCount(i, 0) + stats.getCount(i, 1);
+            if(infected > maxInfected) {
+                maxInfected = infected;
+                maxInfectedGeneration = i;
+            }
+        }
+    }
+
+    @Override
+    protected long[] getCounters() {
+        return new long[] {currentlyInfected, maxInfected, maxInfectedGeneration, numDead};
+    }
+
+    @Override
+    protected void setCounters(long[] counters) {
+        if(counters.length != 4) {
+            throw new IllegalArgumentException("expected 4 counters, got " + counters.length);
+        }
+        currentlyInfected = counters[0];
+        maxInfected = counters[1];
+        maxInfectedGeneration = (int) counters[2];
+        numDead = counters[3];
+    }
+
+    /**
+     * Randomze the grid
+     * @param percentInfected double from 0 to 100
+     */
+    public void randomize(int percentInfected){
+        for(int y=0; y<getHeight(); y++) {
+            RandomSource random = rowRandom(y);
+            for(int x=0; x<getWidth(); x++) {
+                if(random.nextInt(0, 100) < percentInfected){
+                    setCell(x, y, random.nextInt(0, 2));
+                }else{
+                    setCell(x, y, random.nextInt(2, getNumStates()));
+                }
+            }
+        }
+    }
+
+    public void randomizeLowInfected(){
+        for(int y=0; y<getHeight(); y++) {
+            RandomSource random = rowRandom(y);
+            for(int x=0; x<getWidth(); x++) {
+                setCell(x, y, random.nextInt(2, getNumStates()));
+                if(random.nextInt(0, 100) < 1){
+                    setCell(x, y, random.nextInt(0, 2));
+                }
+            }
+        }
+    }
+
+    public void randomizeHighInfected(){
+        for(int y=0; y<getHeight(); y++) {
+            RandomSource random = rowRandom(y);
+            for(int x=0; x<getWidth(); x++) {
+                setCell(x, y, random.nextInt(0, 2));
+                if(random.nextInt(0, 100) < 1){
+                    setCell(x, y, random.nextInt(2, getNumStates()));
+                }
+            }
+        }
+    }
+
+}
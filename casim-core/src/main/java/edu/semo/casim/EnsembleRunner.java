@@ -0,0 +1,243 @@
+package edu.semo.casim;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs many replicates of a Covid7State simulation, over several initial
+ * infection percentages and a range of seeds, and writes the mean and
+ * percentiles of the infected and dead in each generation as CSV.
+ *
+ * java -cp casim-core.jar edu.semo.casim.EnsembleRunner --width 400 --height 400 --infected 1,5,10 --replicates 100 --generations 500 --out ensemble.csv
+ *
+ * Replicates run concurrently on a work stealing pool with one thread per
+ * core, or --threads of them, and each steps its grid on its own thread. A
+ * grid is only made per thread, and is reset and reused for every replicate
+ * that thread runs, so the heap does not churn however many replicates there are.
+ */
+public class EnsembleRunner
+{
+    private static final double [] PERCENTILES = {5, 50, 95}; // The percentiles reported
+
+    private int width = 400;        // The width of the grids
+    private int height = 400;       // The height of the grids
+    private int [] percents = {-1}; // Initial percents infected, -1 for a uniform random grid
+    private int replicates = 100;   // The number of replicates of each percent
+    private long seed = 0;          // The seed the replicate seeds are derived from
+    private int generations = 100;  // The number of generations to run
+    private String out = "-";       // The output path, - for standard out
+    private int threads = 0;        // The number of replicates run at once, 0 for one per core
+    private ConcurrentLinkedQueue<Covid7State> grids; // Grids not in use, kept for the next replicate
+
+
+    /**
+     * Parse the command line.
+     * @param args the arguments
+     * @throws IllegalArgumentException if an argument is not understood
+     */
+    public EnsembleRunner(String[] args)
+    {
+        for(int i=0; i<args.length; i++) {
+            String opt = args[i];
+            if(i+1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + opt);
+            }
+            String val = args[++i];
+
+            switch(opt) {
+                case "--width":       width = Integer.parseInt(val); break;
+                case "--height":      height = Integer.parseInt(val); break;
+                case "--infected":    percents = Arrays.stream(val.split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "--replicates":  replicates = Integer.parseInt(val); break;
+                case "--seed":        seed = Long.parseLong(val); break;
+                case "--generations": generations = Integer.parseInt(val); break;
+                case "--out":         out = val; break;
+                case "--threads":     threads = Integer.parseInt(val); break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + opt);
+            }
+        }
+        if(replicates < 1 || generations < 1) {
+            throw new IllegalArgumentException("there must be at least one replicate and one generation");
+        }
+        grids = new ConcurrentLinkedQueue<Covid7State>();
+    }
+
+
+    /**
+     * Run every replicate and write the aggregated statistics.
+     * @throws IOException if the output cannot be written
+     */
+    public void run() throws IOException
+    {
+        int p = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(p);
+
+        // infected[k][r] and dead[k][r] hold replicate r of percent k, one entry per generation
+        int [][][] infected = new int[percents.length][replicates][];
+        int [][][] dead = new int[percents.length][replicates][];
+
+        long start = System.nanoTime();
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            for(int k=0; k<percents.length; k++) {
+                for(int r=0; r<replicates; r++) {
+                    final int pk = k;
+                    final int pr = r;
+                    tasks.add(pool.submit(() -> replicate(pk, pr, infected, dead)));
+                }
+            }
+            for(ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        write(infected, dead);
+
+        int total = percents.length * replicates;
+        System.err.printf("%d replicates of %d generations of %dx%d in %.2f s (%.0f replicates/hour)%n",
+                          total, generations, width, height, secs, total * 3600 / secs);
+    }
+
+
+    /**
+     * Run one replicate on a reused grid.
+     */
+    private void replicate(int k, int r, int[][][] infected, int[][][] dead)
+    {
+        Covid7State ca = grids.poll();
+        if(ca == null) {
+            ca = new Covid7State(width, height);
+            ca.setParallelism(1);
+        }
+
+        try {
+            //start the grid over
+            ca.setSeed(SplitMixRandom.mix(seed ^ SplitMixRandom.mix(((long) percents[k] << 32) | r)));
+            if(percents[k] != -1) {
+                ca.randomize(percents[k]);
+            } else {
+                ca.randomize();
+            }
+            ca.setGeneration(0);
+            ca.setCounters(new long[4]);
+
+            for(int g=0; g<generations; g++) {
+                ca.next();
+            }
+
+            //the statistics hold every generation from 0
+            PopulationStats stats = ca.getStats();
+            int [] inf = new int[generations + 1];
+            int [] dd = new int[generations + 1];
+            for(int g=0; g<=generations; g++) {
+                inf[g] = (int) (stats.getCount(g, 0) + stats.getCount(g, 1));
+                dd[g] = (int) stats.getCount(g, Covid7State.DEAD);
+            }
+            infected[k][r] = inf;
+            dead[k][r] = dd;
+        } finally {
+            grids.offer(ca);
+        }
+    }
+
+
+    /**
+     * Write the mean and percentiles of each percent and generation.
+     */
+    private void write(int[][][] infected, int[][][] dead) throws IOException
+    {
+        Writer w;
+        if(out.equals("-")) {
+            w = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        } else {
+            w = Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8);
+        }
+
+        try(PrintWriter csv = new PrintWriter(new BufferedWriter(w))) {
+            csv.print("percent_infected,generation,replicates");
+            for(String name : new String[] {"infected", "dead"}) {
+                csv.print("," + name + "_mean");
+                for(double q : PERCENTILES) {
+                    csv.print("," + name + "_p" + (int) q);
+                }
+            }
+            csv.println();
+
+            int [] column = new int[replicates];
+            for(int k=0; k<percents.length; k++) {
+                for(int g=0; g<=generations; g++) {
+                    csv.print(percents[k]);
+                    csv.print(',');
+                    csv.print(g);
+                    csv.print(',');
+                    csv.print(replicates);
+                    summarize(csv, infected[k], g, column);
+                    summarize(csv, dead[k], g, column);
+                    csv.println();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Print the mean and percentiles of one generation across the replicates.
+     */
+    private void summarize(PrintWriter csv, int[][] series, int g, int[] column)
+    {
+        long sum = 0;
+        for(int r=0; r<replicates; r++) {
+            column[r] = series[r][g];
+            sum += column[r];
+        }
+        Arrays.sort(column);
+
+        csv.print(',');
+        csv.print(String.format("%.2f", (double) sum / replicates));
+        for(double q : PERCENTILES) {
+            // nearest rank
+            int rank = (int) Math.ceil(q / 100 * replicates) - 1;
+            csv.print(',');
+            csv.print(column[Math.max(0, Math.min(rank, replicates - 1))]);
+        }
+    }
+
+
+    public static void main(String[] args)
+    {
+        EnsembleRunner runner;
+
+        try {
+            runner = new EnsembleRunner(args);
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: EnsembleRunner [--width n] [--height n] [--infected p1,p2,...] [--replicates n]");
+            System.err.println("                      [--seed n] [--generations n] [--out file.csv] [--threads n]");
+            System.exit(1);
+            return;
+        }
+
+        try {
+            runner.run();
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package edu.semo.casim;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Runs a Covid7State simulation from the command line, without JavaFX, and
+ * writes its statistics as CSV, one row per generation.
+ *
+ * java -jar casim-core.jar --width 800 --height 800 --infected 5 --seed 42 --generations 1000 --out run.csv
+ *
+ * A run can be saved at its end with --checkpoint, and carried on later with
+ * --resume, which takes the grid, generation and seed from the saved file.
+ *
+ * --storage picks where the cells live: heap (the default), direct for off heap
+ * buffers, or a directory to map them from files in, for grids beyond memory.
+ *
+ * --neighborhood picks the neighbors a cell is exposed to, as a shape and a
+ * radius: moore:1 (the default), vonneumann:3 or circular:8.
+ *
+ * --metrics times the run as it goes, writing a row of Metrics a second to a
+ * CSV file, or log lines to standard error if given -, and registers them with
+ * JMX for jconsole and the like.
+ *
+ * --swap and --travel move people about between generations: the chance each
+ * swaps places with a neighbor, and the chance each travels anywhere on the
+ * grid, every generation. Both are 0 by default.
+ *
+ * --regions reads a region map, a PGM image or a raw file of a byte a cell the
+ * size of the grid. Black, region 0, is where nobody lives; those cells keep
+ * their state and are left out of the statistics.
+ *
+ * --stats streams the population of each state, and of each state in each
+ * region when there is a region map, to a file from a background thread: CSV
+ * if it is named .csv, and the compact columnar format StatsReader reads
+ * otherwise. It keeps up with runs far faster than the CSV of --out.
+ */
+public class HeadlessRunner
+{
+    private int width = 800;        // The width of the grid
+    private int height = 800;       // The height of the grid
+    private int percentInfected = -1; // Initial percent infected, -1 for a uniform random grid
+    private long seed = 0;          // The seed of the run
+    private int generations = 100;  // The number of generations to run
+    private String out = "-";       // The output path, - for standard out
+    private int threads = 0;        // The number of stepping threads, 0 for the common pool
+    private String resume = null;   // The snapshot to start from, null for a new grid
+    private String checkpoint = null; // The snapshot to save at the end, null for none
+    private CellStorage.Factory storage = HeapStorage.FACTORY; // Makes the cell buffers
+    private Neighborhood neighborhood = Neighborhood.moore(1); // The neighbors a cell is exposed to
+    private String metrics = null;  // The metrics output path, - for standard error, null for none
+    private Mobility mobility = null; // Moves cells between generations, null for none
+    private String regions = null;  // The region map to read, null for none
+    private String statsPath = null; // Where to stream the statistics, null for nowhere
+
+
+    /**
+     * Parse the command line.
+     * @param args the arguments
+     * @throws IllegalArgumentException if an argument is not understood
+     */
+    public HeadlessRunner(String[] args)
+    {
+        double swapRate = 0;
+        double travelRate = 0;
+        for(int i=0; i<args.length; i++) {
+            String opt = args[i];
+            if(i+1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + opt);
+            }
+            String val = args[++i];
+
+            switch(opt) {
+                case "--width":       width = Integer.parseInt(val); break;
+                case "--height":      height = Integer.parseInt(val); break;
+                case "--infected":    percentInfected = Integer.parseInt(val); break;
+                case "--seed":        seed = Long.parseLong(val); break;
+                case "--generations": generations = Integer.parseInt(val); break;
+                case "--out":         out = val; break;
+                case "--threads":     threads = Integer.parseInt(val); break;
+                case "--resume":      resume = val; break;
+                case "--checkpoint":  checkpoint = val; break;
+                case "--storage":     storage = parseStorage(val); break;
+                case "--neighborhood": neighborhood = Neighborhood.parse(val); break;
+                case "--metrics":     metrics = val; break;
+                case "--swap":        swapRate = Double.parseDouble(val); break;
+                case "--travel":      travelRate = Double.parseDouble(val); break;
+                case "--regions":     regions = val; break;
+                case "--stats":       statsPath = val; break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + opt);
+            }
+        }
+        if(swapRate != 0 || travelRate != 0) {
+            mobility = new Mobility(swapRate, travelRate);
+        }
+    }
+
+
+    /**
+     * Turn a --storage value into a storage factory.
+     */
+    private static CellStorage.Factory parseStorage(String val)
+    {
+        switch(val) {
+            case "heap":   return HeapStorage.FACTORY;
+            case "direct": return OffHeapStorage.FACTORY;
+            default:
+                if(!Files.isDirectory(Paths.get(val))) {
+                    throw new IllegalArgumentException("storage must be heap, direct or a directory");
+                }
+                return OffHeapStorage.mapped(Paths.get(val));
+        }
+    }
+
+
+    /**
+     * Run the simulation and write the statistics.
+     * @throws IOException if the output cannot be written
+     */
+    public void run() throws IOException
+    {
+        Covid7State ca;
+        if(resume != null) {
+            Snapshot snap = Snapshot.readHeader(Paths.get(resume));
+            ca = new Covid7State(snap.getWidth(), snap.getHeight(), Covid7State.DEFAULT_RULES, storage);
+            Snapshot.read(Paths.get(resume), ca);
+        } else {
+            ca = new Covid7State(width, height, Covid7State.DEFAULT_RULES, storage);
+            ca.setSeed(seed);
+            if(percentInfected != -1) {
+                ca.randomize(percentInfected);
+            } else {
+                ca.randomize();
+            }
+        }
+        ca.setParallelism(threads);
+        ca.setNeighborhood(neighborhood);
+        ca.setMobility(mobility);
+        if(regions != null) {
+            ca.setRegions(RegionMap.read(Paths.get(regions), ca.getWidth(), ca.getHeight(), storage));
+        }
+
+        Writer w;
+        if(out.equals("-")) {
+            w = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        } else {
+            w = Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8);
+        }
+
+        MetricsReporter reporter = null;
+        PrintWriter log = null;
+        if(metrics != null) {
+            Metrics m = new Metrics("headless");
+            m.register();
+            ca.setMetrics(m);
+            if(metrics.equals("-")) {
+                log = new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8));
+            } else {
+                log = new PrintWriter(Files.newBufferedWriter(Paths.get(metrics), StandardCharsets.UTF_8));
+            }
+            reporter = new MetricsReporter(m, log, !metrics.equals("-"));
+            reporter.start(1000);
+        }
+
+        StatsWriter statsOut = null;
+        if(statsPath != null) {
+            statsOut = new StatsWriter(ca, Paths.get(statsPath), true);
+        }
+
+        long start = System.nanoTime();
+        try(PrintWriter csv = new PrintWriter(new BufferedWriter(w))) {
+            csv.print("generation,infected,max_infected,dead");
+            for(int s=0; s<ca.getNumStates(); s++) {
+                csv.print(",state_" + s);
+            }
+            csv.println();
+
+            PopulationStats stats = ca.getStats();
+            for(int g=0; g<generations; g++) {
+                ca.next();
+                int gen = ca.getGeneration();
+                csv.print(gen);
+                csv.print(',');
+                csv.print(ca.getCurrentlyInfected());
+                csv.print(',');
+                csv.print(ca.getMaxInfected());
+                csv.print(',');
+                csv.print(ca.getNumDead());
+                for(int s=0; s<ca.getNumStates(); s++) {
+                    csv.print(',');
+                    csv.print(stats.getCount(gen, s));
+                }
+                csv.println();
+            }
+        } finally {
+            if(statsOut != null) {
+                statsOut.close();
+            }
+            if(reporter != null) {
+                reporter.close();
+                ca.getMetrics().unregister();
+                if(!metrics.equals("-")) { log.close(); }
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        if(checkpoint != null) {
+            Snapshot.write(ca, Paths.get(checkpoint), true);
+        }
+
+        System.err.printf("%d generations of %dx%d in %.2f s (%.1f gen/s)%n",
+                          generations, ca.getWidth(), ca.getHeight(), secs, generations / secs);
+    }
+
+
+    public static void main(String[] args)
+    {
+        HeadlessRunner runner;
+
+        try {
+            runner = new HeadlessRunner(args);
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: HeadlessRunner [--width n] [--height n] [--infected percent] [--seed n]");
+            System.err.println("                      [--generations n] [--out file.csv] [--threads n]");
+            System.err.println("                      [--resume file.casn] [--checkpoint file.casn]");
+            System.err.println("                      [--storage heap|direct|directory]");
+            System.err.println("                      [--neighborhood moore|vonneumann|circular:radius]");
+            System.err.println("                      [--metrics file.csv|-]");
+            System.err.println("                      [--swap rate] [--travel rate] [--regions file.pgm|file.raw]");
+            System.err.println("                      [--stats file.cass|file.csv]");
+            System.exit(1);
+            return;
+        }
+
+        try {
+            runner.run();
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
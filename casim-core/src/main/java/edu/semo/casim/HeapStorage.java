@@ -0,0 +1,61 @@
+package edu.semo.casim;
+
+/**
+ * Cells kept in a byte array on the heap. This is the default storage, and
+ * the fastest, but it is limited to a little under 2^31 cells.
+ */
+public class HeapStorage extends CellStorage
+{
+    public static final Factory FACTORY = HeapStorage::new; // Makes heap storage
+
+    private byte [] cells; // The states of the cells
+
+
+    /**
+     * Construct storage for a number of cells.
+     * @param size the number of cells
+     * @throws IllegalArgumentException if there are too many cells for an array
+     */
+    public HeapStorage(long size)
+    {
+        if(size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(size + " cells do not fit on the heap, use OffHeapStorage");
+        }
+        cells = new byte[(int) size];
+    }
+
+
+    @Override
+    public long size()
+    {
+        return cells.length;
+    }
+
+
+    @Override
+    public byte get(long index)
+    {
+        return cells[(int) index];
+    }
+
+
+    @Override
+    public void set(long index, byte state)
+    {
+        cells[(int) index] = state;
+    }
+
+
+    @Override
+    public void get(long index, byte[] states, int offset, int length)
+    {
+        System.arraycopy(cells, (int) index, states, offset, length);
+    }
+
+
+    @Override
+    public void set(long index, byte[] states, int offset, int length)
+    {
+        System.arraycopy(states, offset, cells, (int) index, length);
+    }
+}
@@ -0,0 +1,285 @@
+package edu.semo.casim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A scenario of interventions played out over a Covid7State run: lockdowns
+ * and their lifting as changes of rules, and vaccination waves as cells moved
+ * in bulk from one state to another. Add it to the grid with addListener(),
+ * and it acts after each generation, so what it does shapes the next one.
+ *
+ * A change of rules happens at a set generation, or whenever a condition on
+ * the grid becomes true, such as the number infected rising past a threshold.
+ * The rules are compiled when the change is scheduled, so making it is only a
+ * swap of tables. A conversion moves a share of the cells in one state to
+ * another every generation while it runs. It is a pass over the rows of the
+ * grid in parallel, comparing a row of states and a row of draws a cell at a
+ * time without a branch, and it leaves empty cells alone. The draws come from
+ * streams derived from the grid's seed, so a scenario gives the same results
+ * however many threads step it.
+ *
+ * The conditions are tried once a generation, never per cell, so a scenario
+ * costs next to nothing in the generations where nothing happens. Cells are
+ * converted after the statistics of a generation are taken, and as with any
+ * cells set between steps they are accounted for when the next is recorded.
+ */
+public class Interventions implements StepListener
+{
+    public static final int ALL_REGIONS = RegionMap.EMPTY; // Stands for the grid's own rules, where a region is asked for
+    private static final long CONVERT_SALT = 0x434f4e5645525453L; // Sets the conversion streams apart from the others
+
+    private Covid7State ca;             // The grid played out on
+    private List<Change> changes;       // The changes of rules, in the order they were scheduled
+    private List<Conversion> conversions; // The conversions, in the order they were scheduled
+
+
+    /**
+     * Construct an empty scenario for a grid.
+     * @param ca the grid, whose neighborhood the rules are compiled for
+     */
+    public Interventions(Covid7State ca)
+    {
+        this.ca = ca;
+        changes = new ArrayList<Change>();
+        conversions = new ArrayList<Conversion>();
+    }
+
+
+    /**
+     * Change the rules once the grid reaches a generation, so they step it on
+     * from there.
+     * @param generation the generation, after the grid's current one
+     * @param region the region to change, or ALL_REGIONS for the grid's own rules
+     * @param rules 7x7 matrix as for Covid7State.setRules()
+     */
+    public void at(int generation, int region, double[][] rules)
+    {
+        when(c -> c.getGeneration() >= generation, region, rules);
+    }
+
+
+    /**
+     * Change the rules each time a condition becomes true: the first
+     * generation it holds, and again whenever it holds after a generation it
+     * did not. Conditions are tried in the order they were scheduled, so of two
+     * changes made in the same generation the later one wins.
+     * @param condition the condition, tried once a generation
+     * @param region the region to change, or ALL_REGIONS for the grid's own rules
+     * @param rules 7x7 matrix as for Covid7State.setRules()
+     */
+    public void when(Predicate<Covid7State> condition, int region, double[][] rules)
+    {
+        if(region < 0 || region >= RegionMap.MAX_REGIONS) {
+            throw new IllegalArgumentException("regions must be between 0 and " + (RegionMap.MAX_REGIONS - 1));
+        }
+        changes.add(new Change(condition, region, compile(rules)));
+    }
+
+
+    /**
+     * Move a share of the cells in one state to another every generation of a
+     * span, as a vaccination wave moves the susceptible to immune.
+     * @param start the first generation to convert after
+     * @param end the generation to stop at, exclusive
+     * @param from the state converted
+     * @param to the state it is converted to
+     * @param rate the chance each cell in state "from" is converted each generation, 0 to 1
+     */
+    public void convert(int start, int end, int from, int to, double rate)
+    {
+        convertWhile(c -> c.getGeneration() >= start && c.getGeneration() < end, from, to, rate);
+    }
+
+
+    /**
+     * Move a share of the cells in one state to another every generation in
+     * which a condition holds.
+     * @param condition the condition, tried once a generation
+     * @param from the state converted
+     * @param to the state it is converted to
+     * @param rate the chance each cell in state "from" is converted each generation, 0 to 1
+     */
+    public void convertWhile(Predicate<Covid7State> condition, int from, int to, double rate)
+    {
+        if(from < 0 || from >= ca.getNumStates() || to < 0 || to >= ca.getNumStates()) {
+            throw new IllegalArgumentException("states must be between 0 and " + (ca.getNumStates() - 1));
+        }
+        if(!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("the conversion rate must be between 0 and 1");
+        }
+        conversions.add(new Conversion(condition, from, to, rate));
+    }
+
+
+    /**
+     * A condition which holds while more than a number of cells are infected.
+     * @param threshold the number infected
+     * @return the condition
+     */
+    public static Predicate<Covid7State> infectedAbove(int threshold)
+    {
+        return c -> c.getCurrentlyInfected() > threshold;
+    }
+
+
+    /**
+     * A condition which holds while fewer than a number of cells are infected.
+     * @param threshold the number infected
+     * @return the condition
+     */
+    public static Predicate<Covid7State> infectedBelow(int threshold)
+    {
+        return c -> c.getCurrentlyInfected() < threshold;
+    }
+
+
+    /**
+     * Compile a rule matrix for the grid's neighborhood.
+     */
+    private TransitionTable compile(double[][] rules)
+    {
+        if(rules.length != ca.getNumStates()) {
+            throw new IllegalArgumentException("expected a " + ca.getNumStates() + "x" + ca.getNumStates() + " rule matrix");
+        }
+        return new TransitionTable(rules, ca.getNeighborhood().getMaxCount());
+    }
+
+
+    @Override
+    public void stepped(CAGrid grid)
+    {
+        if(grid != ca) {
+            throw new IllegalArgumentException("the interventions are for another grid");
+        }
+
+        for(Change c : changes) {
+            boolean holds = c.condition.test(ca);
+            if(holds && !c.held) {
+                apply(c);
+            }
+            c.held = holds;
+        }
+
+        boolean [] moved = null;
+        for(int i=0; i<conversions.size(); i++) {
+            Conversion c = conversions.get(i);
+            if(c.rate > 0 && c.from != c.to && c.condition.test(ca)) {
+                if(moved == null) {
+                    moved = new boolean[ca.getTiles().length];
+                }
+                convert(c, i, moved);
+            }
+        }
+        if(moved != null) {
+            ca.markMoved(moved);
+        }
+    }
+
+
+    /**
+     * Swap a change's rules in, compiling them again if the grid's neighborhood
+     * has changed since it was scheduled.
+     */
+    private void apply(Change c)
+    {
+        if(c.table.getMaxCount() != ca.getNeighborhood().getMaxCount()) {
+            c.table = compile(c.table.getRules());
+        }
+        if(c.region == ALL_REGIONS) {
+            ca.setRules(c.table);
+        } else {
+            ca.setRegionRules(c.region, c.table);
+        }
+    }
+
+
+    /**
+     * Convert the cells of one conversion, a row at a time in parallel.
+     */
+    private void convert(Conversion c, int index, boolean[] moved)
+    {
+        int w = ca.getWidth();
+        int y0 = ca.getFirstRow();
+        int y1 = ca.getEndRow();
+        int diff = c.to - c.from;
+        long salt = CONVERT_SALT ^ SplitMixRandom.mix(index);
+        CellStorage cells = ca.cells();
+        RegionMap regions = ca.getRegions();
+
+        ca.parallelFor(y1 - y0, i -> {
+            int y = y0 + i;
+            byte [] row = ca.rowBuffer(2*w);
+            double [] draw = ca.drawBuffer(w);
+            long key = ((long) ca.getGeneration() << 32) | (y & 0xffffffffL);
+            new SplitMixRandom(SplitMixRandom.mix(ca.getSeed() ^ salt ^ SplitMixRandom.mix(key))).nextDoubles(draw, 0, w);
+
+            //the states are compared in a copy where empty cells are -1
+            cells.get((long) y*w, row, 0, w);
+            System.arraycopy(row, 0, row, w, w);
+            if(regions != null) {
+                regions.mask((long) y*w, row, w, w);
+            }
+
+            boolean any = false;
+            for(int x0=0; x0<w; x0+=CAGrid.TILE_SIZE) {
+                int x1 = Math.min(x0 + CAGrid.TILE_SIZE, w);
+                int n = 0;
+                for(int x=x0; x<x1; x++) {
+                    int hit = (row[w + x] == c.from ? 1 : 0) & (draw[x] < c.rate ? 1 : 0);
+                    row[x] = (byte) (row[x] + hit * diff);
+                    n += hit;
+                }
+                if(n > 0) {
+                    moved[ca.tileIndex(x0, y)] = true;
+                    any = true;
+                }
+            }
+            if(any) {
+                cells.set((long) y*w, row, 0, w);
+            }
+        });
+    }
+
+
+    /**
+     * A change of rules and the condition which sets it off.
+     */
+    private static class Change
+    {
+        Predicate<Covid7State> condition; // When to make the change
+        int region;             // The region changed, ALL_REGIONS for the grid's own rules
+        TransitionTable table;  // The rules changed to
+        boolean held;           // True iff the condition held last generation
+
+
+        Change(Predicate<Covid7State> condition, int region, TransitionTable table)
+        {
+            this.condition = condition;
+            this.region = region;
+            this.table = table;
+        }
+    }
+
+
+    /**
+     * A bulk move of cells between two states and the condition it runs under.
+     */
+    private static class Conversion
+    {
+        Predicate<Covid7State> condition; // When to convert
+        int from;               // The state converted
+        int to;                 // The state converted to
+        double rate;            // The chance a cell is converted each generation
+
+
+        Conversion(Predicate<Covid7State> condition, int from, int to, double rate)
+        {
+            this.condition = condition;
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+        }
+    }
+}
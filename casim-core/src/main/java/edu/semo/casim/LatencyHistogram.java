@@ -0,0 +1,192 @@
+package edu.semo.casim;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long something takes, in nanoseconds, into buckets which grow
+ * with the value: each power of two is split into SUB_BUCKETS, so a percentile
+ * is within about 12% of the true value whatever the scale. Recording is a few
+ * atomic adds and never allocates, so it can be left on in the step loop, and
+ * the figures can be read from any thread, such as a JMX client's.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean
+{
+    private static final int SUB_BITS = 3;               // log2 of the buckets per power of two
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; // The buckets per power of two
+
+    private AtomicLongArray buckets; // buckets[i] is the number of values in bucket i
+    private LongAdder count;         // The number of values
+    private LongAdder sum;           // The sum of the values
+    private LongAccumulator max;     // The largest value
+
+
+    /**
+     * Construct an empty histogram.
+     */
+    public LatencyHistogram()
+    {
+        buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+
+    /**
+     * Record a value.
+     * @param nanos the time taken, negative values count as 0
+     */
+    public void record(long nanos)
+    {
+        long v = Math.max(nanos, 0);
+        buckets.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+
+    /**
+     * Get the bucket a value falls in. Values below SUB_BUCKETS have a bucket
+     * each, and above that the top SUB_BITS bits after the leading one pick
+     * the bucket within its power of two.
+     */
+    private static int bucket(long v)
+    {
+        if(v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+
+    /**
+     * Get the largest value which falls in a bucket.
+     */
+    private static long upperBound(int i)
+    {
+        if(i < SUB_BUCKETS) {
+            return i;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+
+    /**
+     * Get the number of values recorded.
+     * @return the count
+     */
+    @Override
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+
+    /**
+     * Get the mean of the values.
+     * @return the mean in nanoseconds, 0 if there are none
+     */
+    public double getMean()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+
+    /**
+     * Get the largest value.
+     * @return the largest value in nanoseconds
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+
+    /**
+     * Get a percentile of the values. This is the top of the bucket it falls
+     * in, so it errs high, never low.
+     * @param percent the percentile, 0 to 100
+     * @return the value in nanoseconds, 0 if there are none
+     */
+    public long getPercentile(double percent)
+    {
+        long n = 0;
+        long [] copy = new long[buckets.length()];
+        for(int i=0; i<copy.length; i++) {
+            copy[i] = buckets.get(i);
+            n += copy[i];
+        }
+        if(n == 0) {
+            return 0;
+        }
+
+        // nearest rank
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+        long seen = 0;
+        for(int i=0; i<copy.length; i++) {
+            seen += copy[i];
+            if(seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+
+    @Override
+    public double getMeanMillis()
+    {
+        return getMean() / 1e6;
+    }
+
+
+    @Override
+    public double getP50Millis()
+    {
+        return getPercentile(50) / 1e6;
+    }
+
+
+    @Override
+    public double getP90Millis()
+    {
+        return getPercentile(90) / 1e6;
+    }
+
+
+    @Override
+    public double getP99Millis()
+    {
+        return getPercentile(99) / 1e6;
+    }
+
+
+    @Override
+    public double getMaxMillis()
+    {
+        return getMax() / 1e6;
+    }
+
+
+    /**
+     * Forget every value recorded. Values recorded at the same time may be
+     * partly kept.
+     */
+    @Override
+    public void reset()
+    {
+        for(int i=0; i<buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,42 @@
+package edu.semo.casim;
+
+/**
+ * The JMX view of a LatencyHistogram, in milliseconds.
+ */
+public interface LatencyHistogramMBean
+{
+    /**
+     * @return the number of values recorded
+     */
+    long getCount();
+
+    /**
+     * @return the mean value
+     */
+    double getMeanMillis();
+
+    /**
+     * @return the median value
+     */
+    double getP50Millis();
+
+    /**
+     * @return the 90th percentile
+     */
+    double getP90Millis();
+
+    /**
+     * @return the 99th percentile
+     */
+    double getP99Millis();
+
+    /**
+     * @return the largest value
+     */
+    double getMaxMillis();
+
+    /**
+     * Forget every value recorded.
+     */
+    void reset();
+}
@@ -0,0 +1,261 @@
+package edu.semo.casim;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Conway's game of life using my little framework.
+ *
+ * The cells are also kept packed 64 to a long, bit b of word i of a row being
+ * the cell at x = 64*i + b. A tile is exactly one word wide, so stepping a row
+ * of a tile is one pass of bitwise adders over the words above, at and below it.
+ * The byte grid is only written where a word differs from the one already in
+ * the back buffer, which for still lifes and blinkers is nowhere at all.
+ */
+public class Life extends CAGrid {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long [] SPREAD = new long[256]; // SPREAD[b] has byte i set to bit i of b
+
+    static {
+        for(int b=0; b<256; b++) {
+            for(int i=0; i<8; i++) {
+                SPREAD[b] |= (long) ((b >>> i) & 1) << (i << 3);
+            }
+        }
+    }
+
+    private int words;        // The number of longs in a packed row
+    private long [] prev;     // The packed generation before the current one
+    private long [] bits;     // The packed current generation
+    private long [] nextBits; // The packed next generation
+    private boolean synced;   // True iff prev matches the back buffer
+    private boolean [] stale; // stale[t] is true iff tile t was moved since it was packed
+    private boolean anyStale; // True iff any tile is stale
+
+
+    public Life(int width, int height)
+    {
+        this(width, height, HeapStorage.FACTORY);
+    }
+
+
+    /**
+     * Construct a grid with the given kind of storage.
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     * @param storage Makes the cell buffers.
+     */
+    public Life(int width, int height, CellStorage.Factory storage)
+    {
+        super(width, height, 2, true, storage);
+        words = (width + 63) / 64;
+        prev = new long[words * height];
+        bits = new long[words * height];
+        nextBits = new long[words * height];
+        stale = new boolean[getTiles().length];
+        setSparse(true);
+    }
+
+
+    /**
+     * Rebuild the packed cells if the grid was changed from outside, or
+     * repack the tiles whose cells were moved.
+     */
+    @Override
+    protected void beforeStep() {
+        if(!isAllActive()) {
+            if(anyStale) {
+                Tile [] tiles = getTiles();
+                for(int t=0; t<tiles.length; t++) {
+                    if(stale[t]) {
+                        pack(tiles[t]);
+                    }
+                }
+            }
+        } else {
+            byte [] row = rowBuffer(getWidth());
+            for(int y=0; y<getHeight(); y++) {
+                getCells(0, y, row, 0, getWidth());
+                for(int i=0; i<words; i++) {
+                    bits[y*words + i] = pack(row, i * 64, Math.min(64, getWidth() - i * 64));
+                }
+            }
+
+            //nothing is known about the back buffer
+            synced = false;
+        }
+
+        Arrays.fill(stale, false);
+        anyStale = false;
+    }
+
+
+    /**
+     * Note the tiles whose cells were moved, to be packed again before the
+     * next step. The back buffer still holds the generation before, so
+     * nothing else is out of date.
+     */
+    @Override
+    protected void cellsMoved(boolean[] tiles) {
+        for(int t=0; t<tiles.length; t++) {
+            if(tiles[t]) {
+                stale[t] = true;
+                anyStale = true;
+            }
+        }
+    }
+
+
+    /**
+     * Pack the cells of one tile, a word for each row.
+     */
+    private void pack(Tile tile) {
+        int i = tile.getX0() / 64;
+        byte [] row = rowBuffer(64);
+        for(int y=tile.getY0(); y<tile.getY1(); y++) {
+            getCells(tile.getX0(), y, row, 0, tile.getWidth());
+            bits[y*words + i] = pack(row, 0, tile.getWidth());
+        }
+    }
+
+
+    /**
+     * Pack a run of up to 64 cells into a word, the first in bit 0.
+     */
+    private static long pack(byte[] row, int offset, int length) {
+        long word = 0;
+        for(int x=0; x<length; x++) {
+            word |= (long) row[offset + x] << x;
+        }
+        return word;
+    }
+
+
+    @Override
+    protected void step(Tile tile) {
+        //tiles are TILE_SIZE wide, which is one word
+        int i = tile.getX0() / 64;
+        int x0 = tile.getX0();
+        int span = tile.getWidth();
+        int width = getWidth();
+        int height = getHeight();
+        long mask = span == 64 ? -1L : (1L << span) - 1;
+        byte [] row = rowBuffer(64);
+        long born = 0, died = 0, kept = 0;
+
+        //get the new cell states
+        for(int y=tile.getY0(); y<tile.getY1(); y++) {
+            int up = (y == 0 ? height - 1 : y - 1) * words;
+            int mid = y * words;
+            int down = (y == height - 1 ? 0 : y + 1) * words;
+
+            //the cells left and right of each cell, including the wrapped ends
+            long a = bits[up + i];
+            long al = (a << 1) | bit(up, x0 - 1, width);
+            long ar = (a >>> 1) | (bit(up, x0 + span, width) << (span - 1));
+            long m = bits[mid + i];
+            long ml = (m << 1) | bit(mid, x0 - 1, width);
+            long mr = (m >>> 1) | (bit(mid, x0 + span, width) << (span - 1));
+            long b = bits[down + i];
+            long bl = (b << 1) | bit(down, x0 - 1, width);
+            long br = (b >>> 1) | (bit(down, x0 + span, width) << (span - 1));
+
+            //count each row of three, 0 to 3 in two bits
+            long a0 = al ^ a ^ ar;
+            long a1 = (al & a) | (ar & (al ^ a));
+            long m0 = ml ^ m ^ mr;
+            long m1 = (ml & m) | (mr & (ml ^ m));
+            long b0 = bl ^ b ^ br;
+            long b1 = (bl & b) | (br & (bl ^ b));
+
+            //add them up, 0 to 9 in four bits, counting the cell itself
+            long s0 = a0 ^ m0;
+            long c0 = a0 & m0;
+            long s1 = a1 ^ m1 ^ c0;
+            long s2 = (a1 & m1) | (c0 & (a1 ^ m1));
+            long t0 = s0 ^ b0;
+            long k0 = s0 & b0;
+            long t1 = s1 ^ b1 ^ k0;
+            long k1 = (s1 & b1) | (k0 & (s1 ^ b1));
+            long t2 = s2 ^ k1;
+            long t3 = s2 & k1;
+
+            //a total of 3 is birth or survival, a total of 4 is survival
+            long three = ~t3 & ~t2 & t1 & t0;
+            long four = ~t3 & t2 & ~t1 & ~t0;
+            long next = (three | (m & four)) & mask;
+            nextBits[mid + i] = next;
+
+            //only touch the byte grid where it is out of date
+            if(!synced || next != prev[mid + i]) {
+                for(int j=0; j<8; j++) {
+                    LONGS.set(row, j << 3, SPREAD[(int) (next >>> (j << 3)) & 0xff]);
+                }
+                setNextCells(x0, y, row, 0, span);
+            }
+
+            born += Long.bitCount(next & ~m);
+            died += Long.bitCount(m & ~next);
+            kept += Long.bitCount(m & next);
+        }
+
+        long cells = (long) span * (tile.getY1() - tile.getY0());
+        tile.record(0, 1, (int) born);
+        tile.record(1, 0, (int) died);
+        tile.record(1, 1, (int) kept);
+        tile.record(0, 0, (int) (cells - born - died - kept));
+    }
+
+
+    /**
+     * Get one cell of a packed row, wrapping x around the edges.
+     */
+    private long bit(int offset, int x, int width) {
+        if(x < 0) { x += width; }
+        if(x >= width) { x -= width; }
+        return (bits[offset + (x >>> 6)] >>> (x & 63)) & 1;
+    }
+
+
+    /**
+     * Move the packed generations along, carrying over the skipped tiles.
+     */
+    @Override
+    protected void afterStep() {
+        for(Tile tile : getTiles()) {
+            if(tile.isActive()) { continue; }
+            int i = tile.getX0() / 64;
+            for(int y=tile.getY0(); y<tile.getY1(); y++) {
+                nextBits[y*words + i] = bits[y*words + i];
+            }
+        }
+
+        long [] tmp = prev;
+        prev = bits;
+        bits = nextBits;
+        nextBits = tmp;
+        synced = true;
+    }
+
+
+    /**
+     * Randomize the grid
+     * @param percentInfected percentage of cells (0 to 100) which start alive
+     */
+    @Override
+    public void randomize(int percentInfected) {
+        for(int y=0; y<getHeight(); y++) {
+            RandomSource random = rowRandom(y);
+            for(int x=0; x<getWidth(); x++) {
+                if(random.nextInt(0, 100) < percentInfected){
+                    setCell(x, y, 1);
+                }else{
+                    setCell(x, y, 0);
+                }
+            }
+        }
+    }
+
+}
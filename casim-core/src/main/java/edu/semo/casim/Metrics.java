@@ -0,0 +1,254 @@
+package edu.semo.casim;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Measures a running simulation: how long each step takes, how many
+ * generations and cells are stepped a second, and how much memory a generation
+ * allocates, so a slow run can be put down to the rules, the drawing or the
+ * garbage collector. Only the threads which step the grid are counted toward
+ * what a generation allocates, not the UI or writers running beside it. A
+ * CAGrid given one with setMetrics() times next() and nextGeneration() into
+ * it, and the UI adds its own timings by name.
+ *
+ * The figures can be read directly, watched over JMX once register() is
+ * called, or written out as they go by a MetricsReporter. The rates are moving
+ * averages over about a second, as of the latest generation.
+ */
+public class Metrics implements MetricsMBean
+{
+    public static final String STEP = "step";                     // The histogram of next()
+    public static final String NEXT_GENERATION = "nextGeneration"; // The histogram of nextGeneration()
+    private static final String DOMAIN = "edu.semo.casim";        // The JMX domain of the beans
+    private static final double TAU = 1e9;                        // The time constant of the rates, in nanoseconds
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private String name;        // The name of the run, to tell the beans of several apart
+    private Map<String, LatencyHistogram> histograms; // By name, in the order they were made
+    private List<ObjectName> registered; // The beans registered by register()
+    private volatile long generations; // The number of generations stepped
+    private volatile long cells;       // The number of cells stepped
+    private volatile long allocated;   // The bytes allocated while stepping
+    private volatile double generationRate; // Generations per second
+    private volatile double cellRate;       // Cells per second
+    private volatile double allocationRate; // Bytes allocated per generation
+    private long last;          // When the latest step ended, by System.nanoTime(), 0 before the first
+
+
+    /**
+     * Construct metrics with the step histograms.
+     * @param name the name of the run, used in the JMX object names
+     */
+    public Metrics(String name)
+    {
+        this.name = name;
+        histograms = new LinkedHashMap<String, LatencyHistogram>();
+        registered = new ArrayList<ObjectName>();
+        histogram(STEP);
+        histogram(NEXT_GENERATION);
+    }
+
+
+    /**
+     * Get the name of the run.
+     * @return the name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+
+    /**
+     * Get a histogram by name, making it if it does not exist yet. A histogram
+     * made after register() is not seen over JMX until register() is called again.
+     * @param name the name
+     * @return the histogram
+     */
+    public synchronized LatencyHistogram histogram(String name)
+    {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+
+    /**
+     * Get every histogram.
+     * @return the histograms by name, in the order they were made
+     */
+    public synchronized Map<String, LatencyHistogram> getHistograms()
+    {
+        return new LinkedHashMap<String, LatencyHistogram>(histograms);
+    }
+
+
+    /**
+     * Record a generation.
+     * @param latency the name of the histogram to record its time in
+     * @param start when it started, by System.nanoTime()
+     * @param end when it ended, by System.nanoTime()
+     * @param cells the number of cells stepped
+     * @param bytes the bytes allocated, as by allocatedBytes(long[])
+     */
+    public synchronized void stepped(String latency, long start, long end, long cells, long bytes)
+    {
+        histogram(latency).record(end - start);
+        bytes = Math.max(bytes, 0);
+        generations++;
+        this.cells += cells;
+        allocated += bytes;
+
+        //the rates decay toward each new reading as time passes
+        if(last == 0) {
+            generationRate = 1e9 / Math.max(end - start, 1);
+            cellRate = cells * generationRate;
+            allocationRate = bytes;
+        } else {
+            double dt = Math.max(end - last, 1);
+            double a = 1 - Math.exp(-dt / TAU);
+            generationRate += a * (1e9 / dt - generationRate);
+            cellRate += a * (cells * 1e9 / dt - cellRate);
+            allocationRate += a * (bytes - allocationRate);
+        }
+        last = end;
+    }
+
+
+    @Override
+    public long getGenerations()
+    {
+        return generations;
+    }
+
+
+    @Override
+    public long getCells()
+    {
+        return cells;
+    }
+
+
+    /**
+     * Get the bytes allocated while stepping.
+     * @return the total of every generation
+     */
+    public long getAllocatedBytes()
+    {
+        return allocated;
+    }
+
+
+    @Override
+    public double getGenerationsPerSecond()
+    {
+        return generationRate;
+    }
+
+
+    @Override
+    public double getCellsPerSecond()
+    {
+        return cellRate;
+    }
+
+
+    @Override
+    public double getAllocatedBytesPerGeneration()
+    {
+        return allocationRate;
+    }
+
+
+    @Override
+    public long getGcMillis()
+    {
+        long total = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+
+
+    /**
+     * Get the bytes allocated so far by some threads. The difference of two
+     * readings is what they allocated in between, near enough: a thread which
+     * ends in between takes its bytes with it.
+     * @param threadIds the ids of the threads, as by Thread.getId()
+     * @return the bytes, 0 if the JVM does not count them
+     */
+    public static long allocatedBytes(long[] threadIds)
+    {
+        if(!(THREADS instanceof com.sun.management.ThreadMXBean) || threadIds.length == 0) {
+            return 0;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        long total = 0;
+        for(long bytes : threads.getThreadAllocatedBytes(threadIds)) {
+            total += Math.max(bytes, 0);
+        }
+        return total;
+    }
+
+
+    /**
+     * Register these metrics and each histogram with the platform MBean server,
+     * as edu.semo.casim:type=Metrics,name=... and
+     * edu.semo.casim:type=Latency,run=...,name=..., replacing any registered
+     * under the same names.
+     * @throws IllegalStateException if the server refuses them
+     */
+    public synchronized void register()
+    {
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String run = ObjectName.quote(name);
+            add(server, new ObjectName(DOMAIN + ":type=Metrics,name=" + run), this);
+            for(Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+                add(server, new ObjectName(DOMAIN + ":type=Latency,run=" + run + ",name=" + ObjectName.quote(e.getKey())), e.getValue());
+            }
+        } catch(JMException e) {
+            throw new IllegalStateException("cannot register the metrics of " + name, e);
+        }
+    }
+
+
+    /**
+     * Register one bean, replacing any of the same name.
+     */
+    private void add(MBeanServer server, ObjectName objectName, Object bean) throws JMException
+    {
+        if(server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(bean, objectName);
+        registered.add(objectName);
+    }
+
+
+    /**
+     * Remove the beans added by register(), if it was called.
+     */
+    public synchronized void unregister()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch(JMException e) {
+                //already gone
+            }
+        }
+        registered.clear();
+    }
+}
@@ -0,0 +1,37 @@
+package edu.semo.casim;
+
+/**
+ * The JMX view of the Metrics of a run.
+ */
+public interface MetricsMBean
+{
+    /**
+     * @return the number of generations stepped
+     */
+    long getGenerations();
+
+    /**
+     * @return the number of cells stepped, not counting skipped tiles
+     */
+    long getCells();
+
+    /**
+     * @return the recent rate of generations per second
+     */
+    double getGenerationsPerSecond();
+
+    /**
+     * @return the recent rate of cells stepped per second
+     */
+    double getCellsPerSecond();
+
+    /**
+     * @return the recent bytes allocated per generation, by every thread
+     */
+    double getAllocatedBytesPerGeneration();
+
+    /**
+     * @return the time the JVM has spent collecting garbage, in milliseconds
+     */
+    long getGcMillis();
+}
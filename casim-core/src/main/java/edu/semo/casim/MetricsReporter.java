@@ -0,0 +1,156 @@
+package edu.semo.casim;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes Metrics out every so often from a background thread, either as a log
+ * line to read as the run goes or as a row of CSV to plot afterwards. The rates
+ * are over the time since the previous report, and the latencies over the whole
+ * run.
+ *
+ * The CSV columns are
+ *   time_s, generations, gen_per_s, cells_per_s, bytes_per_gen, gc_ms
+ * then count, p50_ms, p99_ms and max_ms for each histogram, prefixed by its
+ * name. The histograms are those which exist at the first report.
+ */
+public class MetricsReporter implements Closeable
+{
+    private Metrics metrics;    // What is reported
+    private PrintWriter out;    // Where it is written
+    private boolean csv;        // True for CSV rows, false for log lines
+    private ScheduledExecutorService timer; // Runs the reports, null until started
+    private List<String> columns; // The histograms in the CSV, null before the header
+    private long start;         // When the reporter was made, by System.nanoTime()
+    private long lastTime;      // When the previous report was made
+    private long lastGenerations; // The generations at the previous report
+    private long lastCells;     // The cells at the previous report
+    private long lastBytes;     // The allocated bytes at the previous report
+    private long lastGc;        // The collection time at the previous report
+
+
+    /**
+     * Construct a reporter. It does nothing until started or asked to report.
+     * @param metrics what to report
+     * @param out where to write, left open by close()
+     * @param csv true for CSV rows, false for log lines
+     */
+    public MetricsReporter(Metrics metrics, Writer out, boolean csv)
+    {
+        this.metrics = metrics;
+        this.out = out instanceof PrintWriter ? (PrintWriter) out : new PrintWriter(out);
+        this.csv = csv;
+        start = System.nanoTime();
+        lastTime = start;
+        lastGenerations = metrics.getGenerations();
+        lastCells = metrics.getCells();
+        lastBytes = metrics.getAllocatedBytes();
+        lastGc = metrics.getGcMillis();
+    }
+
+
+    /**
+     * Report at a fixed period from a daemon thread.
+     * @param periodMillis the time between reports
+     */
+    public synchronized void start(long periodMillis)
+    {
+        if(timer != null) {
+            throw new IllegalStateException("the reporter is already started");
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "casim-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::report, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Write a report now.
+     */
+    public synchronized void report()
+    {
+        long now = System.nanoTime();
+        long generations = metrics.getGenerations();
+        long cells = metrics.getCells();
+        long bytes = metrics.getAllocatedBytes();
+        long gc = metrics.getGcMillis();
+        double secs = Math.max(now - lastTime, 1) / 1e9;
+        long gens = generations - lastGenerations;
+
+        double genRate = gens / secs;
+        double cellRate = (cells - lastCells) / secs;
+        double bytesPerGen = gens == 0 ? 0 : (double) (bytes - lastBytes) / gens;
+        long gcMillis = gc - lastGc;
+        Map<String, LatencyHistogram> histograms = metrics.getHistograms();
+
+        if(csv) {
+            if(columns == null) {
+                columns = new ArrayList<String>(histograms.keySet());
+                out.print("time_s,generations,gen_per_s,cells_per_s,bytes_per_gen,gc_ms");
+                for(String name : columns) {
+                    out.printf(Locale.ROOT, ",%1$s_count,%1$s_p50_ms,%1$s_p99_ms,%1$s_max_ms", name);
+                }
+                out.println();
+            }
+
+            out.printf(Locale.ROOT, "%.3f,%d,%.2f,%.0f,%.0f,%d", (now - start) / 1e9, generations, genRate, cellRate, bytesPerGen, gcMillis);
+            for(String name : columns) {
+                LatencyHistogram h = histograms.get(name);
+                out.printf(Locale.ROOT, ",%d,%.3f,%.3f,%.3f", h.getCount(), h.getP50Millis(), h.getP99Millis(), h.getMaxMillis());
+            }
+            out.println();
+        } else {
+            out.printf(Locale.ROOT, "[%s] generation %d: %.1f gen/s, %.2f Mcells/s, %.1f KB/gen, gc %d ms",
+                       metrics.getName(), generations, genRate, cellRate / 1e6, bytesPerGen / 1024, gcMillis);
+            for(Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+                LatencyHistogram h = e.getValue();
+                if(h.getCount() > 0) {
+                    out.printf(Locale.ROOT, "; %s p50 %.2f p99 %.2f max %.2f ms", e.getKey(), h.getP50Millis(), h.getP99Millis(), h.getMaxMillis());
+                }
+            }
+            out.println();
+        }
+        out.flush();
+
+        lastTime = now;
+        lastGenerations = generations;
+        lastCells = cells;
+        lastBytes = bytes;
+        lastGc = gc;
+    }
+
+
+    /**
+     * Stop reporting, after one last report. The writer is flushed but left open.
+     */
+    @Override
+    public void close()
+    {
+        ScheduledExecutorService t;
+        synchronized(this) {
+            t = timer;
+            timer = null;
+        }
+        if(t != null) {
+            t.shutdown();
+            try {
+                t.awaitTermination(10, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        report();
+    }
+}
@@ -0,0 +1,334 @@
+package edu.semo.casim;
+
+import java.util.Arrays;
+
+/**
+ * Moves people about between generations, so a grid can mix beyond its
+ * neighborhoods without the cost of a huge radius. A grid given one with
+ * CAGrid.setMobility() applies it after every step, whatever its rules.
+ *
+ * Two kinds of move are made. A swap trades places with a neighbor: every
+ * generation the cells are paired off, across or down and starting on an even
+ * or odd column or row in turn, and each pair swaps with the swap rate. Pairs
+ * never overlap, so the rows are swapped in parallel. Travel takes a fraction
+ * of the cells, picked anywhere with the travel rate, and deals them out again
+ * at random among the places they were taken from. Both only ever permute the
+ * cells, so the population of each state is unchanged. Nobody moves into or
+ * out of a cell the grid's region map has empty.
+ *
+ * The picks skip ahead by geometric gaps, so the cost follows the number of
+ * moves rather than the size of the grid. The travelers are dealt out without
+ * a pass on one thread: each tile row deals its travelers into buckets at
+ * random, the buckets are filled in parallel at offsets summed beforehand,
+ * and each bucket is shuffled on its own. A random bucket then a random order
+ * within it is a random permutation of the whole. The draws come from streams
+ * derived from the grid's seed, the generation and the row, tile row or
+ * bucket, so a run gives the same results however many threads step it. A
+ * strip of a cluster only moves cells within itself.
+ */
+public class Mobility
+{
+    private static final long SWAP_SALT = 0x5357415053574150L;   // Sets the swap streams apart from the others
+    private static final long TRAVEL_SALT = 0x54524156454c4c52L; // Sets the travel streams apart from the others
+    private static final long DEAL_SALT = 0x4445414c4445414cL;    // Sets the streams dealing travelers to buckets apart
+    private static final long SHUFFLE_SALT = 0x53485546464c4553L; // Sets the streams shuffling the buckets apart
+    private static final int MAX_BUCKETS = 256;  // The most buckets the travelers are dealt into
+
+    private double swapRate;    // The chance a cell swaps with a neighbor each generation
+    private double travelRate;  // The chance a cell travels each generation
+    private long [][] picked;   // picked[t] holds the cells picked to travel in tile row t
+    private int [] numPicked;   // The number of entries in each picked list
+    private long [] travelers;  // Every cell picked to travel, in order
+    private byte [] states;     // The states of the travelers
+    private byte [] bucket;     // The bucket each traveler is dealt to, as an unsigned byte
+    private byte [] dealt;      // The states of the travelers dealt into buckets
+    private int [] offsets;     // offsets[t*buckets + b] is where tile row t deals next into bucket b
+
+
+    /**
+     * Construct a mobility phase.
+     * @param swapRate the chance each cell swaps with a neighbor each generation, 0 to 1
+     * @param travelRate the chance each cell travels each generation, 0 to 1
+     * @throws IllegalArgumentException if a rate is not in [0, 1]
+     */
+    public Mobility(double swapRate, double travelRate)
+    {
+        if(!(swapRate >= 0 && swapRate <= 1) || !(travelRate >= 0 && travelRate <= 1)) {
+            throw new IllegalArgumentException("mobility rates must be between 0 and 1");
+        }
+        this.swapRate = swapRate;
+        this.travelRate = travelRate;
+        picked = new long[0][];
+        numPicked = new int[0];
+        travelers = new long[0];
+        states = new byte[0];
+        bucket = new byte[0];
+        dealt = new byte[0];
+        offsets = new int[0];
+    }
+
+
+    /**
+     * Get the swap rate.
+     * @return the chance a cell swaps with a neighbor each generation
+     */
+    public double getSwapRate()
+    {
+        return swapRate;
+    }
+
+
+    /**
+     * Get the travel rate.
+     * @return the chance a cell travels each generation
+     */
+    public double getTravelRate()
+    {
+        return travelRate;
+    }
+
+
+    /**
+     * Move the cells of a grid which has just been stepped. The tiles whose
+     * cells moved are marked as changed.
+     * @param ca the grid
+     */
+    void move(CAGrid ca)
+    {
+        boolean [] moved = new boolean[ca.getTiles().length];
+        if(swapRate > 0) {
+            swap(ca, moved);
+        }
+        if(travelRate > 0) {
+            travel(ca, moved);
+        }
+        ca.markMoved(moved);
+    }
+
+
+    /**
+     * Swap the pairs of neighbors of this generation.
+     */
+    private void swap(CAGrid ca, boolean[] moved)
+    {
+        int w = ca.getWidth();
+        int y0 = ca.getFirstRow();
+        int y1 = ca.getEndRow();
+        int phase = ca.getGeneration() & 3;
+        int offset = phase & 1;
+        CellStorage cells = ca.cells();
+        RegionMap regions = ca.getRegions();
+        double gap = gapScale(swapRate);
+
+        if(phase < 2) {
+            //across: pair (x, x+1) for every other x, each row on its own
+            int pairs = (w - offset) / 2;
+            boolean wrap = offset == 1 && w % 2 == 0 && ca.isToroidal();
+            ca.parallelFor(y1 - y0, i -> {
+                int y = y0 + i;
+                byte [] row = ca.rowBuffer(w);
+                RandomSource random = stream(ca, SWAP_SALT, y);
+                cells.get((long) y*w, row, 0, w);
+                boolean any = false;
+                for(long k=skip(random, gap); k<pairs + (wrap ? 1 : 0); k+=1+skip(random, gap)) {
+                    int x = 2*(int) k + offset;
+                    int x2 = (x + 1) % w;
+                    if(regions != null && (regions.isEmpty((long) y*w + x) || regions.isEmpty((long) y*w + x2))) {
+                        continue;
+                    }
+                    byte s = row[x];
+                    row[x] = row[x2];
+                    row[x2] = s;
+                    moved[ca.tileIndex(x, y)] = true;
+                    moved[ca.tileIndex(x2, y)] = true;
+                    any = true;
+                }
+                if(any) {
+                    cells.set((long) y*w, row, 0, w);
+                }
+            });
+        } else {
+            //down: pair rows (y, y+1) for every other y, each pair of rows on its own
+            int h = y1 - y0;
+            int pairs = (h - offset) / 2;
+            boolean wrap = offset == 1 && h % 2 == 0 && ca.isToroidal() && h == ca.getHeight();
+            ca.parallelFor(pairs + (wrap ? 1 : 0), i -> {
+                int ya = y0 + 2*i + offset;
+                int yb = ya + 1 == y1 ? y0 : ya + 1;
+                byte [] rows = ca.rowBuffer(2*w);
+                RandomSource random = stream(ca, SWAP_SALT, ya);
+                cells.get((long) ya*w, rows, 0, w);
+                cells.get((long) yb*w, rows, w, w);
+                boolean any = false;
+                for(long x=skip(random, gap); x<w; x+=1+skip(random, gap)) {
+                    int c = (int) x;
+                    if(regions != null && (regions.isEmpty((long) ya*w + c) || regions.isEmpty((long) yb*w + c))) {
+                        continue;
+                    }
+                    byte s = rows[c];
+                    rows[c] = rows[w + c];
+                    rows[w + c] = s;
+                    moved[ca.tileIndex(c, ya)] = true;
+                    moved[ca.tileIndex(c, yb)] = true;
+                    any = true;
+                }
+                if(any) {
+                    cells.set((long) ya*w, rows, 0, w);
+                    cells.set((long) yb*w, rows, w, w);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Pick the travelers and deal them out among the places they left.
+     */
+    private void travel(CAGrid ca, boolean[] moved)
+    {
+        int w = ca.getWidth();
+        int y0 = ca.getFirstRow();
+        int y1 = ca.getEndRow();
+        CellStorage cells = ca.cells();
+        RegionMap regions = ca.getRegions();
+        double gap = gapScale(travelRate);
+
+        //pick them a tile row at a time, in parallel
+        int bands = (y1 - y0 + CAGrid.TILE_SIZE - 1) / CAGrid.TILE_SIZE;
+        if(picked.length < bands) {
+            picked = new long[bands][16];
+            numPicked = new int[bands];
+        }
+        ca.parallelFor(bands, t -> {
+            int n = 0;
+            long [] list = picked[t];
+            int end = Math.min(y0 + (t + 1) * CAGrid.TILE_SIZE, y1);
+            for(int y=y0 + t*CAGrid.TILE_SIZE; y<end; y++) {
+                RandomSource random = stream(ca, TRAVEL_SALT, y);
+                for(long x=skip(random, gap); x<w; x+=1+skip(random, gap)) {
+                    if(regions != null && regions.isEmpty((long) y*w + x)) {
+                        continue;
+                    }
+                    if(n == list.length) {
+                        list = Arrays.copyOf(list, 2*n);
+                    }
+                    list[n++] = (long) y*w + x;
+                }
+            }
+            picked[t] = list;
+            numPicked[t] = n;
+        });
+
+        //line them up and take their states
+        int total = 0;
+        for(int t=0; t<bands; t++) {
+            total = Math.addExact(total, numPicked[t]);
+        }
+        if(total < 2) {
+            return;
+        }
+        if(travelers.length < total) {
+            travelers = new long[total];
+            states = new byte[total];
+            bucket = new byte[total];
+            dealt = new byte[total];
+        }
+        int [] start = new int[bands + 1];
+        for(int t=0; t<bands; t++) {
+            System.arraycopy(picked[t], 0, travelers, start[t], numPicked[t]);
+            start[t+1] = start[t] + numPicked[t];
+        }
+
+        //take their states, and count how many each tile row deals to each bucket
+        int buckets = Math.min(bands, MAX_BUCKETS);
+        if(offsets.length < bands * buckets) {
+            offsets = new int[bands * buckets];
+        }
+        int [] off = offsets;
+        ca.parallelFor(bands, t -> {
+            Arrays.fill(off, t*buckets, (t + 1)*buckets, 0);
+            RandomSource random = stream(ca, DEAL_SALT, t);
+            for(int k=start[t]; k<start[t+1]; k++) {
+                int b = random.nextInt(0, buckets);
+                states[k] = cells.get(travelers[k]);
+                bucket[k] = (byte) b;
+                off[t*buckets + b]++;
+            }
+        });
+
+        //the buckets lie one after another, each split among the tile rows in order
+        int [] bucketStart = new int[buckets + 1];
+        int at = 0;
+        for(int b=0; b<buckets; b++) {
+            bucketStart[b] = at;
+            for(int t=0; t<bands; t++) {
+                int n = off[t*buckets + b];
+                off[t*buckets + b] = at;
+                at += n;
+            }
+        }
+        bucketStart[buckets] = at;
+
+        //deal the states into the buckets
+        ca.parallelFor(bands, t -> {
+            for(int k=start[t]; k<start[t+1]; k++) {
+                dealt[off[t*buckets + (bucket[k] & 0xff)]++] = states[k];
+            }
+        });
+
+        //shuffle each bucket, then put the states back where the travelers were
+        ca.parallelFor(buckets, b -> {
+            RandomSource random = stream(ca, SHUFFLE_SALT, b);
+            int lo = bucketStart[b];
+            for(int k=bucketStart[b+1]-1; k>lo; k--) {
+                int j = random.nextInt(lo, k + 1);
+                byte s = dealt[k];
+                dealt[k] = dealt[j];
+                dealt[j] = s;
+            }
+        });
+        ca.parallelFor(bands, t -> {
+            for(int k=start[t]; k<start[t+1]; k++) {
+                long c = travelers[k];
+                if(states[k] != dealt[k]) {
+                    cells.set(c, dealt[k]);
+                    moved[ca.tileIndex((int) (c % w), (int) (c / w))] = true;
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Get the random stream of a row of a generation.
+     */
+    private static RandomSource stream(CAGrid ca, long salt, int y)
+    {
+        long key = ((long) ca.getGeneration() << 32) | (y & 0xffffffffL);
+        return new SplitMixRandom(SplitMixRandom.mix(ca.getSeed() ^ salt ^ SplitMixRandom.mix(key)));
+    }
+
+
+    /**
+     * Get the scale of the geometric gaps between picks at a rate, 0 to pick
+     * everything.
+     */
+    private static double gapScale(double rate)
+    {
+        return rate >= 1 ? 0 : 1 / Math.log1p(-rate);
+    }
+
+
+    /**
+     * Draw the number of candidates to pass over before the next pick.
+     */
+    private static long skip(RandomSource random, double scale)
+    {
+        if(scale == 0) {
+            return 0;
+        }
+        //log(1-u) / log(1-rate) is geometric, and huge gaps run off the end
+        double g = Math.log1p(-random.nextDouble()) * scale;
+        return g >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (long) g;
+    }
+}
@@ -0,0 +1,268 @@
+package edu.semo.casim;
+
+import java.util.Arrays;
+
+/**
+ * The shape of a neighborhood: a weight for every cell within some radius of
+ * the center, the center included. A cell's count of a state is the sum of the
+ * weights of the neighbors in that state, so the plain shapes, with every weight
+ * 1, count cells, and weighted ones let near neighbors count for more than far.
+ *
+ * The shape is compiled into runs of equal weight along each row. CAGrid counts
+ * each run with prefix sums of the rows, and a box, such as a Moore
+ * neighborhood, with prefix sums of whole columns, so the cost of counting a
+ * cell does not grow with the area of the neighborhood.
+ */
+public final class Neighborhood
+{
+    private int radius;       // The distance from the center to the edge
+    private int [][] weights; // weights[dy+radius][dx+radius] is the weight of the cell at (dx, dy)
+    private int maxCount;     // The sum of the weights
+    private boolean box;      // True iff every weight is 1
+    private int [] runDy;     // runDy[k] is the row offset of run k
+    private int [] runX0;     // runX0[k] is the first column offset of run k
+    private int [] runX1;     // runX1[k] is the last column offset of run k, inclusive
+    private int [] runWeight; // runWeight[k] is the weight of the cells of run k
+
+
+    private Neighborhood(int[][] weights)
+    {
+        int n = weights.length;
+        if(n % 2 == 0) {
+            throw new IllegalArgumentException("a neighborhood must be an odd number of cells across");
+        }
+
+        this.radius = n / 2;
+        this.weights = new int[n][];
+        this.box = true;
+        int [] dy = new int[n * n];
+        int [] x0 = new int[n * n];
+        int [] x1 = new int[n * n];
+        int [] w = new int[n * n];
+        int runs = 0;
+
+        for(int j=0; j<n; j++) {
+            if(weights[j].length != n) {
+                throw new IllegalArgumentException("a neighborhood must be square");
+            }
+            this.weights[j] = weights[j].clone();
+
+            //split the row into runs of equal weight
+            for(int i=0; i<n; ) {
+                int v = weights[j][i];
+                if(v < 0) {
+                    throw new IllegalArgumentException("weights[" + j + "][" + i + "] is negative");
+                }
+                box &= v == 1;
+                int end = i + 1;
+                while(end < n && weights[j][end] == v) { end++; }
+                if(v != 0) {
+                    dy[runs] = j - radius;
+                    x0[runs] = i - radius;
+                    x1[runs] = end - 1 - radius;
+                    w[runs] = v;
+                    runs++;
+                }
+                maxCount = Math.addExact(maxCount, Math.multiplyExact(v, end - i));
+                i = end;
+            }
+        }
+
+        runDy = Arrays.copyOf(dy, runs);
+        runX0 = Arrays.copyOf(x0, runs);
+        runX1 = Arrays.copyOf(x1, runs);
+        runWeight = Arrays.copyOf(w, runs);
+    }
+
+
+    /**
+     * Make a Moore neighborhood, the square of cells within radius in both directions.
+     * @param radius the radius
+     * @return the neighborhood
+     */
+    public static Neighborhood moore(int radius)
+    {
+        int [][] w = grid(radius);
+        for(int [] row : w) {
+            Arrays.fill(row, 1);
+        }
+        return new Neighborhood(w);
+    }
+
+
+    /**
+     * Make a von Neumann neighborhood, the diamond of cells within radius steps
+     * up, down, left and right.
+     * @param radius the radius
+     * @return the neighborhood
+     */
+    public static Neighborhood vonNeumann(int radius)
+    {
+        int [][] w = grid(radius);
+        for(int dy=-radius; dy<=radius; dy++) {
+            for(int dx=-radius; dx<=radius; dx++) {
+                w[dy + radius][dx + radius] = Math.abs(dx) + Math.abs(dy) <= radius ? 1 : 0;
+            }
+        }
+        return new Neighborhood(w);
+    }
+
+
+    /**
+     * Make a circular neighborhood, the cells whose centers are within radius
+     * plus a half of the center, which gives a rounder disc than radius alone.
+     * @param radius the radius
+     * @return the neighborhood
+     */
+    public static Neighborhood circular(int radius)
+    {
+        int [][] w = grid(radius);
+        for(int dy=-radius; dy<=radius; dy++) {
+            for(int dx=-radius; dx<=radius; dx++) {
+                w[dy + radius][dx + radius] = dx*dx + dy*dy <= radius*radius + radius ? 1 : 0;
+            }
+        }
+        return new Neighborhood(w);
+    }
+
+
+    /**
+     * Make a neighborhood from a kernel of weights.
+     * @param weights weights[dy+r][dx+r] is the weight of the cell at (dx, dy) from
+     *                the center. It must be square and an odd number of cells across,
+     *                and the weights must not be negative.
+     * @return the neighborhood
+     */
+    public static Neighborhood weighted(int[][] weights)
+    {
+        return new Neighborhood(weights);
+    }
+
+
+    /**
+     * Make a neighborhood from a description such as moore:1, vonneumann:3 or
+     * circular:8, a shape and a radius, as given on a command line.
+     * @param spec the description
+     * @return the neighborhood
+     * @throws IllegalArgumentException if the description is not understood
+     */
+    public static Neighborhood parse(String spec)
+    {
+        String [] parts = spec.split(":");
+        if(parts.length != 2) {
+            throw new IllegalArgumentException("neighborhood must be shape:radius");
+        }
+        int radius = Integer.parseInt(parts[1]);
+
+        switch(parts[0]) {
+            case "moore":      return moore(radius);
+            case "vonneumann": return vonNeumann(radius);
+            case "circular":   return circular(radius);
+            default:
+                throw new IllegalArgumentException("neighborhood must be moore, vonneumann or circular");
+        }
+    }
+
+
+    /**
+     * Make an empty square kernel.
+     */
+    private static int[][] grid(int radius)
+    {
+        if(radius < 0) {
+            throw new IllegalArgumentException("the radius must not be negative");
+        }
+        return new int[2*radius + 1][2*radius + 1];
+    }
+
+
+    /**
+     * Get the radius.
+     * @return the distance from the center to the edge
+     */
+    public int getRadius()
+    {
+        return radius;
+    }
+
+
+    /**
+     * Get the weight of a cell.
+     * @param dx the column offset from the center
+     * @param dy the row offset from the center
+     * @return the weight, 0 for cells outside the neighborhood
+     */
+    public int getWeight(int dx, int dy)
+    {
+        if(Math.abs(dx) > radius || Math.abs(dy) > radius) {
+            return 0;
+        }
+        return weights[dy + radius][dx + radius];
+    }
+
+
+    /**
+     * Get the largest count the neighborhood can produce, the sum of its weights.
+     * @return the largest count
+     */
+    public int getMaxCount()
+    {
+        return maxCount;
+    }
+
+
+    /**
+     * Determine whether this is a full square of cells of weight 1.
+     * @return true for a Moore neighborhood
+     */
+    public boolean isBox()
+    {
+        return box;
+    }
+
+
+    /**
+     * Get the number of runs of equal weight.
+     * @return the number of runs
+     */
+    int getNumRuns()
+    {
+        return runDy.length;
+    }
+
+
+    /**
+     * Get the row offset of a run.
+     */
+    int getRunDy(int k)
+    {
+        return runDy[k];
+    }
+
+
+    /**
+     * Get the first column offset of a run.
+     */
+    int getRunX0(int k)
+    {
+        return runX0[k];
+    }
+
+
+    /**
+     * Get the last column offset of a run, inclusive.
+     */
+    int getRunX1(int k)
+    {
+        return runX1[k];
+    }
+
+
+    /**
+     * Get the weight of the cells of a run.
+     */
+    int getRunWeight(int k)
+    {
+        return runWeight[k];
+    }
+}
@@ -0,0 +1,167 @@
+package edu.semo.casim;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Cells kept outside the heap, in direct buffers or in a memory mapped file.
+ * The cells are split into chunks of 2^30, so there can be far more than 2^31
+ * of them, and the garbage collector never has to scan them. A mapped file
+ * lets the operating system page a grid larger than memory.
+ */
+public class OffHeapStorage extends CellStorage
+{
+    public static final Factory FACTORY = OffHeapStorage::new; // Makes direct buffer storage
+
+    private static final int SHIFT = 30;                  // log2 of the chunk size
+    private static final long MASK = (1L << SHIFT) - 1;  // The index within a chunk
+
+    private long size;           // The number of cells
+    private ByteBuffer [] chunks; // The cells, 2^SHIFT to a chunk
+    private ThreadLocal<ByteBuffer[]> views; // per thread duplicates of the chunks, for bulk copies
+
+
+    /**
+     * Construct storage in direct buffers.
+     * @param size the number of cells
+     */
+    public OffHeapStorage(long size)
+    {
+        this.size = size;
+        chunks = new ByteBuffer[chunkCount(size)];
+        views = new ThreadLocal<ByteBuffer[]>();
+        for(int i=0; i<chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(chunkSize(size, i));
+        }
+    }
+
+
+    /**
+     * Construct storage mapped from a file, which is created or resized as needed.
+     * @param file the file to map
+     * @param size the number of cells
+     * @throws IOException if the file cannot be mapped
+     */
+    public OffHeapStorage(Path file, long size) throws IOException
+    {
+        this.size = size;
+        chunks = new ByteBuffer[chunkCount(size)];
+        views = new ThreadLocal<ByteBuffer[]>();
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                              StandardOpenOption.WRITE)) {
+            ch.truncate(size);
+            for(int i=0; i<chunks.length; i++) {
+                chunks[i] = ch.map(FileChannel.MapMode.READ_WRITE, (long) i << SHIFT, chunkSize(size, i));
+            }
+        }
+    }
+
+
+    /**
+     * Get a factory which maps each grid buffer from a temporary file in a
+     * directory. The files are deleted when the JVM exits.
+     * @param directory where to put the files
+     * @return the factory
+     */
+    public static Factory mapped(Path directory)
+    {
+        return size -> {
+            try {
+                Path file = Files.createTempFile(directory, "casim", ".cells");
+                file.toFile().deleteOnExit();
+                return new OffHeapStorage(file, size);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+
+    private static int chunkCount(long size)
+    {
+        return (int) ((size + MASK) >>> SHIFT);
+    }
+
+
+    private static int chunkSize(long size, int i)
+    {
+        return (int) Math.min(1L << SHIFT, size - ((long) i << SHIFT));
+    }
+
+
+    /**
+     * Get the calling thread's own duplicate of a chunk, whose position it is
+     * free to move. The bulk copies use these rather than making a duplicate
+     * each time, as the absolute bulk methods are newer than Java 11.
+     */
+    private ByteBuffer view(int i)
+    {
+        ByteBuffer [] v = views.get();
+        if(v == null) {
+            v = new ByteBuffer[chunks.length];
+            views.set(v);
+        }
+        if(v[i] == null) {
+            v[i] = chunks[i].duplicate();
+        }
+        return v[i];
+    }
+
+
+    @Override
+    public long size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public byte get(long index)
+    {
+        return chunks[(int) (index >>> SHIFT)].get((int) (index & MASK));
+    }
+
+
+    @Override
+    public void set(long index, byte state)
+    {
+        chunks[(int) (index >>> SHIFT)].put((int) (index & MASK), state);
+    }
+
+
+    @Override
+    public void get(long index, byte[] states, int offset, int length)
+    {
+        while(length > 0) {
+            ByteBuffer chunk = view((int) (index >>> SHIFT));
+            int at = (int) (index & MASK);
+            int n = Math.min(length, chunk.capacity() - at);
+            chunk.position(at);
+            chunk.get(states, offset, n);
+            index += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+
+    @Override
+    public void set(long index, byte[] states, int offset, int length)
+    {
+        while(length > 0) {
+            ByteBuffer chunk = view((int) (index >>> SHIFT));
+            int at = (int) (index & MASK);
+            int n = Math.min(length, chunk.capacity() - at);
+            chunk.position(at);
+            chunk.put(states, offset, n);
+            index += n;
+            offset += n;
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package edu.semo.casim;
+
+import java.util.Arrays;
+
+/**
+ * Per state population counts of a CA over time, and the number of cells which
+ * moved between each pair of states. Everything is gathered by the tiles while
+ * they step, so keeping it costs no extra pass over the grid. The series are
+ * stored as flat primitive arrays which grow as the run goes on, unless a
+ * window is set, in which case only the latest generations are kept. A
+ * StatsWriter sets one while it is attached, as it has the rest on disk.
+ */
+public class PopulationStats
+{
+    private int numStates;      // The number of states
+    private int first;          // The first generation recorded
+    private int length;         // The number of generations recorded
+    private int window;         // The number of generations sure to be kept, 0 for all of them
+    private long [] counts;     // counts[(g-first)*numStates + s] is the population of s in generation g
+    private long [] last;       // The transitions of the latest generation, [from*numStates + to]
+    private long [] total;      // The transitions summed over the whole run
+    private long [] peak;       // The largest population of each state
+    private int [] peakGeneration; // The generation each peak was first reached
+
+
+    /**
+     * Construct an empty set of statistics.
+     * @param numStates the number of states
+     */
+    public PopulationStats(int numStates)
+    {
+        this.numStates = numStates;
+        last = new long[numStates * numStates];
+        total = new long[numStates * numStates];
+        peak = new long[numStates];
+        peakGeneration = new int[numStates];
+        clear();
+    }
+
+
+    /**
+     * Forget everything recorded so far. The series keeps its memory, so a
+     * grid which is reset and run again does not allocate it again.
+     */
+    public void clear()
+    {
+        first = 0;
+        length = 0;
+        if(counts == null) {
+            counts = new long[numStates * 64];
+        }
+        Arrays.fill(last, 0);
+        Arrays.fill(total, 0);
+        Arrays.fill(peak, 0);
+        Arrays.fill(peakGeneration, 0);
+    }
+
+
+    /**
+     * Keep only the latest generations of the series from now on. Older ones
+     * are dropped a batch at a time, so up to twice as many may be held.
+     * @param window the number of generations to keep, at least 2, or 0 to keep them all
+     */
+    public void setWindow(int window)
+    {
+        if(window != 0 && window < 2) {
+            throw new IllegalArgumentException("a window must keep at least 2 generations");
+        }
+        this.window = window;
+    }
+
+
+    /**
+     * Get the number of generations the series is sure to keep.
+     * @return the window, or 0 if every generation is kept
+     */
+    public int getWindow()
+    {
+        return window;
+    }
+
+
+    /**
+     * Record a step from generation-1 to generation. The populations of both
+     * generations follow from the transitions: the cells leaving each state are
+     * the old population, the cells entering it are the new one. The old
+     * population replaces whatever was recorded for generation-1, so cells set
+     * by hand between steps are accounted for.
+     * @param generation the generation just reached
+     * @param transitions the number of cells which moved, indexed [from*numStates + to]
+     */
+    public void record(int generation, long[] transitions)
+    {
+        // start the series if it is empty or no longer continuous
+        if(length == 0 || generation - 1 != first + length - 1) {
+            clear();
+            first = generation - 1;
+            length = 1;
+        }
+
+        // drop the generations before the window, keeping window-1 and the new one
+        if(window > 0 && length >= 2 * window) {
+            int drop = length - (window - 1);
+            System.arraycopy(counts, drop * numStates, counts, 0, (length - drop) * numStates);
+            first += drop;
+            length -= drop;
+        }
+
+        // make room for the new generation
+        if((length+1) * numStates > counts.length) {
+            counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+
+        int prev = (length-1) * numStates;
+        int next = length * numStates;
+        Arrays.fill(counts, prev, next + numStates, 0);
+        for(int from=0; from<numStates; from++) {
+            for(int to=0; to<numStates; to++) {
+                long n = transitions[from*numStates + to];
+                counts[prev + from] += n;
+                counts[next + to] += n;
+                total[from*numStates + to] += n;
+            }
+        }
+        System.arraycopy(transitions, 0, last, 0, last.length);
+        length++;
+
+        // track the peaks
+        for(int g=generation-1; g<=generation; g++) {
+            for(int s=0; s<numStates; s++) {
+                long n = getCount(g, s);
+                if(n > peak[s]) {
+                    peak[s] = n;
+                    peakGeneration[s] = g;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Get the number of states.
+     * @return the number of states
+     */
+    public int getNumStates()
+    {
+        return numStates;
+    }
+
+
+    /**
+     * Get the first generation in the series.
+     * @return the first generation recorded
+     */
+    public int getFirstGeneration()
+    {
+        return first;
+    }
+
+
+    /**
+     * Get the last generation in the series.
+     * @return the last generation recorded, or first-1 if nothing has been recorded
+     */
+    public int getLastGeneration()
+    {
+        return first + length - 1;
+    }
+
+
+    /**
+     * Get the population of a state in a generation. With a window set, only
+     * the latest getWindow() generations are sure to be held, and
+     * getFirstGeneration() moves forward as older ones are dropped.
+     * @param generation a generation between getFirstGeneration() and getLastGeneration()
+     * @param state the state
+     * @return the number of cells in the state
+     */
+    public long getCount(int generation, int state)
+    {
+        return counts[(generation - first)*numStates + state];
+    }
+
+
+    /**
+     * Get the population of a state in every recorded generation.
+     * @param state the state
+     * @return a new array, entry i is the population in generation getFirstGeneration()+i
+     */
+    public long[] getSeries(int state)
+    {
+        long [] series = new long[length];
+        for(int i=0; i<length; i++) {
+            series[i] = counts[i*numStates + state];
+        }
+        return series;
+    }
+
+
+    /**
+     * Get the largest population a state has reached.
+     * @param state the state
+     * @return the peak population
+     */
+    public long getPeak(int state)
+    {
+        return peak[state];
+    }
+
+
+    /**
+     * Get the generation in which a state first reached its peak.
+     * @param state the state
+     * @return the generation of the peak
+     */
+    public int getPeakGeneration(int state)
+    {
+        return peakGeneration[state];
+    }
+
+
+    /**
+     * Get the number of cells which moved between two states in the latest step.
+     * @param from the old state
+     * @param to the new state
+     * @return the number of cells
+     */
+    public long getTransitions(int from, int to)
+    {
+        return last[from*numStates + to];
+    }
+
+
+    /**
+     * Get the number of cells which moved between two states over the whole run.
+     * @param from the old state
+     * @param to the new state
+     * @return the number of cells
+     */
+    public long getTotalTransitions(int from, int to)
+    {
+        return total[from*numStates + to];
+    }
+
+
+    /**
+     * Get the number of cells which entered a state from any other over the
+     * whole run, for example the cumulative deaths.
+     * @param state the state
+     * @return the number of cells
+     */
+    public long getTotalEntered(int state)
+    {
+        long n = 0;
+        for(int from=0; from<numStates; from++) {
+            if(from != state) {
+                n += total[from*numStates + state];
+            }
+        }
+        return n;
+    }
+}
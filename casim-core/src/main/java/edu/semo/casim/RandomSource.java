@@ -0,0 +1,68 @@
+package edu.semo.casim;
+
+/**
+ * A source of uniform random numbers for a CA. Every random draw made while
+ * randomizing or stepping a grid comes from one of these, so a run can be
+ * replayed from its seed. Implementations need not be thread safe; each tile
+ * gets its own copy.
+ */
+public interface RandomSource
+{
+    /**
+     * Restart the stream from the given seed.
+     * @param seed the seed
+     */
+    public void setSeed(long seed);
+
+
+    /**
+     * Get the next 64 random bits.
+     * @return a uniformly distributed long
+     */
+    public long nextLong();
+
+
+    /**
+     * Get a new, independent source of the same kind. Its seed must be set
+     * before it is used.
+     * @return a fresh source
+     */
+    public RandomSource copy();
+
+
+    /**
+     * Get the next uniform double.
+     * @return a double in [0, 1)
+     */
+    public default double nextDouble()
+    {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+
+    /**
+     * Get the next uniform int in a range.
+     * @param origin the smallest value (inclusive)
+     * @param bound the largest value (exclusive)
+     * @return an int in [origin, bound)
+     */
+    public default int nextInt(int origin, int bound)
+    {
+        // scale the top 32 bits onto the range
+        return origin + (int) (((nextLong() >>> 32) * ((long) bound - origin)) >>> 32);
+    }
+
+
+    /**
+     * Fill part of an array with uniform doubles, for example one per cell of a row.
+     * @param dst the array to fill
+     * @param offset the first entry to fill
+     * @param length the number of entries to fill
+     */
+    public default void nextDoubles(double[] dst, int offset, int length)
+    {
+        for(int i=offset; i<offset+length; i++) {
+            dst[i] = nextDouble();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package edu.semo.casim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Records every generation of a grid to a file, for analysis or playback with
+ * a ReplayGrid. Only the cells which changed are written, except for a full
+ * keyframe every so many generations, so a recording stays small and can be
+ * seeked quickly.
+ *
+ * The file is little endian and only ever appended to. The header is
+ *   int magic "CASR", int version, int width, int height, int numStates,
+ *   int flags (1 toroidal), int keyframe interval, long seed
+ * and it is followed by one record per generation,
+ *   byte type, int generation, int payload length, payload.
+ * A keyframe payload is the cells in row major order as runs of
+ *   varint length, byte state.
+ * A delta payload is the rows which changed,
+ *   int number of rows, then for each row varint y, varint number of runs,
+ *   and for each run varint cells skipped, varint length, and the length cells
+ *   XORed with their previous states.
+ */
+public class Recorder implements StepListener, Closeable
+{
+    public static final int MAGIC = 0x52534143; // "CASR" read as a little endian int
+    public static final int VERSION = 1;        // The version of the format written
+    static final int HEADER_SIZE = 36;          // The size of the header in bytes
+    static final int RECORD_HEADER_SIZE = 9;    // The size of a record's type, generation and length
+    static final byte KEYFRAME = 1;             // Record type of a full frame
+    static final byte DELTA = 2;                // Record type of the changed rows
+
+    private CAGrid ca;          // The grid being recorded
+    private FileChannel ch;     // The recording
+    private int interval;       // The number of generations between keyframes
+    private int first;          // The first generation recorded
+    private CellStorage prev;   // The cells as of the last record, in the grid's kind of storage
+    private byte [] row;        // One row of the current cells
+    private byte [] last;       // The same row as of the last record
+    private ByteBuffer out;     // The record being built
+
+
+    /**
+     * Start recording a grid. The current generation is written as a
+     * keyframe, and the following ones are written as the grid is stepped
+     * with next() until the recorder is closed.
+     * @param ca the grid
+     * @param path the file to write, it is replaced if it exists
+     * @param interval the number of generations between keyframes
+     * @throws IOException if the file cannot be written
+     */
+    public Recorder(CAGrid ca, Path path, int interval) throws IOException
+    {
+        if(interval < 1) {
+            throw new IllegalArgumentException("the keyframe interval must be at least 1");
+        }
+
+        this.ca = ca;
+        this.interval = interval;
+        this.first = ca.getGeneration();
+        prev = ca.storage().create((long) ca.getWidth() * ca.getHeight());
+        row = new byte[ca.getWidth()];
+        last = new byte[ca.getWidth()];
+        out = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                              StandardOpenOption.WRITE);
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(ca.getWidth());
+        out.putInt(ca.getHeight());
+        out.putInt(ca.getNumStates());
+        out.putInt(ca.isToroidal() ? 1 : 0);
+        out.putInt(interval);
+        out.putLong(ca.getSeed());
+        flush();
+
+        writeKeyframe();
+        ca.addListener(this);
+    }
+
+
+    /**
+     * Record the generation the grid just reached.
+     * @param ca the grid
+     */
+    @Override
+    public void stepped(CAGrid ca)
+    {
+        try {
+            if((ca.getGeneration() - first) % interval == 0) {
+                writeKeyframe();
+            } else {
+                writeDelta();
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Stop recording and close the file.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        ca.removeListener(this);
+        ch.close();
+    }
+
+
+    /**
+     * Write every cell of the current generation.
+     */
+    private void writeKeyframe() throws IOException
+    {
+        int w = ca.getWidth();
+        beginRecord(KEYFRAME);
+
+        int run = 0;
+        byte state = 0;
+        for(int y=0; y<ca.getHeight(); y++) {
+            ca.getCells(0, y, row, 0, w);
+            prev.set((long) y*w, row, 0, w);
+            for(int x=0; x<w; x++) {
+                byte s = row[x];
+                if(s == state && run > 0) {
+                    run++;
+                    continue;
+                }
+                if(run > 0) {
+                    putVarint(run);
+                    put(state);
+                }
+                state = s;
+                run = 1;
+            }
+        }
+        if(run > 0) {
+            putVarint(run);
+            put(state);
+        }
+
+        endRecord();
+    }
+
+
+    /**
+     * Write the cells which changed since the last record.
+     */
+    private void writeDelta() throws IOException
+    {
+        int w = ca.getWidth();
+        beginRecord(DELTA);
+
+        //the row count is patched in once it is known
+        int countAt = out.position();
+        out.putInt(0);
+        int rows = 0;
+
+        for(int y=0; y<ca.getHeight(); y++) {
+            long base = (long) y*w;
+            ca.getCells(0, y, row, 0, w);
+            prev.get(base, last, 0, w);
+            int x = Arrays.mismatch(row, 0, w, last, 0, w);
+            if(x < 0) { continue; }
+            rows++;
+            putVarint(y);
+
+            //count the runs of changed cells, then write them
+            int runs = 0;
+            for(int i=x; i<w; ) {
+                while(i < w && row[i] == last[i]) { i++; }
+                if(i == w) { break; }
+                runs++;
+                while(i < w && row[i] != last[i]) { i++; }
+            }
+            putVarint(runs);
+
+            int skip = 0;
+            for(int i=x; i<w; ) {
+                while(i < w && row[i] == last[i]) { i++; }
+                if(i == w) { break; }
+                int start = i;
+                while(i < w && row[i] != last[i]) { i++; }
+                putVarint(start - skip);
+                putVarint(i - start);
+                for(int j=start; j<i; j++) {
+                    put((byte) (row[j] ^ last[j]));
+                }
+                skip = i;
+            }
+            prev.set(base, row, 0, w);
+        }
+
+        out.putInt(countAt, rows);
+        endRecord();
+    }
+
+
+    /**
+     * Start a record of the current generation.
+     */
+    private void beginRecord(byte type)
+    {
+        out.clear();
+        out.put(type);
+        out.putInt(ca.getGeneration());
+        out.putInt(0);
+    }
+
+
+    /**
+     * Fill in the length of the record and append it to the file.
+     */
+    private void endRecord() throws IOException
+    {
+        out.putInt(5, out.position() - RECORD_HEADER_SIZE);
+        flush();
+    }
+
+
+    /**
+     * Append the buffer to the file.
+     */
+    private void flush() throws IOException
+    {
+        out.flip();
+        while(out.hasRemaining()) {
+            ch.write(out);
+        }
+        out.clear();
+    }
+
+
+    /**
+     * Put a byte, growing the buffer if needed.
+     */
+    private void put(byte b)
+    {
+        if(!out.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        out.put(b);
+    }
+
+
+    /**
+     * Put a non-negative varint.
+     */
+    private void putVarint(int v)
+    {
+        while((v & ~0x7f) != 0) {
+            put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        put((byte) v);
+    }
+
+
+    /**
+     * Read a varint written by putVarint.
+     * @param in the buffer to read from
+     * @return the value
+     */
+    static int getVarint(ByteBuffer in)
+    {
+        int v = 0;
+        for(int shift=0; ; shift+=7) {
+            byte b = in.get();
+            v |= (b & 0x7f) << shift;
+            if(b >= 0) { return v; }
+        }
+    }
+}
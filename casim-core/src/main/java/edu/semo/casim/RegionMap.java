@@ -0,0 +1,388 @@
+package edu.semo.casim;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Gives each cell of a grid a region, so places can differ: a region may have
+ * rules of its own, as Covid7State.setRegionRules() sets, and region EMPTY
+ * marks cells where nobody lives. A grid given a map with CAGrid.setRegions()
+ * never counts an empty cell as a neighbor, and rules which know about regions
+ * skip empty cells altogether.
+ *
+ * The regions are kept as one unsigned byte per cell, in the same kind of
+ * storage as the cells, so there are at most 256 of them. A map is usually
+ * read from a raster, each grey level of a PGM image or byte of a raw file
+ * being the region of a cell; a population density raster quantized to a few
+ * levels, with black where the land is empty, serves as it is.
+ */
+public class RegionMap
+{
+    public static final int EMPTY = 0;          // The region of cells where nobody lives
+    public static final int MAX_REGIONS = 256;  // The number of regions a map can hold
+
+    private int width;             // The width of the map
+    private int height;            // The height of the map
+    private CellStorage regions;   // regions[y*width + x] is the region of cell (x, y)
+    private ThreadLocal<byte[]> scratch; // per thread runs of regions
+
+
+    /**
+     * Construct a map on the heap with every cell in region 1.
+     * @param width the width of the grid
+     * @param height the height of the grid
+     */
+    public RegionMap(int width, int height)
+    {
+        this(width, height, HeapStorage.FACTORY);
+    }
+
+
+    /**
+     * Construct a map with every cell in region 1.
+     * @param width the width of the grid
+     * @param height the height of the grid
+     * @param storage makes the region plane, as for the cells of the grid
+     */
+    public RegionMap(int width, int height, CellStorage.Factory storage)
+    {
+        if(width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("a region map must be at least 1x1");
+        }
+        this.width = width;
+        this.height = height;
+        regions = storage.create((long) width * height);
+        scratch = new ThreadLocal<byte[]>();
+        fill(0, 0, width, height, 1);
+    }
+
+
+    /**
+     * Read a map from a binary (P5) or plain (P2) PGM image, one grey level a
+     * region. Images with more than 256 grey levels are refused.
+     * @param path the image
+     * @param storage makes the region plane
+     * @return the map
+     * @throws IOException if the file cannot be read or is not such an image
+     */
+    public static RegionMap readPgm(Path path, CellStorage.Factory storage) throws IOException
+    {
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            int m0 = in.read();
+            int m1 = in.read();
+            if(m0 != 'P' || (m1 != '5' && m1 != '2')) {
+                throw new IOException(path + " is not a PGM image");
+            }
+            int w = readNumber(in);
+            int h = readNumber(in);
+            int maxval = readNumber(in);
+            if(w <= 0 || h <= 0 || maxval <= 0 || maxval >= MAX_REGIONS) {
+                throw new IOException(path + " must be a PGM image with at most " + MAX_REGIONS + " grey levels");
+            }
+
+            RegionMap map = new RegionMap(w, h, storage);
+            byte [] row = new byte[w];
+            for(int y=0; y<h; y++) {
+                if(m1 == '5') {
+                    readFully(in, row);
+                } else {
+                    for(int x=0; x<w; x++) {
+                        int v = readNumber(in);
+                        if(v > maxval) {
+                            throw new IOException("grey level " + v + " is over the maximum of " + maxval);
+                        }
+                        row[x] = (byte) v;
+                    }
+                }
+                map.set(0, y, row, 0, w);
+            }
+            return map;
+        }
+    }
+
+
+    /**
+     * Read a map from a raw file of one byte a cell in row major order, with
+     * no header.
+     * @param path the file
+     * @param width the width of the grid
+     * @param height the height of the grid
+     * @param storage makes the region plane
+     * @return the map
+     * @throws IOException if the file cannot be read or is not width*height bytes
+     */
+    public static RegionMap readRaw(Path path, int width, int height, CellStorage.Factory storage) throws IOException
+    {
+        long size = Files.size(path);
+        if(size != (long) width * height) {
+            throw new IOException(path + " holds " + size + " bytes, not " + width + "x" + height);
+        }
+
+        RegionMap map = new RegionMap(width, height, storage);
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            byte [] row = new byte[width];
+            for(int y=0; y<height; y++) {
+                readFully(in, row);
+                map.set(0, y, row, 0, width);
+            }
+        }
+        return map;
+    }
+
+
+    /**
+     * Read a file by its extension, a PGM image for .pgm and raw bytes otherwise.
+     * @param path the file
+     * @param width the width of the grid, for a raw file
+     * @param height the height of the grid, for a raw file
+     * @param storage makes the region plane
+     * @return the map
+     * @throws IOException if the file cannot be read
+     */
+    public static RegionMap read(Path path, int width, int height, CellStorage.Factory storage) throws IOException
+    {
+        if(path.getFileName().toString().toLowerCase().endsWith(".pgm")) {
+            return readPgm(path, storage);
+        }
+        return readRaw(path, width, height, storage);
+    }
+
+
+    /**
+     * Read one whitespace separated decimal number of a PGM header or plain
+     * body, skipping comments.
+     */
+    private static int readNumber(InputStream in) throws IOException
+    {
+        int c = in.read();
+        while(c == '#' || Character.isWhitespace(c)) {
+            if(c == '#') {
+                while(c != '\n' && c != '\r' && c != -1) {
+                    c = in.read();
+                }
+            }
+            c = in.read();
+        }
+        if(c < '0' || c > '9') {
+            throw new IOException("expected a number in the PGM image");
+        }
+
+        int n = 0;
+        while(c >= '0' && c <= '9') {
+            n = Math.addExact(Math.multiplyExact(n, 10), c - '0');
+            c = in.read();
+        }
+        //the character after the number is dropped, which after the maxval is the one ending the header
+        return n;
+    }
+
+
+    /**
+     * Fill a buffer from a stream.
+     */
+    private static void readFully(InputStream in, byte[] buf) throws IOException
+    {
+        int n = 0;
+        while(n < buf.length) {
+            int r = in.read(buf, n, buf.length - n);
+            if(r < 0) {
+                throw new EOFException("the region file is truncated");
+            }
+            n += r;
+        }
+    }
+
+
+    /**
+     * Get the width of the map.
+     * @return the width
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    /**
+     * Get the height of the map.
+     * @return the height
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    /**
+     * Get the region of a cell.
+     * @param x x coordinate (zero based)
+     * @param y y coordinate (zero based)
+     * @return the region, 0 to 255
+     */
+    public int get(int x, int y)
+    {
+        return regions.get((long) y*width + x) & 0xff;
+    }
+
+
+    /**
+     * Get the regions of a run of cells in one row, as unsigned bytes.
+     * @param x x coordinate of the first cell (zero based)
+     * @param y y coordinate (zero based)
+     * @param ids receives the regions
+     * @param offset the index in ids of the first cell
+     * @param length the number of cells
+     */
+    public void get(int x, int y, byte[] ids, int offset, int length)
+    {
+        regions.get((long) y*width + x, ids, offset, length);
+    }
+
+
+    /**
+     * Set the region of a cell. A grid only sees the change when the map is
+     * given to it again.
+     * @param x x coordinate (zero based)
+     * @param y y coordinate (zero based)
+     * @param region the region, 0 to 255
+     */
+    public void set(int x, int y, int region)
+    {
+        regions.set((long) y*width + x, checkRegion(region));
+    }
+
+
+    /**
+     * Set the regions of a run of cells in one row, as unsigned bytes.
+     * @param x x coordinate of the first cell (zero based)
+     * @param y y coordinate (zero based)
+     * @param ids the regions
+     * @param offset the index in ids of the first cell
+     * @param length the number of cells
+     */
+    public void set(int x, int y, byte[] ids, int offset, int length)
+    {
+        regions.set((long) y*width + x, ids, offset, length);
+    }
+
+
+    /**
+     * Put a rectangle of cells in a region.
+     * @param x0 left edge (inclusive)
+     * @param y0 top edge (inclusive)
+     * @param x1 right edge (exclusive)
+     * @param y1 bottom edge (exclusive)
+     * @param region the region, 0 to 255
+     */
+    public void fill(int x0, int y0, int x1, int y1, int region)
+    {
+        byte [] row = new byte[Math.max(x1 - x0, 0)];
+        Arrays.fill(row, checkRegion(region));
+        for(int y=y0; y<y1; y++) {
+            set(x0, y, row, 0, row.length);
+        }
+    }
+
+
+    /**
+     * Check that a region fits in a byte.
+     */
+    private static byte checkRegion(int region)
+    {
+        if(region < 0 || region >= MAX_REGIONS) {
+            throw new IllegalArgumentException("regions must be between 0 and " + (MAX_REGIONS - 1));
+        }
+        return (byte) region;
+    }
+
+
+    /**
+     * Count the cells which are not empty.
+     * @return the number of populated cells
+     */
+    public long countPopulated()
+    {
+        long n = 0;
+        byte [] row = buffer(width);
+        for(int y=0; y<height; y++) {
+            get(0, y, row, 0, width);
+            for(int x=0; x<width; x++) {
+                n += row[x] != EMPTY ? 1 : 0;
+            }
+        }
+        return n;
+    }
+
+
+    /**
+     * Determine whether every cell of a rectangle is empty.
+     * @param x0 left edge (inclusive)
+     * @param y0 top edge (inclusive)
+     * @param x1 right edge (exclusive)
+     * @param y1 bottom edge (exclusive)
+     * @return true if nobody lives in the rectangle
+     */
+    public boolean isEmpty(int x0, int y0, int x1, int y1)
+    {
+        byte [] row = buffer(x1 - x0);
+        for(int y=y0; y<y1; y++) {
+            get(x0, y, row, 0, x1 - x0);
+            for(int x=0; x<x1-x0; x++) {
+                if(row[x] != EMPTY) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Determine whether a cell is empty.
+     * @param index the cell, y*width + x
+     * @return true if nobody lives there
+     */
+    boolean isEmpty(long index)
+    {
+        return regions.get(index) == EMPTY;
+    }
+
+
+    /**
+     * Set the states of the empty cells of a run to -1, the mark of a cell
+     * off the grid, so the neighborhood counts pass over them. Every cell is
+     * or'ed with a mask made from its region without a branch.
+     * @param index the first cell of the run, y*width + x
+     * @param line the states of the run
+     * @param offset the index in line of the first cell
+     * @param length the number of cells
+     */
+    void mask(long index, byte[] line, int offset, int length)
+    {
+        byte [] ids = buffer(length);
+        regions.get(index, ids, 0, length);
+        for(int i=0; i<length; i++) {
+            //region 0 less 1 is -1, all ones, and any other region gives 0
+            line[offset + i] |= (byte) (((ids[i] & 0xff) - 1) >> 31);
+        }
+    }
+
+
+    /**
+     * Get a scratch buffer of at least the given size belonging to the calling thread.
+     */
+    private byte[] buffer(int size)
+    {
+        byte [] buf = scratch.get();
+        if(buf == null || buf.length < size) {
+            buf = new byte[size];
+            scratch.set(buf);
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,354 @@
+package edu.semo.casim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Plays back a file written by a Recorder. Each call to next() advances to the
+ * next recorded generation without running any rules, so a replay can be shown
+ * by a CAGridAnimator or analysed like any other grid. seek() jumps to any
+ * recorded generation by decoding forward from the keyframe before it.
+ *
+ * A recording cut short, say by a crash, plays up to its last complete record.
+ */
+public class ReplayGrid extends CAGrid implements Closeable
+{
+    private FileChannel ch;     // The recording
+    private int interval;       // The number of generations between keyframes
+    private int first;          // The first generation recorded
+    private int count;          // The number of generations recorded
+    private long [] offsets;    // offsets[g-first] is the file position of generation g's record
+    private byte [] types;      // types[g-first] is the record type of generation g
+    private long end;           // The file position after the last complete record
+    private CellStorage target; // The cells of the generation being stepped to
+    private byte [] row;        // One row of the target, for decoding
+    private int decoded;        // The generation held in target
+    private ByteBuffer in;      // The record being decoded
+
+
+    /**
+     * Open a recording, positioned at its first generation.
+     * @param path the file written by a Recorder
+     * @throws IOException if the file cannot be read or is not a recording
+     */
+    public ReplayGrid(Path path) throws IOException
+    {
+        this(path, HeapStorage.FACTORY);
+    }
+
+
+    /**
+     * Open a recording with the given kind of storage, positioned at its first
+     * generation.
+     * @param path the file written by a Recorder
+     * @param storage makes the cell buffers
+     * @throws IOException if the file cannot be read or is not a recording
+     */
+    public ReplayGrid(Path path, CellStorage.Factory storage) throws IOException
+    {
+        this(path, readHeader(path), storage);
+    }
+
+
+    private ReplayGrid(Path path, ByteBuffer header, CellStorage.Factory storage) throws IOException
+    {
+        super(header.getInt(8), header.getInt(12), header.getInt(16), (header.getInt(20) & 1) != 0, storage);
+        interval = header.getInt(24);
+        setSeed(header.getLong(28));
+
+        target = storage.create((long) getWidth() * getHeight());
+        row = new byte[getWidth()];
+        in = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        ch = FileChannel.open(path, StandardOpenOption.READ);
+        index();
+        if(count == 0 || types[0] != Recorder.KEYFRAME) {
+            ch.close();
+            throw new IOException("recording has no first keyframe");
+        }
+
+        seek(first);
+    }
+
+
+    /**
+     * Read and check the header of a recording.
+     */
+    private static ByteBuffer readHeader(Path path) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(Recorder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            while(header.hasRemaining() && ch.read(header) >= 0) { }
+        }
+        if(header.hasRemaining() || header.getInt(0) != Recorder.MAGIC) {
+            throw new IOException("not a recording");
+        }
+        if(header.getInt(4) != Recorder.VERSION) {
+            throw new IOException("unsupported recording version " + header.getInt(4));
+        }
+        if(header.getInt(8) < 1 || header.getInt(12) < 1) {
+            throw new IOException("recording has a bad grid size " + header.getInt(8) + "x" + header.getInt(12));
+        }
+        return header;
+    }
+
+
+    /**
+     * Find every complete record in the file.
+     */
+    private void index() throws IOException
+    {
+        offsets = new long[64];
+        types = new byte[64];
+        count = 0;
+
+        ByteBuffer head = ByteBuffer.allocate(Recorder.RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long pos = Recorder.HEADER_SIZE;
+        long size = ch.size();
+        while(pos + Recorder.RECORD_HEADER_SIZE <= size) {
+            head.clear();
+            while(head.hasRemaining() && ch.read(head, pos + head.position()) >= 0) { }
+            int length = head.getInt(5);
+            if(length < 0 || pos + Recorder.RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+
+            //every generation has exactly one record
+            int gen = head.getInt(1);
+            if(count == 0) {
+                first = gen;
+            } else if(gen != first + count) {
+                throw new IOException("recording skips from generation " + (first + count - 1) + " to " + gen);
+            }
+
+            if(count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                types = Arrays.copyOf(types, count * 2);
+            }
+            offsets[count] = pos;
+            types[count] = head.get(0);
+            count++;
+            pos += Recorder.RECORD_HEADER_SIZE + length;
+        }
+        end = pos;
+    }
+
+
+    /**
+     * Get the first generation in the recording.
+     * @return the generation number
+     */
+    public int getFirstGeneration()
+    {
+        return first;
+    }
+
+
+    /**
+     * Get the last generation in the recording.
+     * @return the generation number
+     */
+    public int getLastGeneration()
+    {
+        return first + count - 1;
+    }
+
+
+    /**
+     * Get the number of generations between keyframes.
+     * @return the keyframe interval
+     */
+    public int getKeyframeInterval()
+    {
+        return interval;
+    }
+
+
+    /**
+     * Determine whether there is a recorded generation after the current one.
+     * @return true if next() will advance
+     */
+    public boolean hasNext()
+    {
+        return getGeneration() < getLastGeneration();
+    }
+
+
+    /**
+     * Jump to a recorded generation. The statistics start over from it.
+     * @param generation the generation, clamped to the recorded range
+     */
+    public void seek(int generation)
+    {
+        int g = Math.max(first, Math.min(generation, getLastGeneration()));
+
+        //decode forward from the keyframe at or before g
+        int k = g - first;
+        while(types[k] != Recorder.KEYFRAME) {
+            k--;
+        }
+        for(int i=k; i<=g-first; i++) {
+            decode(i);
+        }
+        decoded = g;
+
+        int w = getWidth();
+        for(int y=0; y<getHeight(); y++) {
+            target.get((long) y*w, row, 0, w);
+            setCells(0, y, row, 0, w);
+        }
+        setGeneration(g);
+    }
+
+
+    /**
+     * Advance to the next recorded generation. At the end of the recording
+     * this does nothing.
+     */
+    @Override
+    public void next()
+    {
+        if(hasNext()) {
+            super.next();
+        }
+    }
+
+
+    /**
+     * Decode the next generation into the target before the tiles copy it.
+     */
+    @Override
+    protected void beforeStep()
+    {
+        //nextGeneration() may already have decoded it
+        if(hasNext() && decoded != getGeneration() + 1) {
+            decode(getGeneration() + 1 - first);
+            decoded = getGeneration() + 1;
+        }
+    }
+
+
+    /**
+     * Copy a tile of the decoded generation, recording each cell.
+     */
+    @Override
+    protected void step(Tile tile)
+    {
+        int w = getWidth();
+        int x0 = tile.getX0();
+        int span = tile.getWidth();
+        byte [] cells = rowBuffer(span);
+
+        for(int y=tile.getY0(); y<tile.getY1(); y++) {
+            target.get((long) y*w + x0, cells, 0, span);
+            for(int x=0; x<span; x++) {
+                tile.record(getCell(x0 + x, y), cells[x]);
+            }
+            setNextCells(x0, y, cells, 0, span);
+        }
+    }
+
+
+    /**
+     * Apply the record at index i to the target.
+     */
+    private void decode(int i)
+    {
+        ByteBuffer buf = read(i);
+        int w = getWidth();
+
+        if(types[i] == Recorder.KEYFRAME) {
+            //runs carry on from one row to the next
+            int run = 0;
+            byte state = 0;
+            for(int y=0; y<getHeight(); y++) {
+                for(int x=0; x<w; ) {
+                    if(run == 0) {
+                        run = Recorder.getVarint(buf);
+                        state = buf.get();
+                    }
+                    int n = Math.min(run, w - x);
+                    Arrays.fill(row, x, x + n, state);
+                    x += n;
+                    run -= n;
+                }
+                target.set((long) y*w, row, 0, w);
+            }
+            return;
+        }
+
+        int rows = buf.getInt();
+        for(int r=0; r<rows; r++) {
+            long base = (long) Recorder.getVarint(buf) * w;
+            int runs = Recorder.getVarint(buf);
+            int x = 0;
+            target.get(base, row, 0, w);
+            for(int j=0; j<runs; j++) {
+                x += Recorder.getVarint(buf);
+                int length = Recorder.getVarint(buf);
+                for(int end=x+length; x<end; x++) {
+                    row[x] ^= buf.get();
+                }
+            }
+            target.set(base, row, 0, w);
+        }
+    }
+
+
+    /**
+     * Read the payload of the record at index i.
+     */
+    private ByteBuffer read(int i)
+    {
+        try {
+            long pos = offsets[i] + Recorder.RECORD_HEADER_SIZE;
+            int length = (int) ((i + 1 < count ? offsets[i+1] : end) - pos);
+            if(in.capacity() < length) {
+                in = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            in.clear().limit(length);
+            while(in.hasRemaining() && ch.read(in, pos + in.position()) >= 0) { }
+            in.flip();
+            return in;
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * A replay cannot be randomized.
+     */
+    @Override
+    public void randomize()
+    {
+        throw new UnsupportedOperationException("a replay cannot be randomized");
+    }
+
+
+    /**
+     * A replay cannot be randomized.
+     */
+    @Override
+    public void randomize(int percentInfected)
+    {
+        throw new UnsupportedOperationException("a replay cannot be randomized");
+    }
+
+
+    /**
+     * Close the recording.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        ch.close();
+    }
+}
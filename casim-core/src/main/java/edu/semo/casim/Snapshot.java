@@ -0,0 +1,486 @@
+package edu.semo.casim;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves a CAGrid to a file and restores it, so long runs can be checkpointed,
+ * resumed, or inspected offline. A restored grid carries on exactly as the
+ * original would have, since every random stream is derived from the seed and
+ * the generation.
+ *
+ * The file is little endian. The header is
+ *   int magic "CASN", int version, int width, int height, int numStates,
+ *   int flags (1 toroidal, 2 compressed), int generation, long seed,
+ *   int numCounters, long counters[numCounters], long body length
+ * and the body holds the cells in row major order, packed as few bits per cell
+ * as the states need into longs which never split a cell (21 to a long for 7
+ * states). A compressed body stores each run of equal longs as a varint count
+ * followed by the long, which shrinks the large uniform regions of a late run.
+ *
+ * Files are read and written through memory mapped windows, so nothing the
+ * size of the grid is allocated on the heap.
+ */
+public class Snapshot
+{
+    public static final int MAGIC = 0x4e534143; // "CASN" read as a little endian int
+    public static final int VERSION = 1;        // The version of the format written
+
+    private static final int TOROIDAL = 1;      // Flag for a toroidal grid
+    private static final int COMPRESSED = 2;    // Flag for a run length compressed body
+    private static final long WINDOW = 1L << 26; // The most of the file mapped at once
+
+    private int width;          // The width of the grid
+    private int height;         // The height of the grid
+    private int numStates;      // The number of states
+    private boolean toroidal;   // True iff the grid is toroidal
+    private boolean compressed; // True iff the body is compressed
+    private int generation;     // The generation of the cells
+    private long seed;          // The seed of the grid's random streams
+    private long [] counters;   // The counters kept by the grid's subclass
+
+
+    private Snapshot()
+    {
+    }
+
+
+    /**
+     * Save a grid to a file, replacing anything already there.
+     * @param ca the grid
+     * @param path the file to write
+     * @param compress true to run length compress the cells, if that makes them smaller
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(CAGrid ca, Path path, boolean compress) throws IOException
+    {
+        long [] counters = ca.getCounters();
+        int bits = bitsPerCell(ca.getNumStates());
+        long cells = (long) ca.getWidth() * ca.getHeight();
+        long words = (cells + 64/bits - 1) / (64/bits);
+
+        //a compressed body is measured with a first pass, so the file can be sized
+        long body = words * 8;
+        if(compress) {
+            body = 0;
+            Packer in = new Packer(ca, bits);
+            long word = in.next();
+            long run = 1;
+            for(long i=1; i<=words; i++) {
+                long w = i < words ? in.next() : ~word;
+                if(i < words && w == word) {
+                    run++;
+                    continue;
+                }
+                body += varintLength(run) + 8;
+                word = w;
+                run = 1;
+            }
+
+            //a busy grid has few runs, and is stored as it is
+            if(body >= words * 8) {
+                compress = false;
+                body = words * 8;
+            }
+        }
+        long size = 48 + 8L*counters.length + body;
+
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                              StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Mapped out = new Mapped(ch, MapMode.READ_WRITE, size);
+
+            //header
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(ca.getWidth());
+            out.putInt(ca.getHeight());
+            out.putInt(ca.getNumStates());
+            out.putInt((ca.isToroidal() ? TOROIDAL : 0) | (compress ? COMPRESSED : 0));
+            out.putInt(ca.getGeneration());
+            out.putLong(ca.getSeed());
+            out.putInt(counters.length);
+            for(long c : counters) {
+                out.putLong(c);
+            }
+            out.putLong(body);
+
+            //cells
+            Packer in = new Packer(ca, bits);
+            if(!compress) {
+                for(long i=0; i<words; i++) {
+                    out.putLong(in.next());
+                }
+            } else {
+                long word = in.next();
+                long run = 1;
+                for(long i=1; i<=words; i++) {
+                    long w = i < words ? in.next() : ~word;
+                    if(i < words && w == word) {
+                        run++;
+                        continue;
+                    }
+                    out.putVarint(run);
+                    out.putLong(word);
+                    word = w;
+                    run = 1;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Read the header of a saved grid, without its cells.
+     * @param path the file to read
+     * @return the header
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static Snapshot readHeader(Path path) throws IOException
+    {
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readHeader(new Mapped(ch, MapMode.READ_ONLY, ch.size()));
+        }
+    }
+
+
+    /**
+     * Restore a saved grid into an existing grid of the same kind. The cells,
+     * generation, seed and counters are replaced, and the statistics start
+     * over from the restored generation.
+     * @param path the file to read
+     * @param ca the grid to restore into, it must match the saved size and states
+     * @return the header
+     * @throws IOException if the file cannot be read or is not a snapshot
+     * @throws IllegalArgumentException if the grid does not match the snapshot
+     */
+    public static Snapshot read(Path path, CAGrid ca) throws IOException
+    {
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            Mapped in = new Mapped(ch, MapMode.READ_ONLY, ch.size());
+            Snapshot snap = readHeader(in);
+
+            if(snap.width != ca.getWidth() || snap.height != ca.getHeight()
+               || snap.numStates != ca.getNumStates() || snap.toroidal != ca.isToroidal()) {
+                throw new IllegalArgumentException("snapshot is a " + snap.width + "x" + snap.height + " grid with "
+                                                   + snap.numStates + " states, it cannot be restored into a "
+                                                   + ca.getWidth() + "x" + ca.getHeight() + " grid with "
+                                                   + ca.getNumStates() + " states");
+            }
+            in.getLong();
+
+            int bits = bitsPerCell(snap.numStates);
+            long cells = (long) snap.width * snap.height;
+            long words = (cells + 64/bits - 1) / (64/bits);
+            Unpacker out = new Unpacker(ca, bits);
+            if(!snap.compressed) {
+                for(long i=0; i<words; i++) {
+                    out.put(in.getLong());
+                }
+            } else {
+                for(long i=0; i<words; ) {
+                    long run = in.getVarint();
+                    long word = in.getLong();
+                    if(run <= 0 || run > words - i) {
+                        throw new IOException("corrupt snapshot: bad run length " + run);
+                    }
+                    for(long j=0; j<run; j++) {
+                        out.put(word);
+                    }
+                    i += run;
+                }
+            }
+
+            ca.setSeed(snap.seed);
+            ca.setGeneration(snap.generation);
+            ca.setCounters(snap.counters.clone());
+            return snap;
+        }
+    }
+
+
+    /**
+     * Parse the header, leaving the input at the body length.
+     */
+    private static Snapshot readHeader(Mapped in) throws IOException
+    {
+        if(in.getInt() != MAGIC) {
+            throw new IOException("not a snapshot");
+        }
+        int version = in.getInt();
+        if(version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+
+        Snapshot snap = new Snapshot();
+        snap.width = in.getInt();
+        snap.height = in.getInt();
+        snap.numStates = in.getInt();
+        int flags = in.getInt();
+        snap.toroidal = (flags & TOROIDAL) != 0;
+        snap.compressed = (flags & COMPRESSED) != 0;
+        snap.generation = in.getInt();
+        snap.seed = in.getLong();
+        int n = in.getInt();
+        if(snap.width < 0 || snap.height < 0 || snap.numStates < 1 || snap.numStates > Byte.MAX_VALUE || n < 0) {
+            throw new IOException("corrupt snapshot header");
+        }
+        snap.counters = new long[n];
+        for(int i=0; i<n; i++) {
+            snap.counters[i] = in.getLong();
+        }
+        return snap;
+    }
+
+
+    /**
+     * Get the number of bits a cell is packed into.
+     */
+    private static int bitsPerCell(int numStates)
+    {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(numStates - 1));
+    }
+
+
+    /**
+     * Get the number of bytes a varint takes.
+     */
+    private static int varintLength(long v)
+    {
+        int n = 1;
+        while((v >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+
+    /**
+     * Get the width of the saved grid.
+     * @return the width
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    /**
+     * Get the height of the saved grid.
+     * @return the height
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    /**
+     * Get the number of states of the saved grid.
+     * @return the number of states
+     */
+    public int getNumStates()
+    {
+        return numStates;
+    }
+
+
+    /**
+     * Determine whether the saved grid is toroidal.
+     * @return true if the grid wraps around at its edges
+     */
+    public boolean isToroidal()
+    {
+        return toroidal;
+    }
+
+
+    /**
+     * Determine whether the cells are run length compressed.
+     * @return true if the body is compressed
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+
+    /**
+     * Get the generation the saved cells belong to.
+     * @return the generation number
+     */
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+
+    /**
+     * Get the seed of the saved grid's random streams.
+     * @return the seed
+     */
+    public long getSeed()
+    {
+        return seed;
+    }
+
+
+    /**
+     * Get the counters the saved grid kept beyond its cells. For a Covid7State
+     * these are the currently infected, max infected, the generation of the max,
+     * and the number dead.
+     * @return a copy of the counters
+     */
+    public long[] getCounters()
+    {
+        return counters.clone();
+    }
+
+
+    /**
+     * Packs the cells of a grid into longs, a row at a time.
+     */
+    private static class Packer
+    {
+        private CAGrid ca;
+        private int bits;
+        private int perWord;
+        private byte [] row;
+        private int x;
+        private int y;
+
+        Packer(CAGrid ca, int bits)
+        {
+            this.ca = ca;
+            this.bits = bits;
+            this.perWord = 64 / bits;
+            this.row = new byte[ca.getWidth()];
+            this.x = ca.getWidth();
+            this.y = -1;
+        }
+
+        long next()
+        {
+            long word = 0;
+            for(int i=0; i<perWord; i++) {
+                if(x == row.length) {
+                    if(y + 1 >= ca.getHeight()) { break; }
+                    y++;
+                    x = 0;
+                    ca.getCells(0, y, row, 0, row.length);
+                }
+                word |= (long) row[x++] << (i * bits);
+            }
+            return word;
+        }
+    }
+
+
+    /**
+     * Unpacks longs into the cells of a grid, a row at a time.
+     */
+    private static class Unpacker
+    {
+        private CAGrid ca;
+        private int bits;
+        private int perWord;
+        private long mask;
+        private byte [] row;
+        private int x;
+        private int y;
+
+        Unpacker(CAGrid ca, int bits)
+        {
+            this.ca = ca;
+            this.bits = bits;
+            this.perWord = 64 / bits;
+            this.mask = (1L << bits) - 1;
+            this.row = new byte[ca.getWidth()];
+        }
+
+        void put(long word) throws IOException
+        {
+            for(int i=0; i<perWord && y < ca.getHeight(); i++) {
+                int state = (int) ((word >>> (i * bits)) & mask);
+                if(state >= ca.getNumStates()) {
+                    throw new IOException("corrupt snapshot: state " + state + " out of range");
+                }
+                row[x++] = (byte) state;
+                if(x == row.length) {
+                    ca.setCells(0, y, row, 0, row.length);
+                    x = 0;
+                    y++;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Reads or writes a file through a sliding memory mapped window.
+     */
+    private static class Mapped
+    {
+        private FileChannel ch;
+        private MapMode mode;
+        private long size;          // The size of the file
+        private long base;          // The file position of the window
+        private MappedByteBuffer buf;
+
+        Mapped(FileChannel ch, MapMode mode, long size)
+        {
+            this.ch = ch;
+            this.mode = mode;
+            this.size = size;
+        }
+
+        /**
+         * Make sure the window holds the next n bytes.
+         */
+        private void need(int n) throws IOException
+        {
+            if(buf != null && buf.remaining() >= n) { return; }
+
+            long pos = buf == null ? 0 : base + buf.position();
+            long len = Math.min(WINDOW, size - pos);
+            if(len < n) {
+                throw new IOException("snapshot is truncated");
+            }
+            base = pos;
+            buf = ch.map(mode, pos, len);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void putInt(int v) throws IOException { need(4); buf.putInt(v); }
+        void putLong(long v) throws IOException { need(8); buf.putLong(v); }
+        int getInt() throws IOException { need(4); return buf.getInt(); }
+        long getLong() throws IOException { need(8); return buf.getLong(); }
+
+        void putVarint(long v) throws IOException
+        {
+            while((v & ~0x7fL) != 0) {
+                need(1);
+                buf.put((byte) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            need(1);
+            buf.put((byte) v);
+        }
+
+        long getVarint() throws IOException
+        {
+            long v = 0;
+            for(int shift=0; shift<64; shift+=7) {
+                need(1);
+                byte b = buf.get();
+                v |= (long) (b & 0x7f) << shift;
+                if(b >= 0) { return v; }
+            }
+            throw new IOException("corrupt snapshot: bad varint");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package edu.semo.casim;
+
+/**
+ * The splitmix64 generator. Its state is a single counter which is advanced by a
+ * fixed odd constant and scrambled on the way out, so reseeding is free and
+ * nothing is shared between copies. This is the default RandomSource of a CAGrid.
+ */
+public class SplitMixRandom implements RandomSource
+{
+    private static final long GAMMA = 0x9e3779b97f4a7c15L;
+    private long state; // The counter
+
+
+    /**
+     * Construct a generator with a seed of 0.
+     */
+    public SplitMixRandom()
+    {
+        this(0);
+    }
+
+
+    /**
+     * Construct a generator.
+     * @param seed the seed
+     */
+    public SplitMixRandom(long seed)
+    {
+        state = seed;
+    }
+
+
+    @Override
+    public void setSeed(long seed)
+    {
+        state = seed;
+    }
+
+
+    @Override
+    public long nextLong()
+    {
+        state += GAMMA;
+        return mix(state);
+    }
+
+
+    @Override
+    public void nextDoubles(double[] dst, int offset, int length)
+    {
+        long s = state;
+        for(int i=offset; i<offset+length; i++) {
+            s += GAMMA;
+            dst[i] = (mix(s) >>> 11) * 0x1.0p-53;
+        }
+        state = s;
+    }
+
+
+    @Override
+    public RandomSource copy()
+    {
+        return new SplitMixRandom();
+    }
+
+
+    /**
+     * The splitmix64 finalizer. It is also used to scramble seeds.
+     * @param z the value to scramble
+     * @return the scrambled value
+     */
+    public static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
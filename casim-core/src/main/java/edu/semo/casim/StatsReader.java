@@ -0,0 +1,303 @@
+package edu.semo.casim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Loads the statistics written by a StatsWriter, in either format, as a
+ * column of numbers per name, ready to plot. A file which was not closed,
+ * because the run was cut short, is read up to its last whole block.
+ *
+ * Run from the command line it prints a file as CSV, or only some columns:
+ *
+ * java -cp casim-core.jar edu.semo.casim.StatsReader run.cass generation state_0 state_6
+ */
+public class StatsReader
+{
+    private String [] names;    // The names of the columns
+    private long [][] columns;  // columns[c][r] is column c of row r, with room to spare
+    private int rows;           // The number of rows
+
+
+    /**
+     * Read a file, CSV if it is named .csv and the columnar format otherwise.
+     * @param path the file
+     * @throws IOException if the file cannot be read or is not statistics
+     */
+    public StatsReader(Path path) throws IOException
+    {
+        if(path.getFileName().toString().toLowerCase().endsWith(".csv")) {
+            readCsv(path);
+        } else {
+            readColumnar(path);
+        }
+    }
+
+
+    /**
+     * Read the columnar format.
+     */
+    private void readColumnar(Path path) throws IOException
+    {
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+            if(readInt(in) != StatsWriter.MAGIC) {
+                throw new IOException(path + " is not a statistics file");
+            }
+            int version = readInt(in);
+            if(version != StatsWriter.VERSION) {
+                throw new IOException("unsupported statistics version " + version);
+            }
+            int n = readInt(in);
+            if(n <= 0 || n > 1 << 16) {
+                throw new IOException("corrupt statistics header");
+            }
+            names = new String[n];
+            for(int c=0; c<n; c++) {
+                byte [] utf = new byte[(readByte(in) << 8) | readByte(in)];
+                readFully(in, utf);
+                names[c] = new String(utf, StandardCharsets.UTF_8);
+            }
+            columns = new long[n][StatsWriter.BLOCK_ROWS];
+
+            //each block is whole or the file ends
+            byte [] payload = new byte[0];
+            while(true) {
+                int count;
+                int length;
+                try {
+                    count = readInt(in);
+                    length = readInt(in);
+                    if(count <= 0 || count > StatsWriter.BLOCK_ROWS || length < 0) {
+                        throw new IOException("corrupt statistics block");
+                    }
+                    if(payload.length < length) {
+                        payload = new byte[length];
+                    }
+                    readFully(in, payload, length);
+                } catch(EOFException e) {
+                    break;
+                }
+
+                grow(rows + count);
+                int [] at = {0};
+                for(int c=0; c<n; c++) {
+                    long v = 0;
+                    for(int r=0; r<count; r++) {
+                        long z = readVarlong(payload, at, length);
+                        v += (z >>> 1) ^ -(z & 1);
+                        columns[c][rows + r] = v;
+                    }
+                }
+                rows += count;
+            }
+        }
+    }
+
+
+    /**
+     * Read the CSV format.
+     */
+    private void readCsv(Path path) throws IOException
+    {
+        try(BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if(header == null) {
+                throw new IOException(path + " is empty");
+            }
+            names = header.split(",");
+            columns = new long[names.length][StatsWriter.BLOCK_ROWS];
+
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.isEmpty()) {
+                    continue;
+                }
+                String [] fields = line.split(",");
+                if(fields.length != names.length) {
+                    //a row cut off as it was written
+                    break;
+                }
+                grow(rows + 1);
+                for(int c=0; c<names.length; c++) {
+                    try {
+                        columns[c][rows] = Long.parseLong(fields[c]);
+                    } catch(NumberFormatException e) {
+                        throw new IOException("row " + (rows + 1) + " of " + path + " is not numbers", e);
+                    }
+                }
+                rows++;
+            }
+        }
+    }
+
+
+    /**
+     * Make room for a number of rows.
+     */
+    private void grow(int size)
+    {
+        if(size > columns[0].length) {
+            int cap = Math.max(size, 2 * columns[0].length);
+            for(int c=0; c<columns.length; c++) {
+                columns[c] = Arrays.copyOf(columns[c], cap);
+            }
+        }
+    }
+
+
+    /**
+     * Get the names of the columns.
+     * @return the names, generation first
+     */
+    public String[] getColumnNames()
+    {
+        return names.clone();
+    }
+
+
+    /**
+     * Get the number of rows, one per generation.
+     * @return the number of rows
+     */
+    public int getRows()
+    {
+        return rows;
+    }
+
+
+    /**
+     * Get a column by name.
+     * @param name the name, such as "generation" or "state_0"
+     * @return a new array holding the column, a value per row
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public long[] getColumn(String name)
+    {
+        for(int c=0; c<names.length; c++) {
+            if(names[c].equals(name)) {
+                return Arrays.copyOf(columns[c], rows);
+            }
+        }
+        throw new IllegalArgumentException("no column " + name);
+    }
+
+
+    /**
+     * Read an int, little endian.
+     */
+    private static int readInt(InputStream in) throws IOException
+    {
+        int v = 0;
+        for(int i=0; i<4; i++) {
+            v |= readByte(in) << (8*i);
+        }
+        return v;
+    }
+
+
+    /**
+     * Read one byte, failing at the end of the stream.
+     */
+    private static int readByte(InputStream in) throws IOException
+    {
+        int b = in.read();
+        if(b < 0) {
+            throw new EOFException("the statistics file is truncated");
+        }
+        return b;
+    }
+
+
+    /**
+     * Fill a buffer from a stream.
+     */
+    private static void readFully(InputStream in, byte[] buf) throws IOException
+    {
+        readFully(in, buf, buf.length);
+    }
+
+
+    /**
+     * Fill the start of a buffer from a stream.
+     */
+    private static void readFully(InputStream in, byte[] buf, int length) throws IOException
+    {
+        int n = 0;
+        while(n < length) {
+            int r = in.read(buf, n, length - n);
+            if(r < 0) {
+                throw new EOFException("the statistics file is truncated");
+            }
+            n += r;
+        }
+    }
+
+
+    /**
+     * Read a varint from a block's payload.
+     */
+    private static long readVarlong(byte[] buf, int[] at, int length) throws IOException
+    {
+        long v = 0;
+        for(int shift=0; shift<64; shift+=7) {
+            if(at[0] >= length) {
+                throw new IOException("corrupt statistics block");
+            }
+            byte b = buf[at[0]++];
+            v |= (long) (b & 0x7f) << shift;
+            if(b >= 0) {
+                return v;
+            }
+        }
+        throw new IOException("corrupt statistics block: bad varint");
+    }
+
+
+    /**
+     * Print a statistics file, or some of its columns, as CSV.
+     * @param args the file, then the columns to print, all of them if none are given
+     */
+    public static void main(String[] args)
+    {
+        if(args.length < 1) {
+            System.err.println("usage: StatsReader file.cass|file.csv [column ...]");
+            System.exit(1);
+            return;
+        }
+
+        try {
+            StatsReader stats = new StatsReader(Paths.get(args[0]));
+            String [] names = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : stats.getColumnNames();
+            long [][] cols = new long[names.length][];
+            for(int c=0; c<names.length; c++) {
+                cols[c] = stats.getColumn(names[c]);
+            }
+
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            out.println(String.join(",", names));
+            for(int r=0; r<stats.getRows(); r++) {
+                for(int c=0; c<names.length; c++) {
+                    if(c > 0) {
+                        out.print(',');
+                    }
+                    out.print(cols[c][r]);
+                }
+                out.println();
+            }
+            out.flush();
+        } catch(IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
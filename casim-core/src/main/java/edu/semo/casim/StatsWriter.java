@@ -0,0 +1,473 @@
+package edu.semo.casim;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the population of each state in every generation to a file as a
+ * grid runs, and optionally the population of each state in each region of
+ * its region map. The rows are gathered into blocks on the stepping thread and
+ * written by a background thread, so the run only waits on the disk if it
+ * falls a few blocks behind; a block is handed over when it is full or a
+ * second old, so a slow run still reaches the file as it goes. A
+ * StatsReader reads the file back.
+ *
+ * A file named .csv gets a header row and a row per generation. Any other
+ * gets a compact columnar format, little endian, whose header is
+ *   int magic "CASS", int version, int number of columns, then each column
+ *   name as an unsigned short length and UTF-8 bytes,
+ * followed by blocks of
+ *   int number of rows, int payload length, payload,
+ * the payload holding each column in turn as the zigzag varint differences
+ * of its values, the first from 0. Counts change a little each generation,
+ * so most take a byte.
+ *
+ * The columns are generation, state_0 ... state_n-1, then state_s_region_r
+ * for each region r in the map other than EMPTY. A generation is written once
+ * the next has been stepped, as its counts are only final then. The region
+ * counts are taken by a pass over the grid after each step, so a writer should
+ * be added after any listener which changes cells, such as Interventions.
+ *
+ * While a writer is attached, the grid's PopulationStats only keep a window of
+ * the latest generations, unless one was already set, since the rest are in the
+ * file; this keeps a long run's memory bounded.
+ */
+public class StatsWriter implements StepListener, Closeable
+{
+    public static final int MAGIC = 0x53534143;  // "CASS" read as a little endian int
+    public static final int VERSION = 1;         // The version of the format written
+    static final int BLOCK_ROWS = 4096;          // The most rows in a block
+    private static final int QUEUED = 4;         // The most blocks waiting to be written
+    private static final long MAX_AGE = 1000000000L; // The longest a block is held back, in nanoseconds
+    static final int WINDOW = 64;                // The generations of statistics kept while writing
+
+    private CAGrid ca;          // The grid being written
+    private boolean csv;        // True for CSV, false for the columnar format
+    private String [] names;    // The names of the columns
+    private int [] regionOffset; // regionOffset[r] is where region r's counts start, the dump slot for EMPTY
+    private int numRegionCounts; // The number of region counts, one per state per region, and the dump slot
+    private long [][] bandCounts; // bandCounts[t] holds the region counts of tile row t
+    private long [] regionCounts; // The region counts of the latest generation
+    private int next;           // The next generation to write
+    private Block block;        // The block being filled
+    private BlockingQueue<Block> full; // Blocks waiting to be written, and then the end
+    private BlockingQueue<Block> free; // Blocks written and ready to fill again
+    private Thread thread;      // Writes the blocks
+    private volatile IOException failure; // What stopped the writing thread, null if nothing has
+    private boolean closed;     // True once close() has been called
+    private boolean windowed;   // True if this writer set the statistics' window
+
+
+    /**
+     * Start writing the statistics of a grid, from its current generation on,
+     * as it is stepped with next() until the writer is closed.
+     * @param ca the grid
+     * @param path the file to write, .csv for CSV; it is replaced if it exists
+     * @param byRegion true to count each region of the grid's region map as well, if it has one
+     * @throws IOException if the file cannot be written
+     */
+    public StatsWriter(CAGrid ca, Path path, boolean byRegion) throws IOException
+    {
+        this.ca = ca;
+        csv = path.getFileName().toString().toLowerCase().endsWith(".csv");
+        next = ca.getGeneration();
+        int numStates = ca.getNumStates();
+
+        //a column per state, then per state of each region in the map
+        List<String> columns = new ArrayList<String>();
+        columns.add("generation");
+        for(int s=0; s<numStates; s++) {
+            columns.add("state_" + s);
+        }
+        RegionMap map = byRegion ? ca.getRegions() : null;
+        if(map != null) {
+            boolean [] used = usedRegions(map);
+            regionOffset = new int[RegionMap.MAX_REGIONS];
+            numRegionCounts = 0;
+            for(int r=1; r<RegionMap.MAX_REGIONS; r++) {
+                if(used[r]) {
+                    regionOffset[r] = numRegionCounts;
+                    numRegionCounts += numStates;
+                    for(int s=0; s<numStates; s++) {
+                        columns.add("state_" + s + "_region_" + r);
+                    }
+                }
+            }
+            regionOffset[RegionMap.EMPTY] = numRegionCounts;
+            numRegionCounts += numStates;
+            bandCounts = new long[(ca.getHeight() + CAGrid.TILE_SIZE - 1) / CAGrid.TILE_SIZE][numRegionCounts];
+            regionCounts = new long[numRegionCounts];
+            countRegions();
+        }
+        names = columns.toArray(new String[0]);
+
+        //the blocks go round between this thread and the writing one
+        full = new ArrayBlockingQueue<Block>(QUEUED + 1);
+        free = new ArrayBlockingQueue<Block>(QUEUED + 1);
+        for(int i=0; i<QUEUED; i++) {
+            free.add(new Block(names.length));
+        }
+        block = new Block(names.length);
+
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+        writeHeader(out);
+        thread = new Thread(() -> drain(out), "casim-stats");
+        thread.setDaemon(true);
+        thread.start();
+
+        //the generations written need not be kept
+        PopulationStats stats = ca.getStats();
+        if(stats.getWindow() == 0) {
+            stats.setWindow(WINDOW);
+            windowed = true;
+        }
+        ca.addListener(this);
+    }
+
+
+    /**
+     * Find the regions which have cells.
+     */
+    private static boolean[] usedRegions(RegionMap map)
+    {
+        boolean [] used = new boolean[RegionMap.MAX_REGIONS];
+        byte [] row = new byte[map.getWidth()];
+        for(int y=0; y<map.getHeight(); y++) {
+            map.get(0, y, row, 0, row.length);
+            for(byte r : row) {
+                used[r & 0xff] = true;
+            }
+        }
+        return used;
+    }
+
+
+    /**
+     * Get the names of the columns written.
+     * @return the names, generation first
+     */
+    public String[] getColumnNames()
+    {
+        return names.clone();
+    }
+
+
+    /**
+     * Write the generations which are now final, and count the regions of
+     * the one just reached.
+     * @param ca the grid
+     */
+    @Override
+    public void stepped(CAGrid ca)
+    {
+        int g = ca.getGeneration();
+        PopulationStats stats = ca.getStats();
+        next = Math.max(next, stats.getFirstGeneration());
+        while(next < g) {
+            addRow(next++);
+        }
+        if(regionCounts != null) {
+            countRegions();
+        }
+        if(block.rows > 0 && System.nanoTime() - block.started > MAX_AGE) {
+            handOver();
+        }
+    }
+
+
+    /**
+     * Add a generation to the block, handing the block over when it is full.
+     */
+    private void addRow(int generation)
+    {
+        PopulationStats stats = ca.getStats();
+        Block b = block;
+        if(b.rows == 0) {
+            b.started = System.nanoTime();
+        }
+
+        int row = b.rows++;
+        int c = 0;
+        b.values[c++][row] = generation;
+        for(int s=0; s<ca.getNumStates(); s++) {
+            b.values[c++][row] = stats.getCount(generation, s);
+        }
+        if(regionCounts != null) {
+            int end = regionOffset[RegionMap.EMPTY];
+            for(int i=0; i<end; i++) {
+                b.values[c++][row] = regionCounts[i];
+            }
+        }
+
+        if(b.rows == BLOCK_ROWS) {
+            handOver();
+        }
+    }
+
+
+    /**
+     * Count the cells of each state in each region, a tile row at a time in
+     * parallel. The empty cells fall into a slot of their own, so no cell
+     * needs a branch.
+     */
+    private void countRegions()
+    {
+        RegionMap map = ca.getRegions();
+        int w = ca.getWidth();
+        int y0 = ca.getFirstRow();
+        int y1 = ca.getEndRow();
+        int bands = (y1 - y0 + CAGrid.TILE_SIZE - 1) / CAGrid.TILE_SIZE;
+        int [] offset = regionOffset;
+        long [][] counts = bandCounts;
+
+        ca.parallelFor(bands, t -> {
+            long [] count = counts[t];
+            Arrays.fill(count, 0);
+            byte [] row = ca.rowBuffer(2*w);
+            int end = Math.min(y0 + (t + 1) * CAGrid.TILE_SIZE, y1);
+            for(int y=y0 + t*CAGrid.TILE_SIZE; y<end; y++) {
+                ca.getCells(0, y, row, 0, w);
+                map.get(0, y, row, w, w);
+                for(int x=0; x<w; x++) {
+                    count[offset[row[w + x] & 0xff] + row[x]]++;
+                }
+            }
+        });
+
+        Arrays.fill(regionCounts, 0);
+        for(int t=0; t<bands; t++) {
+            for(int i=0; i<numRegionCounts; i++) {
+                regionCounts[i] += counts[t][i];
+            }
+        }
+    }
+
+
+    /**
+     * Pass the block being filled to the writing thread and take an empty
+     * one, waiting if the writer has fallen behind.
+     */
+    private void handOver()
+    {
+        checkFailure();
+        try {
+            full.put(block);
+            Block b = null;
+            while(b == null) {
+                b = free.poll(100, TimeUnit.MILLISECONDS);
+                checkFailure();
+            }
+            b.rows = 0;
+            block = b;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("interrupted writing the statistics"));
+        }
+    }
+
+
+    /**
+     * Rethrow a failure of the writing thread on this one.
+     */
+    private void checkFailure()
+    {
+        IOException e = failure;
+        if(e != null) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Write the latest generation, then every block left, and close the file.
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        ca.removeListener(this);
+
+        PopulationStats stats = ca.getStats();
+        next = Math.max(next, stats.getFirstGeneration());
+        while(next <= Math.min(ca.getGeneration(), stats.getLastGeneration())) {
+            addRow(next++);
+        }
+        if(windowed) {
+            stats.setWindow(0);
+        }
+
+        try {
+            if(block.rows > 0) {
+                handOver();
+            }
+            full.put(new Block(0));
+            thread.join();
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted writing the statistics");
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+
+    /**
+     * Write the header, the column names in either format.
+     */
+    private void writeHeader(OutputStream out) throws IOException
+    {
+        if(csv) {
+            out.write(String.join(",", names).getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            return;
+        }
+
+        Encoder e = new Encoder();
+        e.putInt(MAGIC);
+        e.putInt(VERSION);
+        e.putInt(names.length);
+        for(String name : names) {
+            byte [] utf = name.getBytes(StandardCharsets.UTF_8);
+            e.put((byte) (utf.length >> 8));
+            e.put((byte) utf.length);
+            for(byte b : utf) {
+                e.put(b);
+            }
+        }
+        out.write(e.buf, 0, e.size);
+    }
+
+
+    /**
+     * Write blocks as they come until the end, on the writing thread.
+     */
+    private void drain(OutputStream out)
+    {
+        Encoder e = new Encoder();
+        StringBuilder text = new StringBuilder();
+        try(OutputStream o = out) {
+            while(true) {
+                Block b = full.take();
+                if(b.rows == 0) {
+                    break;
+                }
+
+                if(csv) {
+                    text.setLength(0);
+                    for(int r=0; r<b.rows; r++) {
+                        for(int c=0; c<names.length; c++) {
+                            if(c > 0) {
+                                text.append(',');
+                            }
+                            text.append(b.values[c][r]);
+                        }
+                        text.append('\n');
+                    }
+                    o.write(text.toString().getBytes(StandardCharsets.UTF_8));
+                } else {
+                    e.size = 0;
+                    e.putInt(b.rows);
+                    e.putInt(0);
+                    for(int c=0; c<names.length; c++) {
+                        long prev = 0;
+                        for(int r=0; r<b.rows; r++) {
+                            long d = b.values[c][r] - prev;
+                            e.putVarlong((d << 1) ^ (d >> 63));
+                            prev = b.values[c][r];
+                        }
+                    }
+                    e.setInt(4, e.size - 8);
+                    o.write(e.buf, 0, e.size);
+                }
+                o.flush();
+                free.put(b);
+            }
+        } catch(IOException ex) {
+            failure = ex;
+        } catch(InterruptedException ex) {
+            failure = new InterruptedIOException("interrupted writing the statistics");
+        }
+    }
+
+
+    /**
+     * A block of rows, stored a column at a time.
+     */
+    private static class Block
+    {
+        long [][] values;   // values[c][r] is column c of row r
+        int rows;           // The number of rows filled
+        long started;       // When the first row was added, by System.nanoTime()
+
+
+        Block(int columns)
+        {
+            values = new long[columns][BLOCK_ROWS];
+        }
+    }
+
+
+    /**
+     * A growing little endian byte buffer.
+     */
+    private static class Encoder
+    {
+        byte [] buf = new byte[1 << 16]; // The bytes
+        int size;                        // The number of bytes used
+
+
+        void put(byte b)
+        {
+            if(size == buf.length) {
+                buf = Arrays.copyOf(buf, 2 * size);
+            }
+            buf[size++] = b;
+        }
+
+
+        void putInt(int v)
+        {
+            for(int i=0; i<4; i++) {
+                put((byte) (v >>> (8*i)));
+            }
+        }
+
+
+        void setInt(int at, int v)
+        {
+            for(int i=0; i<4; i++) {
+                buf[at + i] = (byte) (v >>> (8*i));
+            }
+        }
+
+
+        void putVarlong(long v)
+        {
+            while((v & ~0x7fL) != 0) {
+                put((byte) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            put((byte) v);
+        }
+    }
+}
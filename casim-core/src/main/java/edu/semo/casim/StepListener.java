@@ -0,0 +1,15 @@
+package edu.semo.casim;
+
+/**
+ * Something which watches a CAGrid advance, such as a Recorder. Listeners are
+ * called by next() on the thread stepping the grid, after the statistics have
+ * been brought up to date, so the grid is safe to read.
+ */
+public interface StepListener
+{
+    /**
+     * Called each time the grid has advanced a generation.
+     * @param ca the grid
+     */
+    public void stepped(CAGrid ca);
+}
@@ -0,0 +1,111 @@
+package edu.semo.casim;
+
+public class Stochastic3State extends CAGrid {
+
+    private TransitionTable rules; // The compiled transition rules
+
+    public Stochastic3State(int width, int height)
+    {
+        this(width, height, new double[] {0.1, 0.5, 0.5});
+    }
+
+
+    /**
+     * Construct a grid where the pull of a state is the same whatever the
+     * state of the cell being pulled.
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     * @param p p[i] is the chance one neighbor in state i pulls a cell over.
+     */
+    public Stochastic3State(int width, int height, double[] p)
+    {
+        this(width, height, p, HeapStorage.FACTORY);
+    }
+
+
+    /**
+     * Construct a grid with the given kind of storage.
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     * @param p p[i] is the chance one neighbor in state i pulls a cell over.
+     * @param storage Makes the cell buffers.
+     */
+    public Stochastic3State(int width, int height, double[] p, CellStorage.Factory storage)
+    {
+        super(width, height, p.length, true, storage);
+        setRules(p);
+        setSparse(true);
+    }
+
+
+    /**
+     * Replace the transition probabilities. They are compiled once here, and
+     * take effect from the next generation.
+     * @param p p[i] is the chance one neighbor in state i pulls a cell over.
+     */
+    public void setRules(double[] p) {
+        if(p.length != getNumStates()) {
+            throw new IllegalArgumentException("expected " + getNumStates() + " probabilities");
+        }
+
+        double [][] matrix = new double[p.length][];
+        for(int i=0; i<p.length; i++) {
+            matrix[i] = p.clone();
+        }
+        rules = new TransitionTable(matrix, 9);
+        markAllActive();
+    }
+
+
+    @Override
+    protected boolean isAbsorbing(int state) {
+        return rules.isAbsorbing(state);
+    }
+
+    @Override
+    protected void step(Tile tile) {
+        TransitionTable rules = this.rules;
+        boolean live = false;
+        int x0 = tile.getX0();
+        int w = tile.getWidth();
+        int [] count = countBuffer(getNumStates() * w);
+        double [] draw = drawBuffer(w);
+        byte [] row = rowBuffer(2*w);
+        RandomSource random = tile.getRandom();
+
+        //step a row at a time, the current states first in row and the next after them
+        for(int y=tile.getY0(); y<tile.getY1(); y++) {
+            countNeighborhoodRow(y, x0, tile.getX1(), 1, count);
+            random.nextDoubles(draw, 0, w);
+            getCells(x0, y, row, 0, w);
+            live |= rules.nextRow(row, count, w, draw, row, w, w);
+            setNextCells(x0, y, row, w, w);
+            for(int i=0; i<w; i++) {
+                tile.record(row[i], row[w + i]);
+            }
+        }
+
+        if(live) {
+            tile.markLive();
+        }
+    }
+
+
+    /**
+     * Randomize the grid
+     * @param percentInfected percentage of cells (0 to 100) seeded in a non-zero state
+     */
+    @Override
+    public void randomize(int percentInfected) {
+        for(int y=0; y<getHeight(); y++) {
+            RandomSource random = rowRandom(y);
+            for(int x=0; x<getWidth(); x++) {
+                if(random.nextInt(0, 100) < percentInfected){
+                    setCell(x, y, random.nextInt(1, getNumStates()));
+                }else{
+                    setCell(x, y, 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package edu.semo.casim;
+
+import java.util.Arrays;
+
+/**
+ * A rectangular block of cells which is stepped as a unit. A CAGrid is cut into
+ * tiles of a fixed size, so the same tiles, and the same random streams, are
+ * used no matter how many threads are doing the stepping.
+ *
+ * Each tile also remembers what happened to it in the last step, which is how
+ * a sparse grid decides which tiles can be skipped.
+ */
+public class Tile
+{
+    private int index;               // The position of this tile in the grid's tile list
+    private int x0;                  // The left edge (inclusive)
+    private int y0;                  // The top edge (inclusive)
+    private int x1;                  // The right edge (exclusive)
+    private int y1;                  // The bottom edge (exclusive)
+    private RandomSource random;     // The random stream for the current generation
+    private int numStates;           // The number of states of the grid
+    private int [] transitions;      // Cells moved this generation, [from*numStates + to]
+    private int [] population;       // The number of cells in each state after the last step
+    private boolean active;          // True iff the tile is stepped this generation
+    private boolean changed;         // True iff a cell changed state in the last step
+    private boolean live;            // True iff a cell could have changed in the last step
+    private boolean absorbed;        // True iff every cell is in an absorbing state
+    private boolean empty;           // True iff nobody lives in any cell of the tile
+
+
+    /**
+     * Construct a tile covering [x0, x1) x [y0, y1).
+     * @param index position of the tile in the grid's tile list
+     * @param x0 left edge (inclusive)
+     * @param y0 top edge (inclusive)
+     * @param x1 right edge (exclusive)
+     * @param y1 bottom edge (exclusive)
+     * @param numStates the number of states of the grid
+     */
+    Tile(int index, int x0, int y0, int x1, int y1, int numStates)
+    {
+        this.index = index;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.numStates = numStates;
+        this.transitions = new int[numStates * numStates];
+        this.population = new int[numStates];
+    }
+
+
+    /**
+     * Get the position of this tile in the grid's tile list.
+     * @return the tile index
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+
+    /**
+     * Get the left edge of the tile.
+     * @return the first x coordinate (inclusive)
+     */
+    public int getX0()
+    {
+        return x0;
+    }
+
+
+    /**
+     * Get the top edge of the tile.
+     * @return the first y coordinate (inclusive)
+     */
+    public int getY0()
+    {
+        return y0;
+    }
+
+
+    /**
+     * Get the right edge of the tile.
+     * @return the last x coordinate (exclusive)
+     */
+    public int getX1()
+    {
+        return x1;
+    }
+
+
+    /**
+     * Get the bottom edge of the tile.
+     * @return the last y coordinate (exclusive)
+     */
+    public int getY1()
+    {
+        return y1;
+    }
+
+
+    /**
+     * Get the width of the tile.
+     * @return x1 - x0
+     */
+    public int getWidth()
+    {
+        return x1 - x0;
+    }
+
+
+    /**
+     * Get the random stream for this tile. The stream is derived from the
+     * grid's seed, the generation number and the tile index, so the draws a
+     * tile sees do not depend on which thread steps it.
+     * @return the random stream for the generation being computed
+     */
+    public RandomSource getRandom()
+    {
+        return random;
+    }
+
+
+    /**
+     * Set the random source of the tile. It is reseeded every generation.
+     * @param random the tile's stream
+     */
+    void setRandom(RandomSource random)
+    {
+        this.random = random;
+    }
+
+
+    /**
+     * Record the transition of one cell. Rules call this for every cell they
+     * step, including those which keep their state, and the grid turns the
+     * tallies into its PopulationStats.
+     * @param from the state of the cell
+     * @param to the state of the cell in the next generation
+     */
+    public void record(int from, int to)
+    {
+        transitions[from*numStates + to]++;
+    }
+
+
+    /**
+     * Record the transitions of several cells which moved between the same two
+     * states, for rules which step many cells at once.
+     * @param from the state of the cells
+     * @param to the state of the cells in the next generation
+     * @param n the number of cells
+     */
+    public void record(int from, int to, int n)
+    {
+        transitions[from*numStates + to] += n;
+    }
+
+
+    /**
+     * Note that a cell of this tile could have changed state in this step, even
+     * though it did not. Stochastic rules on a sparse grid call this so the tile
+     * is stepped again; cells which actually change are noticed without it.
+     */
+    public void markLive()
+    {
+        live = true;
+    }
+
+
+    /**
+     * Note that cells of this tile were changed from outside, as when a
+     * strip's ghost rows are filled in, so the tiles around it are stepped.
+     */
+    void markChanged()
+    {
+        changed = true;
+    }
+
+
+    /**
+     * Determine whether the tile is being stepped this generation.
+     * @return false if the tile was skipped
+     */
+    public boolean isActive()
+    {
+        return active;
+    }
+
+
+    /**
+     * Determine whether any cell of the tile changed state in the last step.
+     * @return true if the tile changed
+     */
+    public boolean isChanged()
+    {
+        return changed;
+    }
+
+
+    /**
+     * Determine whether any cell of the tile could have changed state in the
+     * last step.
+     * @return true if the tile is live
+     */
+    public boolean isLive()
+    {
+        return live || changed;
+    }
+
+
+    /**
+     * Determine whether every cell of the tile is in an absorbing state, so it
+     * never needs stepping again once its back buffer has caught up.
+     * @return true if the tile is absorbed
+     */
+    public boolean isAbsorbed()
+    {
+        return absorbed;
+    }
+
+
+    /**
+     * Determine whether every cell of the tile is empty, by the grid's region
+     * map, so rules which skip empty cells have nothing to do.
+     * @return true if the tile is empty
+     */
+    public boolean isEmpty()
+    {
+        return empty;
+    }
+
+
+    /**
+     * Note whether every cell of the tile is empty.
+     * @param empty true if nobody lives in the tile
+     */
+    void setEmpty(boolean empty)
+    {
+        this.empty = empty;
+    }
+
+
+    /**
+     * Get ready for a generation.
+     * @param active whether the tile will be stepped
+     */
+    void begin(boolean active)
+    {
+        this.active = active;
+        if(active) {
+            live = false;
+        }
+    }
+
+
+    /**
+     * Add the transitions of the last step to a running total and clear them.
+     * A tile which was skipped adds its population as cells keeping their state.
+     * @param total the total, indexed [from*numStates + to]
+     * @param absorbing absorbing[s] is true if no cell ever leaves state s
+     */
+    void drainTransitions(long[] total, boolean[] absorbing)
+    {
+        if(!active) {
+            for(int s=0; s<numStates; s++) {
+                total[s*numStates + s] += population[s];
+            }
+            changed = false;
+            return;
+        }
+
+        boolean moved = false;
+        boolean stuck = true;
+        Arrays.fill(population, 0);
+        for(int from=0; from<numStates; from++) {
+            for(int to=0; to<numStates; to++) {
+                int n = transitions[from*numStates + to];
+                if(n == 0) { continue; }
+                total[from*numStates + to] += n;
+                population[to] += n;
+                transitions[from*numStates + to] = 0;
+                moved |= from != to;
+                stuck &= absorbing[to];
+            }
+        }
+        changed = moved;
+        absorbed = stuck;
+    }
+}
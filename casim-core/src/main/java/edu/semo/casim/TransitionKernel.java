@@ -0,0 +1,121 @@
+package edu.semo.casim;
+
+/**
+ * Steps a row of cells through a TransitionTable. The plain Java kernel here is
+ * always available. On Java 17 and later the jar also carries a VectorKernel,
+ * which does the same work several cells at a time with the incubating vector
+ * API. It is used when the JVM is started with
+ *
+ * --add-modules jdk.incubator.vector -Dcasim.kernel=vector
+ *
+ * and this kernel is used otherwise. Both give exactly the same results. The
+ * vector kernel is not the default because it leans on gathers, which Java 17
+ * does not compile to single instructions, so it is slower there.
+ */
+abstract class TransitionKernel
+{
+    private static final String VECTOR_KERNEL = "edu.semo.casim.VectorKernel"; // Only in the Java 17 classes
+    private static final String VECTOR_MODULE = "jdk.incubator.vector"; // The module it needs
+    private static final String KERNEL = System.getProperty("casim.kernel", "scalar"); // The kernel asked for
+
+
+    /**
+     * Make the kernel asked for by the casim.kernel property, if this JVM can run it.
+     * @param table the compiled rules
+     * @return the kernel
+     */
+    static TransitionKernel create(TransitionTable table)
+    {
+        if(!KERNEL.equals("vector")) {
+            return new Scalar(table);
+        }
+
+        //on the module path this module only reads the vector module if told to
+        ModuleLayer.boot().findModule(VECTOR_MODULE).ifPresent(TransitionKernel.class.getModule()::addReads);
+        try {
+            return (TransitionKernel) Class.forName(VECTOR_KERNEL)
+                .getDeclaredConstructor(TransitionTable.class)
+                .newInstance(table);
+        } catch(ReflectiveOperationException | LinkageError e) {
+            //an older JVM, or the vector module was not added
+            return new Scalar(table);
+        }
+    }
+
+
+    /**
+     * Get a short name for the kernel, for reporting.
+     * @return the name
+     */
+    abstract String getName();
+
+
+    /**
+     * Pick the next states of a run of a row of cells, as TransitionTable.next()
+     * does for one cell.
+     * @param states the current states of the cells
+     * @param count neighbor counts laid out as by CAGrid.countNeighborhoodRow
+     * @param span the distance between the counts of consecutive states
+     * @param draw one uniform draw in [0, 1) per cell
+     * @param next receives the next states
+     * @param offset the position in next of the first cell of the row
+     * @param start the position in the row of the first cell of the run
+     * @param end the position in the row after the last cell of the run
+     * @return true if a cell kept its state but could have left it
+     */
+    abstract boolean nextRow(byte[] states, int[] count, int span, double[] draw, byte[] next, int offset, int start, int end);
+
+
+    /**
+     * The kernel which steps one cell at a time.
+     */
+    static final class Scalar extends TransitionKernel
+    {
+        private final double [] escape; // The table's escape chances
+        private final int numStates;    // The number of states
+        private final int stride;       // The distance between the escapes of consecutive candidate states
+
+
+        Scalar(TransitionTable table)
+        {
+            this.escape = table.getEscapeTable();
+            this.numStates = table.getNumStates();
+            this.stride = table.getMaxCount() + 1;
+        }
+
+
+        @Override
+        String getName()
+        {
+            return "scalar";
+        }
+
+
+        @Override
+        boolean nextRow(byte[] states, int[] count, int span, double[] draw, byte[] next, int offset, int start, int end)
+        {
+            boolean live = false;
+            for(int i=start; i<end; i++) {
+                //as TransitionTable.next(), but a cell which stays has its chance of staying left in q
+                int state = states[i];
+                int base = state * numStates * stride;
+                int result = state;
+                double q = 1;
+                for(int to=0; to<numStates; to++) {
+                    q *= escape[base + to*stride + count[to*span + i]];
+                    if(q < draw[i]) {
+                        result = to;
+                        break;
+                    }
+                }
+                next[offset + i] = (byte) result;
+
+                // note a cell which could change even if its neighbors do not
+                if(result == state && q < 1) {
+                    live = true;
+                }
+            }
+            return live;
+        }
+    }
+}
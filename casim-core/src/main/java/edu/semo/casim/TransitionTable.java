@@ -0,0 +1,228 @@
+package edu.semo.casim;
+
+/**
+ * A compiled set of stochastic transition rules. The rules give, for each pair of
+ * states, the chance that one neighbor in state "to" pulls a cell in state "from"
+ * over. Compiling raises every escape probability, 1 - rules[from][to], to every
+ * count a neighborhood can hold, so stepping a cell is only table lookups,
+ * multiplies and comparisons.
+ */
+public class TransitionTable
+{
+    private int numStates;    // The number of states
+    private int maxCount;     // The largest neighbor count in the table
+    private double [][] rules; // The rule matrix the table was compiled from
+    private double [] escape; // escape[(from*numStates + to)*(maxCount+1) + count]
+    private TransitionKernel kernel; // Steps whole rows
+
+
+    /**
+     * Compile a rule matrix.
+     * @param rules rules[from][to] is the chance one neighbor in state "to" moves a
+     *              cell in state "from" to "to". The diagonal is ignored.
+     * @param maxCount the largest count a neighborhood can produce
+     */
+    public TransitionTable(double[][] rules, int maxCount)
+    {
+        this.numStates = rules.length;
+        this.maxCount = maxCount;
+        this.rules = new double[numStates][];
+        this.escape = new double[numStates * numStates * (maxCount+1)];
+
+        for(int from=0; from<numStates; from++) {
+            if(rules[from].length != numStates) {
+                throw new IllegalArgumentException("the rule matrix must be square");
+            }
+            this.rules[from] = rules[from].clone();
+
+            for(int to=0; to<numStates; to++) {
+                double p = rules[from][to];
+                if(!(p >= 0 && p <= 1)) {
+                    throw new IllegalArgumentException("rules[" + from + "][" + to + "] is not a probability");
+                }
+
+                // a cell always escapes its own state
+                int base = (from*numStates + to) * (maxCount+1);
+                for(int c=0; c<=maxCount; c++) {
+                    escape[base + c] = from == to ? 1.0 : Math.pow(1-p, c);
+                }
+            }
+        }
+
+        kernel = TransitionKernel.create(this);
+    }
+
+
+    /**
+     * Get the number of states.
+     * @return the number of states
+     */
+    public int getNumStates()
+    {
+        return numStates;
+    }
+
+
+    /**
+     * Get the largest neighbor count the table covers.
+     * @return the largest count
+     */
+    public int getMaxCount()
+    {
+        return maxCount;
+    }
+
+
+    /**
+     * Get the name of the kernel nextRow() runs on, "vector" or "scalar".
+     * @return the kernel name
+     */
+    public String getKernelName()
+    {
+        return kernel.getName();
+    }
+
+
+    /**
+     * Get the escape table, for kernels.
+     * @return the table, indexed as escape[(from*numStates + to)*(maxCount+1) + count]
+     */
+    double[] getEscapeTable()
+    {
+        return escape;
+    }
+
+
+    /**
+     * Get a copy of the rule matrix the table was compiled from.
+     * @return the rules, indexed [from][to]
+     */
+    public double[][] getRules()
+    {
+        double [][] copy = new double[numStates][];
+        for(int i=0; i<numStates; i++) {
+            copy[i] = rules[i].clone();
+        }
+        return copy;
+    }
+
+
+    /**
+     * Get the chance that a cell escapes being moved to a state.
+     * @param from the state of the cell
+     * @param to the candidate state
+     * @param count the number of neighbors in the candidate state
+     * @return (1 - rules[from][to])^count, or 1 when from == to
+     */
+    public double getEscape(int from, int to, int count)
+    {
+        return escape[(from*numStates + to)*(maxCount+1) + count];
+    }
+
+
+    /**
+     * Pick the next state of a cell. The candidate states are tried in order and
+     * the cell falls into the first one it fails to escape. A single draw decides
+     * all of them: the cell falls into state i as soon as the chance of escaping
+     * every state up to i drops below the draw, which has the same odds as one
+     * draw per state.
+     * @param state the current state of the cell
+     * @param count neighbor counts laid out as by CAGrid.countNeighborhoodRow
+     * @param span the distance between the counts of consecutive states
+     * @param i the position of the cell within the counted run
+     * @param draw a uniform draw in [0, 1)
+     * @return the next state of the cell
+     */
+    public int next(int state, int[] count, int span, int i, double draw)
+    {
+        double q = 1;
+        int stride = maxCount + 1;
+        int base = state * numStates * stride;
+
+        for(int to=0; to<numStates; to++) {
+            q *= escape[base + to*stride + count[to*span + i]];
+            if(q < draw) {
+                //fail to escape
+                return to;
+            }
+        }
+
+        return state;
+    }
+
+
+    /**
+     * Pick the next states of a row of cells, as next() does for one cell, on
+     * the vector kernel if TransitionKernel picked it. Both give the same result.
+     * @param states the current states of the cells
+     * @param count neighbor counts laid out as by CAGrid.countNeighborhoodRow
+     * @param span the distance between the counts of consecutive states
+     * @param draw one uniform draw in [0, 1) per cell
+     * @param next receives the next states
+     * @param offset the position in next of the first cell
+     * @param n the number of cells
+     * @return true if some cell kept its state but had a chance of leaving it
+     */
+    public boolean nextRow(byte[] states, int[] count, int span, double[] draw, byte[] next, int offset, int n)
+    {
+        return kernel.nextRow(states, count, span, draw, next, offset, 0, n);
+    }
+
+
+    /**
+     * Pick the next states of part of a row of cells, as nextRow() does for
+     * the whole row. Rules which give parts of a row different tables step
+     * each part through its own.
+     * @param states the current states of the row
+     * @param count neighbor counts of the row laid out as by CAGrid.countNeighborhoodRow
+     * @param span the distance between the counts of consecutive states
+     * @param draw one uniform draw in [0, 1) per cell of the row
+     * @param next receives the next states
+     * @param offset the position in next of the first cell of the row
+     * @param start the position in the row of the first cell to step
+     * @param end the position in the row after the last cell to step
+     * @return true if some cell kept its state but had a chance of leaving it
+     */
+    public boolean nextRun(byte[] states, int[] count, int span, double[] draw, byte[] next, int offset, int start, int end)
+    {
+        return kernel.nextRow(states, count, span, draw, next, offset, start, end);
+    }
+
+
+    /**
+     * Get the chance that a cell keeps its state.
+     * @param state the current state of the cell
+     * @param count neighbor counts laid out as by CAGrid.countNeighborhoodRow
+     * @param span the distance between the counts of consecutive states
+     * @param i the position of the cell within the counted run
+     * @return the chance of escaping every other state
+     */
+    public double getStay(int state, int[] count, int span, int i)
+    {
+        double q = 1;
+        int stride = maxCount + 1;
+        int base = state * numStates * stride;
+
+        for(int to=0; to<numStates; to++) {
+            q *= escape[base + to*stride + count[to*span + i]];
+        }
+
+        return q;
+    }
+
+
+    /**
+     * Determine whether a cell in a state can never leave it.
+     * @param state the state
+     * @return true if nothing pulls a cell out of the state
+     */
+    public boolean isAbsorbing(int state)
+    {
+        for(int to=0; to<numStates; to++) {
+            if(to != state && rules[state][to] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
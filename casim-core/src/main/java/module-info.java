@@ -0,0 +1,6 @@
+module edu.semo.casim.core {
+    requires java.management;
+    requires jdk.management;
+
+    exports edu.semo.casim;
+}
@@ -0,0 +1,134 @@
+package edu.semo.casim;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Steps a row of cells a lane group at a time with the vector API. For every
+ * candidate state the escape chances of all the lanes are gathered at once and
+ * multiplied in, and masks track which lanes have already fallen into a state,
+ * so there is no branch per cell. The products are taken in the same order as
+ * TransitionTable.next(), so the results match the scalar kernel exactly.
+ *
+ * This is compiled only for Java 17 and later, into the multi-release part of
+ * the jar, and TransitionKernel.create() falls back to the scalar kernel when
+ * it cannot be loaded.
+ */
+final class VectorKernel extends TransitionKernel
+{
+    // 256 bits rather than the preferred species, the 512 bit gathers of some
+    // Java 17 builds crash the JIT
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_256; // Four doubles a group
+
+    private final TransitionTable table; // The compiled rules
+    private final double [] escape;      // The table's escape chances
+    private final int numStates;         // The number of states
+    private final int stride;            // The distance between the escapes of consecutive candidate states
+    private final ThreadLocal<int[]> scratch; // per thread table offsets and gather indexes
+    private final ThreadLocal<double[]> outs; // per thread results of a lane group
+
+
+    VectorKernel(TransitionTable table)
+    {
+        this.table = table;
+        this.escape = table.getEscapeTable();
+        this.numStates = table.getNumStates();
+        this.stride = table.getMaxCount() + 1;
+        this.scratch = new ThreadLocal<int[]>();
+        this.outs = new ThreadLocal<double[]>();
+    }
+
+
+    @Override
+    String getName()
+    {
+        return "vector";
+    }
+
+
+    @Override
+    boolean nextRow(byte[] states, int[] count, int span, double[] draw, byte[] next, int offset, int start, int end)
+    {
+        int lanes = DOUBLES.length();
+        int [] buf = buffer(end + lanes);
+        double [] out = results(lanes);
+        int idx = end;         // buf[idx..] holds the gather indexes of a lane group
+        boolean live = false;
+
+        //where each cell's escapes start in the table
+        for(int i=start; i<end; i++) {
+            buf[i] = states[i] * numStates * stride;
+        }
+
+        int i = start;
+        for(; i<=end-lanes; i+=lanes) {
+            DoubleVector d = DoubleVector.fromArray(DOUBLES, draw, i);
+            DoubleVector q = DoubleVector.broadcast(DOUBLES, 1);
+            DoubleVector result = DoubleVector.broadcast(DOUBLES, -1);
+            VectorMask<Double> done = DOUBLES.maskAll(false);
+
+            for(int to=0; to<numStates; to++) {
+                int c = to*span + i;
+                int e = to*stride;
+                for(int j=0; j<lanes; j++) {
+                    buf[idx + j] = buf[i + j] + count[c + j] + e;
+                }
+                q = q.mul(DoubleVector.fromArray(DOUBLES, escape, 0, buf, idx));
+
+                //lanes which fail to escape fall into this state
+                VectorMask<Double> fail = q.lt(d).andNot(done);
+                result = result.blend(to, fail);
+                done = done.or(fail);
+                if(done.allTrue()) { break; }
+            }
+
+            // the lanes left kept their state, q is their chance of doing so
+            live |= q.lt(1).andNot(done).anyTrue();
+            result.intoArray(out, 0);
+            for(int j=0; j<lanes; j++) {
+                next[offset + i + j] = out[j] < 0 ? states[i + j] : (byte) out[j];
+            }
+        }
+
+        //the cells left over are too few for a lane group
+        for(; i<end; i++) {
+            int state = states[i];
+            int r = table.next(state, count, span, i, draw[i]);
+            next[offset + i] = (byte) r;
+            if(!live && r == state) {
+                live = table.getStay(state, count, span, i) < 1;
+            }
+        }
+
+        return live;
+    }
+
+
+    /**
+     * Get a buffer for the results of a lane group belonging to the calling thread.
+     */
+    private double[] results(int size)
+    {
+        double [] buf = outs.get();
+        if(buf == null || buf.length < size) {
+            buf = new double[size];
+            outs.set(buf);
+        }
+        return buf;
+    }
+
+
+    /**
+     * Get a scratch buffer of at least the given size belonging to the calling thread.
+     */
+    private int[] buffer(int size)
+    {
+        int [] buf = scratch.get();
+        if(buf == null || buf.length < size) {
+            buf = new int[size];
+            scratch.set(buf);
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,653 @@
+package edu.semo.casim.fx;
+
+import edu.semo.casim.CAGrid;
+import edu.semo.casim.LatencyHistogram;
+import edu.semo.casim.Metrics;
+import edu.semo.casim.Tile;
+import java.nio.IntBuffer;
+import java.util.concurrent.locks.LockSupport;
+import javafx.animation.AnimationTimer;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import javafx.scene.paint.Color;
+
+/**
+ * Animates a CA in an ImageView. While running, the grid is stepped on its own
+ * simulation thread, which copies each generation into a Frame and publishes it
+ * through a triple buffer. The FX thread draws the latest frame on each pulse
+ * and skips any it missed, so a slow generation never freezes the UI and the
+ * simulation is not held to the display's refresh rate.
+ *
+ * Only the part of the grid in view is drawn, and it can be viewed zoomed out,
+ * at a level of detail where a pixel stands for a block of cells, so the cost
+ * of a frame follows the size of the view rather than of the grid. The image
+ * is the size of the view, and the animator moves itself to the view's place,
+ * so it is meant to sit in a Pane the size of the whole grid at that level,
+ * such as the content of a ScrollPane which sets the view as it scrolls.
+ * While the view stays put, only the parts of it over tiles which changed are
+ * drawn into a frame and uploaded to the image.
+ *
+ * Given Metrics, the animator times copying each frame (capture), drawing it
+ * (draw), full redraws by render() (render) and the updater (update), along
+ * with the grid's own step times.
+ */
+public class CAGridAnimator extends ImageView {
+    private CAGrid ca;
+    private AnimationTimer timer;
+    private Color [] caColors;
+    private Updater update;
+    private Sampler sampler;      // Takes extra values into each frame, may be null
+    private int numValues;        // The number of values the sampler takes
+    private double speed;
+    private volatile long delay;  // The nanoseconds between generations, 0 for as fast as possible
+    private volatile boolean running; // True while the simulation thread should keep stepping
+    private Thread worker;        // The simulation thread, null when stopped
+    private TripleBuffer<Frame> frames; // Frames passed from the simulation thread to the FX thread
+    private WritableImage image;  // The image the view is drawn into, reused while its size holds
+    private int [] palette;       // palette[s] is the ARGB color of state s
+    private GridPyramid pyramid;  // Draws the grid at each level of detail
+    private volatile View view;   // The part of the grid to draw
+    private volatile boolean viewChanged; // True when the simulation thread should draw the new view
+    private int [] stamps;        // stamps[t] is the generation in which tile t last changed
+    private int epoch;            // Changes whenever the whole grid must be drawn again
+    private View drawnView;       // The view of the frame on display, null for none
+    private int drawnEpoch;       // The epoch of the frame on display
+    private int drawnGeneration;  // The generation of the frame on display
+    private Metrics metrics;      // Where the animation is timed, null for nowhere
+    private LatencyHistogram captureTime; // The times to copy a generation into a frame
+    private LatencyHistogram drawTime;    // The times to draw a frame
+    private LatencyHistogram renderTime;  // The times of render()
+    private LatencyHistogram updateTime;  // The times of the updater
+    private static final double MAX_FRAMERATE=60;
+    private static final int DEFAULT_SIZE = 4096; // The largest view made before one is set
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+
+    public CAGridAnimator(CAGrid ca)
+    {
+        this.ca = ca;
+
+        //generate our color list
+        //generateColors();
+        caColors = new Color[]{Color.ORANGE, Color.RED, Color.GREEN, Color.YELLOW, Color.PURPLE, Color.MAGENTA, Color.BLACK};
+        generatePalette();
+
+        //view the whole grid, zoomed out as far as it takes to keep the image a sensible size
+        pyramid = new GridPyramid(ca, palette);
+        int level = 0;
+        while(pyramid.getWidth(level) > DEFAULT_SIZE || pyramid.getHeight(level) > DEFAULT_SIZE) {
+            level++;
+        }
+        view = new View(level, 0, 0, pyramid.getWidth(level), pyramid.getHeight(level));
+        stamps = new int[ca.getTiles().length];
+
+        //draw whatever the simulation thread has finished on each pulse
+        timer = new AnimationTimer() {
+			@Override
+			public void handle(long now) {
+                show();
+			}
+            
+        };
+
+        render();
+
+        update = null;
+    }
+
+
+    /**
+     * Generate color levels as distance through HSB space relative to the
+     * distance through the state space
+     */
+    private void generateColors()
+    {
+        int levels;         //number of levels
+
+        // allocate colors
+        levels = ca.getNumStates();
+        caColors = new Color[levels];
+
+        //go through each level 
+        for(int i=0; i<levels; i++) {
+            // compute the color components
+            double hue = 360.0 * (i+1.0) / levels;
+            double sat = i == levels-1 ? 0.0 : 0.9;
+            double bright;
+
+            if(i == 0) {
+                bright = 0.0;
+            } else if(i == levels-1) {
+                bright = 1.0;
+            } else {
+                bright = 0.9;
+            }
+            caColors[i] = Color.hsb(hue, sat, bright);
+        }
+    }
+
+
+    /**
+     * Turn the colors into premultiplied ARGB values, so drawing a cell is one
+     * array lookup.
+     */
+    private void generatePalette()
+    {
+        palette = new int[caColors.length];
+        for(int i=0; i<caColors.length; i++) {
+            Color c = caColors[i];
+            double a = c.getOpacity();
+            palette[i] = (int) Math.round(a * 255) << 24
+                       | (int) Math.round(c.getRed() * a * 255) << 16
+                       | (int) Math.round(c.getGreen() * a * 255) << 8
+                       | (int) Math.round(c.getBlue() * a * 255);
+        }
+    }
+
+
+    /**
+     * Start the animation
+     */
+    public void start()
+    {
+        if(worker != null) {
+            return;
+        }
+
+        prepare();
+        running = true;
+        worker = new Thread(this::simulate, "casim-simulation");
+        worker.setDaemon(true);
+        worker.start();
+        timer.start();
+    }
+
+
+    /**
+     * Stop the animation. This waits for the generation being computed, so the
+     * grid can be used from the FX thread once it returns.
+     */
+    public void stop()
+    {
+        timer.stop();
+        if(worker == null) {
+            return;
+        }
+
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+
+        //show the last generation computed
+        show();
+    }
+
+
+    /**
+     * Update the grid animation with the next generation. This steps the grid
+     * on the calling thread, so it must not be used while the animation runs.
+     */
+    public void update()
+    {
+        if(frames == null) {
+            prepare();
+        }
+
+        //go to the next generation
+        produce();
+
+        //render the grid and call the updater
+        show();
+    }
+
+
+    /**
+     * Set up a fresh pipeline.
+     */
+    private void prepare()
+    {
+        frames = new TripleBuffer<>(new Frame(ca, numValues), new Frame(ca, numValues), new Frame(ca, numValues));
+    }
+
+
+    /**
+     * The body of the simulation thread.
+     */
+    private void simulate()
+    {
+        long last = System.nanoTime() - delay;
+
+        while(running) {
+            //a new view is drawn at once, without waiting for a step
+            if(viewChanged) {
+                viewChanged = false;
+                capture();
+            }
+
+            //hold back to the requested speed, which may change while waiting
+            long wait = last + delay - System.nanoTime();
+            if(wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            last = System.nanoTime();
+
+            produce();
+        }
+    }
+
+
+    /**
+     * Step the grid and publish the new generation.
+     */
+    private void produce()
+    {
+        ca.next();
+        pyramid.update(ca);
+
+        int gen = ca.getGeneration();
+        Tile [] tiles = ca.getTiles();
+        for(int t=0; t<tiles.length; t++) {
+            if(tiles[t].isChanged()) { stamps[t] = gen; }
+        }
+        capture();
+    }
+
+
+    /**
+     * Draw the view of the grid into a frame and publish it. This must be
+     * called on the thread which steps the grid.
+     */
+    private void capture()
+    {
+        LatencyHistogram timing = captureTime;
+        long start = timing == null ? 0 : System.nanoTime();
+        frames.back().capture(ca, pyramid, view, epoch, stamps, sampler);
+        frames.publish();
+        if(timing != null) {
+            timing.record(System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     * Draw the latest published frame, if there is a new one, and call the updater.
+     */
+    private void show()
+    {
+        if(frames == null) {
+            return;
+        }
+        Frame frame = frames.latest();
+        if(frame == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        drawFrame(frame);
+        long drawn = System.nanoTime();
+        if(drawTime != null) {
+            drawTime.record(drawn - start);
+        }
+
+        //call the updater (if there is one)
+        if(update != null) {
+            update.update(this);
+            if(updateTime != null) {
+                updateTime.record(System.nanoTime() - drawn);
+            }
+        }
+    }
+
+
+    /**
+     * Get the frame on display. Updaters should read the state of the grid
+     * from here, since the grid itself may be in the middle of a step.
+     * @return the latest frame drawn, or null if none has been
+     */
+    public Frame getFrame()
+    {
+        if(frames == null || frames.front().getGeneration() == Integer.MIN_VALUE) {
+            return null;
+        }
+        return frames.front();
+    }
+
+
+    /**
+     * Render the grid. This reads the grid directly, so it is how callers show
+     * changes they made to the grid while the animation was stopped.
+     */
+    public void render()
+    {
+        long start = System.nanoTime();
+        if(frames == null) {
+            prepare();
+        }
+
+        //the whole grid may have changed, so the zoomed out levels and every frame are redone
+        pyramid.invalidate(ca);
+        epoch++;
+        capture();
+        drawFrame(frames.latest());
+
+        if(renderTime != null) {
+            renderTime.record(System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     * Draw a frame, moving to the place of its view. Of a frame of the view on
+     * display, only the tiles which changed since are uploaded.
+     */
+    private void drawFrame(Frame frame)
+    {
+        View v = frame.getView();
+        int w = v.getWidth();
+        int h = v.getHeight();
+        int [] pixels = frame.getPixels();
+        boolean whole = v != drawnView || frame.getEpoch() != drawnEpoch;
+
+        //the image is only replaced when the view changes size
+        if(image == null || image.getWidth() != w || image.getHeight() != h) {
+            image = new WritableImage(w, h);
+            setImage(image);
+            whole = true;
+        }
+
+        //with most of the view changed, one upload is cheaper than many
+        Tile [] tiles = ca.getTiles();
+        if(!whole) {
+            int changed = 0;
+            for(int t=0; t<tiles.length; t++) {
+                if(frame.getStamp(t) > drawnGeneration && v.overlaps(tiles[t])) { changed++; }
+            }
+            whole = changed > v.countTiles(tiles) / 2;
+        }
+        if(whole) {
+            image.getPixelWriter().setPixels(0, 0, w, h, FORMAT, pixels, 0, w);
+        } else {
+            for(int t=0; t<tiles.length; t++) {
+                if(frame.getStamp(t) <= drawnGeneration || !v.overlaps(tiles[t])) { continue; }
+                int x0 = v.left(tiles[t]) - v.getX();
+                int y0 = v.top(tiles[t]) - v.getY();
+                int x1 = v.right(tiles[t]) - v.getX();
+                int y1 = v.bottom(tiles[t]) - v.getY();
+                image.getPixelWriter().setPixels(x0, y0, x1 - x0, y1 - y0, FORMAT, pixels, y0*w + x0, w);
+            }
+        }
+        drawnView = v;
+        drawnEpoch = frame.getEpoch();
+        drawnGeneration = frame.getGeneration();
+
+        setLayoutX(v.getX());
+        setLayoutY(v.getY());
+    }
+
+
+    /**
+     * Set the part of the grid to draw, in pixels of a level of detail. At
+     * level k a pixel stands for a block of 2^k by 2^k cells. The view is kept
+     * within the grid. While the animation runs the simulation thread draws the
+     * new view as soon as it finishes the generation in hand, and otherwise it
+     * is drawn at once.
+     * @param level the level of detail, 0 for a pixel per cell
+     * @param x the left of the view
+     * @param y the top of the view
+     * @param width the width of the view
+     * @param height the height of the view
+     */
+    public void setView(int level, int x, int y, int width, int height)
+    {
+        level = Math.max(0, Math.min(level, getMaxLevel()));
+        int w = pyramid.getWidth(level);
+        int h = pyramid.getHeight(level);
+        x = Math.max(0, Math.min(x, w - 1));
+        y = Math.max(0, Math.min(y, h - 1));
+        view = new View(level, x, y, Math.max(1, Math.min(width, w - x)), Math.max(1, Math.min(height, h - y)));
+
+        if(worker != null) {
+            viewChanged = true;
+            LockSupport.unpark(worker);
+        } else {
+            if(frames == null) {
+                prepare();
+            }
+            capture();
+            drawFrame(frames.latest());
+        }
+    }
+
+
+    /**
+     * Get the level of detail of the view.
+     * @return the level, 0 for a pixel per cell
+     */
+    public int getLevel()
+    {
+        return view.getLevel();
+    }
+
+
+    /**
+     * Get the coarsest level of detail, at which the whole grid is one pixel.
+     * @return the level
+     */
+    public int getMaxLevel()
+    {
+        return pyramid.getMaxLevel();
+    }
+
+
+    /**
+     * Get the width of the whole grid at a level of detail.
+     * @param level the level
+     * @return the width in pixels
+     */
+    public int getScaledWidth(int level)
+    {
+        return pyramid.getWidth(level);
+    }
+
+
+    /**
+     * Get the height of the whole grid at a level of detail.
+     * @param level the level
+     * @return the height in pixels
+     */
+    public int getScaledHeight(int level)
+    {
+        return pyramid.getHeight(level);
+    }
+
+
+    /**
+     * Get the cellular automata referenced from this grid.
+     * @return The CA animated by this node.
+     */
+    public CAGrid getCA()
+    {
+        return ca;
+    }
+
+
+    /**
+     * A part of the grid at a level of detail, in pixels of that level.
+     */
+    static final class View
+    {
+        private final int level;  // The level of detail
+        private final int x;      // The left of the view
+        private final int y;      // The top of the view
+        private final int width;  // The width of the view
+        private final int height; // The height of the view
+
+        View(int level, int x, int y, int width, int height)
+        {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        int getLevel()  { return level; }
+        int getX()      { return x; }
+        int getY()      { return y; }
+        int getWidth()  { return width; }
+        int getHeight() { return height; }
+
+        // the pixels a tile covers at this level, clipped to the view
+        int left(Tile t)   { return Math.max(t.getX0() >> level, x); }
+        int top(Tile t)    { return Math.max(t.getY0() >> level, y); }
+        int right(Tile t)  { return Math.min(((t.getX1() - 1) >> level) + 1, x + width); }
+        int bottom(Tile t) { return Math.min(((t.getY1() - 1) >> level) + 1, y + height); }
+
+        /**
+         * Determine whether a tile shows in the view.
+         */
+        boolean overlaps(Tile t)
+        {
+            return left(t) < right(t) && top(t) < bottom(t);
+        }
+
+        /**
+         * Count the tiles which show in the view.
+         */
+        int countTiles(Tile[] tiles)
+        {
+            int n = 0;
+            for(Tile t : tiles) {
+                if(overlaps(t)) { n++; }
+            }
+            return n;
+        }
+
+        /**
+         * Count the tiles which show in the view and changed after a generation.
+         */
+        int countChanged(Tile[] tiles, int[] stamps, int generation)
+        {
+            int n = 0;
+            for(int i=0; i<tiles.length; i++) {
+                if(stamps[i] > generation && overlaps(tiles[i])) { n++; }
+            }
+            return n;
+        }
+    }
+
+
+    /**
+     * Interface for providing a callback which is called each time the
+     * animator updates the CA.
+     */
+    public interface Updater
+    {
+        public void update(CAGridAnimator grid);
+    }
+
+
+    /**
+     * Set the update handler.
+     * @param update the update handler
+     */
+    public void setUpdater(Updater update) 
+    {
+        this.update = update;
+    }
+
+
+    /**
+     * Interface for taking values from the grid into each frame. It is called
+     * on the simulation thread right after a step, when the grid is safe to read.
+     */
+    public interface Sampler
+    {
+        public void sample(CAGrid ca, long[] values);
+    }
+
+
+    /**
+     * Set the sampler. This takes effect the next time the animation is started.
+     * @param sampler the sampler, or null for none
+     * @param numValues the number of values it takes
+     */
+    public void setSampler(Sampler sampler, int numValues)
+    {
+        this.sampler = sampler;
+        this.numValues = numValues;
+        frames = null;
+    }
+
+
+    /**
+     * Time the animation, and the grid's steps, into a set of metrics. This
+     * must not be called while the animation runs.
+     * @param metrics the metrics, or null to stop timing
+     */
+    public void setMetrics(Metrics metrics)
+    {
+        this.metrics = metrics;
+        ca.setMetrics(metrics);
+        captureTime = metrics == null ? null : metrics.histogram("capture");
+        drawTime = metrics == null ? null : metrics.histogram("draw");
+        renderTime = metrics == null ? null : metrics.histogram("render");
+        updateTime = metrics == null ? null : metrics.histogram("update");
+    }
+
+
+    /**
+     * Get the metrics the animation is timed into.
+     * @return the metrics, or null if there are none
+     */
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+
+    /**
+     * Set the animation speed.
+     * @param speed Double in interveral [0.0, 1.0]
+     */
+    public void setSpeed(double speed)
+    {
+        this.speed = speed;
+
+        //set the stopped speed
+        if(speed == 0) {
+            stop();
+            return;
+        }
+
+        //completely unlock at 100% speed, the simulation then runs flat out
+        if(speed >= 1.0) {
+            this.delay = 0;
+        } else {
+            //set the delay
+            this.delay = (long)(1.0e9/(speed * MAX_FRAMERATE)); 
+        }
+
+        //let a waiting simulation thread see the new speed
+        if(worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+
+    /**
+     * Get the speed of the animation.
+     * @return a double in the range [0.0, 1.0]
+     */
+    public double getSpeed()
+    {
+        return speed;
+    }
+}
@@ -0,0 +1,164 @@
+package edu.semo.casim.fx;
+
+import edu.semo.casim.CAGrid;
+import edu.semo.casim.PopulationStats;
+import edu.semo.casim.Tile;
+
+/**
+ * One generation of a grid, drawn by the simulation thread so the FX thread
+ * can show it while the next ones are computed. A frame only holds the pixels
+ * of the part of the grid in view, at the level of detail it is viewed at, so
+ * its size follows the screen rather than the grid. Frames are recycled, and
+ * one taken again of the same view only redraws the tiles which changed since
+ * it was last filled.
+ */
+public class Frame
+{
+    private int generation;   // The generation held, Integer.MIN_VALUE if none
+    private CAGridAnimator.View view; // The part of the grid drawn
+    private int [] pixels;    // The premultiplied ARGB pixels of the view, row major
+    private int epoch;        // The animator's epoch when the frame was drawn
+    private int [] stamps;    // stamps[t] is the generation in which tile t last changed
+    private long [] counts;   // The population of each state
+    private long [] values;   // The values taken by the animator's sampler
+
+
+    /**
+     * Construct an empty frame for a grid.
+     * @param ca the grid
+     * @param numValues the number of sampled values
+     */
+    Frame(CAGrid ca, int numValues)
+    {
+        generation = Integer.MIN_VALUE;
+        pixels = new int[0];
+        stamps = new int[ca.getTiles().length];
+        counts = new long[ca.getNumStates()];
+        values = new long[numValues];
+    }
+
+
+    /**
+     * Draw the current generation of a grid into the frame. This must be
+     * called on the thread which steps the grid.
+     * @param ca the grid
+     * @param pyramid draws the grid at the view's level of detail
+     * @param view the part of the grid to draw
+     * @param epoch changes whenever the whole grid must be drawn again
+     * @param changed changed[t] is the generation in which tile t last changed
+     * @param sampler fills in the sampled values, may be null
+     */
+    void capture(CAGrid ca, GridPyramid pyramid, CAGridAnimator.View view, int epoch, int[] changed,
+                 CAGridAnimator.Sampler sampler)
+    {
+        int w = view.getWidth();
+        int n = w * view.getHeight();
+        boolean whole = view != this.view || epoch != this.epoch || generation == Integer.MIN_VALUE;
+        if(pixels.length < n) {
+            pixels = new int[n];
+            whole = true;
+        }
+
+        //with most of the view changed, one pass is cheaper than many
+        Tile [] tiles = ca.getTiles();
+        if(!whole && view.countChanged(tiles, changed, generation) > view.countTiles(tiles) / 2) {
+            whole = true;
+        }
+        if(whole) {
+            pyramid.draw(ca, view.getLevel(), view.getX(), view.getY(), w, view.getHeight(), pixels, 0, w);
+        } else {
+            for(int t=0; t<tiles.length; t++) {
+                if(changed[t] <= generation || !view.overlaps(tiles[t])) { continue; }
+                int x0 = view.left(tiles[t]);
+                int y0 = view.top(tiles[t]);
+                pyramid.draw(ca, view.getLevel(), x0, y0, view.right(tiles[t]) - x0, view.bottom(tiles[t]) - y0,
+                             pixels, (y0 - view.getY())*w + x0 - view.getX(), w);
+            }
+        }
+        System.arraycopy(changed, 0, stamps, 0, stamps.length);
+        this.view = view;
+        this.epoch = epoch;
+
+        generation = ca.getGeneration();
+        PopulationStats stats = ca.getStats();
+        for(int s=0; s<counts.length; s++) {
+            counts[s] = stats.getCount(generation, s);
+        }
+        if(sampler != null) {
+            sampler.sample(ca, values);
+        }
+    }
+
+
+    /**
+     * Get the generation held by the frame.
+     * @return the generation number
+     */
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+
+    /**
+     * Get the population of a state.
+     * @param state the state
+     * @return the number of cells in the state
+     */
+    public long getCount(int state)
+    {
+        return counts[state];
+    }
+
+
+    /**
+     * Get a value taken by the animator's sampler.
+     * @param i the index of the value
+     * @return the value
+     */
+    public long getValue(int i)
+    {
+        return values[i];
+    }
+
+
+    /**
+     * Get the part of the grid drawn.
+     * @return the view
+     */
+    CAGridAnimator.View getView()
+    {
+        return view;
+    }
+
+
+    /**
+     * Get the animator's epoch when the frame was drawn.
+     * @return the epoch
+     */
+    int getEpoch()
+    {
+        return epoch;
+    }
+
+
+    /**
+     * Get the generation in which a tile last changed.
+     * @param tile the tile index
+     * @return the generation
+     */
+    int getStamp(int tile)
+    {
+        return stamps[tile];
+    }
+
+
+    /**
+     * Get the pixels of the view.
+     * @return the premultiplied ARGB pixels, indexed y*width + x within the view
+     */
+    int[] getPixels()
+    {
+        return pixels;
+    }
+}
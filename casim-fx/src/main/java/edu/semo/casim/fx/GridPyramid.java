@@ -0,0 +1,332 @@
+package edu.semo.casim.fx;
+
+import edu.semo.casim.CAGrid;
+import edu.semo.casim.Tile;
+import java.util.Arrays;
+
+/**
+ * Draws a grid at any level of detail, level k showing a block of 2^k by 2^k
+ * cells as one pixel, colored by the mix of states in the block. Each pixel's
+ * color is the mean of its cells' premultiplied colors, so a block's color is
+ * also the mean of the colors of the four blocks it is made of.
+ *
+ * The levels from BASE up are kept in a pyramid, each level built from the one
+ * below, and only the blocks over tiles which changed are recomputed after a
+ * step. Drawing a zoomed out view is then a copy out of one level, and costs
+ * as much as the pixels drawn whatever the size of the grid. The finer levels
+ * would take too much memory on a big grid, so they are mixed from the cells
+ * as they are drawn, which reads at most 4^BASE cells a pixel.
+ *
+ * The pyramid is made the first time a coarse level is drawn. It must only be
+ * used by the thread which may read the grid.
+ */
+final class GridPyramid
+{
+    static final int BASE = 3; // The finest level kept, blocks of 8x8 cells
+
+    private int [] palette;    // palette[s] is the premultiplied ARGB color of state s
+    private int width;         // The width of the grid
+    private int height;        // The height of the grid
+    private int maxLevel;      // The level at which the whole grid is one pixel
+    private int [][] levels;   // levels[k-BASE][by*w + bx] is the color of block (bx, by) at level k, null until built
+    private int [][] dirty;    // dirty[k-BASE] lists the blocks of level k to recompute
+    private int [] numDirty;   // The number of entries in each dirty list
+    private boolean [][] marked; // marked[k-BASE][b] is true iff block b is in the dirty list
+    private long [] spread;    // spread[s] is palette[s] with a 16 bit lane per channel, for summing
+    private long [] sums;      // Scratch channel sums of a row of blocks
+    private byte [] row;       // Scratch row of cells
+
+
+    /**
+     * Construct a pyramid for a grid. Nothing is computed until it is drawn from.
+     * @param ca the grid
+     * @param palette palette[s] is the premultiplied ARGB color of state s
+     */
+    GridPyramid(CAGrid ca, int[] palette)
+    {
+        this.palette = palette;
+        width = ca.getWidth();
+        height = ca.getHeight();
+
+        maxLevel = 0;
+        while(getWidth(maxLevel) > 1 || getHeight(maxLevel) > 1) {
+            maxLevel++;
+        }
+        spread = new long[palette.length];
+        for(int s=0; s<palette.length; s++) {
+            spread[s] = spread(palette[s]);
+        }
+        sums = new long[width];
+        row = new byte[width];
+    }
+
+
+    /**
+     * Get the coarsest level, at which the whole grid is one pixel.
+     * @return the level
+     */
+    int getMaxLevel()
+    {
+        return maxLevel;
+    }
+
+
+    /**
+     * Get the width of the grid at a level.
+     * @param level the level
+     * @return the width in pixels
+     */
+    int getWidth(int level)
+    {
+        return (int) (((long) width + (1L << level) - 1) >> level);
+    }
+
+
+    /**
+     * Get the height of the grid at a level.
+     * @param level the level
+     * @return the height in pixels
+     */
+    int getHeight(int level)
+    {
+        return (int) (((long) height + (1L << level) - 1) >> level);
+    }
+
+
+    /**
+     * Recompute the whole pyramid, if it has been built. This is needed after
+     * the grid is changed other than by stepping.
+     * @param ca the grid
+     */
+    void invalidate(CAGrid ca)
+    {
+        if(levels != null) {
+            build(ca);
+        }
+    }
+
+
+    /**
+     * Bring the pyramid up to date after a step, if it has been built.
+     * @param ca the grid, just stepped
+     */
+    void update(CAGrid ca)
+    {
+        if(levels == null) {
+            return;
+        }
+
+        //the base blocks over each changed tile come from the cells
+        Tile [] tiles = ca.getTiles();
+        for(Tile tile : tiles) {
+            if(tile.isChanged()) {
+                mixCells(ca, tile.getX0(), tile.getY0(), tile.getX1(), tile.getY1(), true);
+            }
+        }
+
+        //then each level is redone where the one below changed
+        for(int k=BASE+1; k<=maxLevel; k++) {
+            int [] below = dirty[k-1-BASE];
+            int n = numDirty[k-1-BASE];
+            int bw = getWidth(k-1);
+            int pw = getWidth(k);
+            for(int i=0; i<n; i++) {
+                int b = below[i];
+                mark(k, (b / bw >> 1) * pw + (b % bw >> 1));
+                marked[k-1-BASE][b] = false;
+            }
+            numDirty[k-1-BASE] = 0;
+
+            for(int i=0; i<numDirty[k-BASE]; i++) {
+                mixBlocks(k, dirty[k-BASE][i]);
+            }
+        }
+        for(int i=0; i<numDirty[maxLevel-BASE]; i++) {
+            marked[maxLevel-BASE][dirty[maxLevel-BASE][i]] = false;
+        }
+        numDirty[maxLevel-BASE] = 0;
+    }
+
+
+    /**
+     * Draw part of the grid at a level into a pixel buffer.
+     * @param ca the grid
+     * @param level the level
+     * @param x the left of the part, in pixels of the level
+     * @param y the top of the part, in pixels of the level
+     * @param w the width of the part, which must lie within the grid
+     * @param h the height of the part, which must lie within the grid
+     * @param pixels receives the premultiplied ARGB pixels, indexed offset + j*stride + i
+     * @param offset the index in pixels of the top left of the part
+     * @param stride the distance in pixels from one row of the part to the next
+     */
+    void draw(CAGrid ca, int level, int x, int y, int w, int h, int[] pixels, int offset, int stride)
+    {
+        if(level >= BASE) {
+            if(levels == null) {
+                build(ca);
+            }
+            int [] src = levels[level - BASE];
+            int lw = getWidth(level);
+            for(int j=0; j<h; j++) {
+                System.arraycopy(src, (y + j)*lw + x, pixels, offset + j*stride, w);
+            }
+        } else if(level == 0) {
+            for(int j=0; j<h; j++) {
+                ca.getCells(x, y + j, row, 0, w);
+                for(int i=0; i<w; i++) {
+                    pixels[offset + j*stride + i] = palette[row[i]];
+                }
+            }
+        } else {
+            //sum the colors of each pixel's block a row at a time
+            int size = 1 << level;
+            int cx = x << level;
+            int cw = Math.min(w << level, width - cx);
+            for(int j=0; j<h; j++) {
+                Arrays.fill(sums, 0, w, 0);
+                int cy0 = (y + j) << level;
+                int cy1 = Math.min(cy0 + size, height);
+                for(int cy=cy0; cy<cy1; cy++) {
+                    ca.getCells(cx, cy, row, 0, cw);
+                    for(int i=0; i<cw; i++) {
+                        sums[i >> level] += spread[row[i]];
+                    }
+                }
+                for(int i=0; i<w; i++) {
+                    pixels[offset + j*stride + i] = mean(sums[i], (cy1 - cy0) * Math.min(size, cw - (i << level)));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Compute every level from the cells up.
+     */
+    private void build(CAGrid ca)
+    {
+        int n = maxLevel - BASE + 1;
+        if(n <= 0) {
+            //the grid is smaller than a base block, so it is always mixed from the cells
+            return;
+        }
+
+        if(levels == null) {
+            levels = new int[n][];
+            dirty = new int[n][];
+            numDirty = new int[n];
+            marked = new boolean[n][];
+            for(int k=BASE; k<=maxLevel; k++) {
+                int size = getWidth(k) * getHeight(k);
+                levels[k-BASE] = new int[size];
+                dirty[k-BASE] = new int[size];
+                marked[k-BASE] = new boolean[size];
+            }
+        }
+
+        mixCells(ca, 0, 0, width, height, false);
+        for(int k=BASE+1; k<=maxLevel; k++) {
+            int size = getWidth(k) * getHeight(k);
+            for(int b=0; b<size; b++) {
+                mixBlocks(k, b);
+            }
+        }
+    }
+
+
+    /**
+     * Recompute the base blocks over a region of cells whose corners are on
+     * block boundaries or the edges of the grid.
+     */
+    private void mixCells(CAGrid ca, int x0, int y0, int x1, int y1, boolean markDirty)
+    {
+        int [] base = levels[0];
+        int lw = getWidth(BASE);
+        int size = 1 << BASE;
+        int n = x1 - x0;
+        int bx0 = x0 >> BASE;
+        int blocks = (n + size - 1) >> BASE;
+
+        for(int by0=y0; by0<y1; by0+=size) {
+            Arrays.fill(sums, 0, blocks, 0);
+            int by1 = Math.min(by0 + size, y1);
+            for(int y=by0; y<by1; y++) {
+                ca.getCells(x0, y, row, 0, n);
+                for(int i=0; i<n; i++) {
+                    sums[i >> BASE] += spread[row[i]];
+                }
+            }
+
+            int b = (by0 >> BASE)*lw + bx0;
+            for(int i=0; i<blocks; i++) {
+                base[b + i] = mean(sums[i], (by1 - by0) * Math.min(size, n - (i << BASE)));
+                if(markDirty) {
+                    mark(BASE, b + i);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Recompute a block from the blocks of the level below.
+     */
+    private void mixBlocks(int level, int b)
+    {
+        int [] below = levels[level-1-BASE];
+        int lw = getWidth(level);
+        int bw = getWidth(level-1);
+        int bh = getHeight(level-1);
+        int x = (b % lw) << 1;
+        int y = (b / lw) << 1;
+
+        long sum = 0;
+        int n = 0;
+        for(int j=y; j<Math.min(y + 2, bh); j++) {
+            for(int i=x; i<Math.min(x + 2, bw); i++) {
+                sum += spread(below[j*bw + i]);
+                n++;
+            }
+        }
+        levels[level-BASE][b] = mean(sum, n);
+    }
+
+
+    /**
+     * Spread an ARGB color into a 16 bit lane per channel, so colors can be
+     * summed with one add each. A lane holds the sum of 257 colors.
+     */
+    private static long spread(int c)
+    {
+        return (long) (c >>> 24) << 48
+             | (long) ((c >> 16) & 0xff) << 32
+             | (long) ((c >> 8) & 0xff) << 16
+             | (c & 0xff);
+    }
+
+
+    /**
+     * Turn the sum of n spread colors into their rounded mean.
+     */
+    private static int mean(long sum, int n)
+    {
+        int half = n / 2;
+        return ((int) (sum >>> 48) + half) / n << 24
+             | ((int) (sum >>> 32 & 0xffff) + half) / n << 16
+             | ((int) (sum >>> 16 & 0xffff) + half) / n << 8
+             | ((int) (sum & 0xffff) + half) / n;
+    }
+
+
+    /**
+     * Add a block to the dirty list of its level.
+     */
+    private void mark(int level, int b)
+    {
+        if(!marked[level-BASE][b]) {
+            marked[level-BASE][b] = true;
+            dirty[level-BASE][numDirty[level-BASE]++] = b;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package edu.semo.casim.fx;
+
+import edu.semo.casim.CAGrid;
+import edu.semo.casim.Covid7State;
+import edu.semo.casim.Metrics;
+import edu.semo.casim.StatsWriter;
+import javafx.application.Application;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.geometry.Bounds;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.control.Slider;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.stage.Stage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class MainApp extends Application {
+    private Stage stage;
+    private BorderPane content;
+    private CAGridAnimator anim;
+    private TextField txtWidth;
+    private TextField txtHeight;
+    private TextField txtInfected;
+    private CheckBox chkRecord;
+    private Label lblMaxInfected;
+    private Label lblPercentDead;
+    private Label lblPopulation;
+    private Button btnAnimate;
+    private Slider sldSpeed;
+    private Label lblGen;
+    private Label lblRate;
+    private Label lblZoom;
+    private ScrollPane scrollGrid;
+    private Pane canvas;
+    private int level;
+    private Metrics metrics;
+    private StatsWriter stats;
+    private long rateShown;
+
+    @Override
+    public void start(@SuppressWarnings("exports") Stage s) throws IOException {
+        stage = s;
+
+        // create the content pane
+        content = new BorderPane();
+
+        // create the bottom button bar
+        HBox buttons = new HBox();
+        Button btnNew = new Button("Create");
+        txtWidth = new TextField("800");
+        txtHeight = new TextField("800");
+        txtInfected = new TextField("-1");
+        chkRecord = new CheckBox("Record stats");
+        buttons.getChildren().addAll(new Label("Percent Infected"), txtInfected, new Label("Width:"), txtWidth, new Label("Height:"), txtHeight, chkRecord, btnNew);
+        content.setBottom(buttons);
+        buttons.setAlignment(Pos.CENTER);
+        buttons.setPadding(new Insets(10));
+        buttons.setSpacing(10);
+
+        // create the top bar
+        buttons = new HBox();
+        buttons.setPadding(new Insets(10));
+        buttons.setSpacing(10);
+        content.setTop(buttons);
+        btnAnimate = new Button("Go");
+        btnAnimate.setDisable(true);
+        buttons.getChildren().add(btnAnimate);
+        sldSpeed = new Slider(0.01, 1.0, 1.0);
+        buttons.getChildren().addAll(new Label("Speed: "), sldSpeed);
+        Button btnZoomOut = new Button("-");
+        Button btnZoomIn = new Button("+");
+        lblZoom = new Label("1:1");
+        buttons.getChildren().addAll(new Label("Zoom: "), btnZoomOut, lblZoom, btnZoomIn);
+        lblGen = new Label();
+        buttons.getChildren().addAll(new Label("Generation: "), lblGen);
+        lblRate = new Label();
+        buttons.getChildren().add(lblRate);
+        lblMaxInfected = new Label("0");
+        buttons.getChildren().addAll(new Label("Max infected: "), lblMaxInfected);
+        lblPercentDead = new Label("0");
+        buttons.getChildren().addAll(new Label("percent dead: "), lblPercentDead);
+        lblPopulation = new Label();
+        buttons.getChildren().addAll(new Label("Population: "), lblPopulation);
+
+        // set up button events
+        btnNew.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                newClicked();
+            }
+        });
+        btnAnimate.setOnAction(new EventHandler<ActionEvent>() {
+
+            @Override
+            public void handle(ActionEvent event) {
+                animateClicked();
+            }
+
+        });
+
+        btnZoomOut.setOnAction(event -> zoom(level + 1));
+        btnZoomIn.setOnAction(event -> zoom(level - 1));
+
+        // set up slider event
+        sldSpeed.valueProperty().addListener(new ChangeListener<Number>() {
+
+            @Override
+            public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+                anim.setSpeed(newValue.doubleValue());
+            }
+
+        });
+
+
+        //set up the scene
+        Scene scene = new Scene(content, 900, 900);
+        stage.setTitle("Cellular Automaton");
+        stage.setScene(scene);
+        stage.show();
+    }
+
+
+    private void newClicked()
+    {
+        int width = Integer.parseInt(txtWidth.getText());
+        int height = Integer.parseInt(txtHeight.getText());
+        int percentInfected = Integer.parseInt(txtInfected.getText());
+
+        //stop the old simulation thread, and finish its statistics
+        if(anim != null) {
+            anim.stop();
+        }
+        closeStats();
+
+        //create the grid renderer, it only draws the part scrolled into view
+        anim = new CAGridAnimator(new Covid7State(width, height));
+        canvas = new Pane(anim);
+        scrollGrid = new ScrollPane(canvas);
+        content.setCenter(scrollGrid);
+        BorderPane.setAlignment(scrollGrid, Pos.CENTER);
+        scrollGrid.hvalueProperty().addListener(o -> updateView());
+        scrollGrid.vvalueProperty().addListener(o -> updateView());
+        scrollGrid.viewportBoundsProperty().addListener(o -> updateView());
+        if(percentInfected != -1){
+            anim.getCA().randomize(percentInfected);
+        }else{
+            anim.getCA().randomize();
+        }
+        anim.render();
+        zoom(anim.getLevel());
+        anim.setSpeed(0.01);
+
+        //time the new run, it can be watched over JMX as well as in the top bar
+        if(metrics != null) {
+            metrics.unregister();
+        }
+        metrics = new Metrics("gui");
+        anim.setMetrics(metrics);
+        metrics.register();
+
+        //stream every generation's population to a file in the working directory
+        if(chkRecord.isSelected()) {
+            Path path = Paths.get("casim-" + System.currentTimeMillis() + ".cass");
+            try {
+                stats = new StatsWriter(anim.getCA(), path, false);
+                System.err.println("recording statistics to " + path.toAbsolutePath());
+            } catch(IOException e) {
+                System.err.println("cannot record statistics: " + e.getMessage());
+            }
+        }
+
+        //enable the animation button and set the speed
+        btnAnimate.setDisable(false);
+        btnAnimate.setText("Go");
+        lblMaxInfected.setText("0");
+        lblPercentDead.setText("0%");
+        lblPopulation.setText("");
+        lblRate.setText("");
+        anim.setSpeed(sldSpeed.getValue());
+        updateGeneration();
+
+        //the covid counters are taken on the simulation thread with each frame
+        anim.setSampler(new CAGridAnimator.Sampler(){
+
+            @Override
+            public void sample(CAGrid grid, long[] values) {
+                Covid7State ca = (Covid7State) grid;
+                values[0] = ca.getMaxInfected();
+                values[1] = ca.getMaxInfectedGeneration();
+            }
+
+        }, 2);
+
+        anim.setUpdater(new CAGridAnimator.Updater(){
+
+            @Override
+            public void update(CAGridAnimator grid) {
+                updateGeneration();
+                updateRate();
+                updateMaxInfected();
+                updatePercentDead();
+                updatePopulation();
+            }
+            
+        });
+    }
+
+
+    @Override
+    public void stop() {
+        if(anim != null) {
+            anim.stop();
+        }
+        closeStats();
+    }
+
+
+    /**
+     * Write out the rest of the statistics being recorded, if they are.
+     */
+    private void closeStats()
+    {
+        if(stats == null) {
+            return;
+        }
+        try {
+            stats.close();
+        } catch(IOException | RuntimeException e) {
+            System.err.println("cannot record statistics: " + e.getMessage());
+        }
+        stats = null;
+    }
+
+
+    private void animateClicked()
+    {
+        if(btnAnimate.getText().equals("Go")) {
+            btnAnimate.setText("Stop");
+            anim.start();
+        } else {
+            btnAnimate.setText("Go");
+            anim.stop();
+        }
+    }
+
+
+    /**
+     * Change the level of detail, keeping the scroll position, and size the
+     * canvas to the whole grid at the new level.
+     */
+    private void zoom(int newLevel)
+    {
+        if(anim == null) {
+            return;
+        }
+        level = Math.max(0, Math.min(newLevel, anim.getMaxLevel()));
+        int w = anim.getScaledWidth(level);
+        int h = anim.getScaledHeight(level);
+        canvas.setMinSize(w, h);
+        canvas.setPrefSize(w, h);
+        canvas.setMaxSize(w, h);
+        lblZoom.setText("1:" + (1L << level));
+        updateView();
+    }
+
+
+    /**
+     * Show the part of the grid scrolled into view.
+     */
+    private void updateView()
+    {
+        Bounds viewport = scrollGrid.getViewportBounds();
+        double w = anim.getScaledWidth(level);
+        double h = anim.getScaledHeight(level);
+        int x = (int) (Math.max(0, w - viewport.getWidth()) * scrollGrid.getHvalue());
+        int y = (int) (Math.max(0, h - viewport.getHeight()) * scrollGrid.getVvalue());
+        anim.setView(level, x, y, (int) Math.ceil(viewport.getWidth()) + 1, (int) Math.ceil(viewport.getHeight()) + 1);
+    }
+
+
+    private void updateGeneration()
+    {
+        Frame frame = anim.getFrame();
+        int gen = frame == null ? anim.getCA().getGeneration() : frame.getGeneration();
+        lblGen.setText(Integer.toString(gen));
+    }
+
+    private void updateRate()
+    {
+        //a few times a second is as fast as it can be read
+        long now = System.nanoTime();
+        if(now - rateShown < 250_000_000L) {
+            return;
+        }
+        rateShown = now;
+
+        lblRate.setText(String.format("(%.1f gen/s, %.1f Mcells/s, step p99 %.1f ms)",
+                                      metrics.getGenerationsPerSecond(),
+                                      metrics.getCellsPerSecond() / 1e6,
+                                      metrics.histogram(Metrics.STEP).getP99Millis()));
+    }
+
+    private void updateMaxInfected(){
+        Frame frame = anim.getFrame();
+        lblMaxInfected.setText(frame.getValue(0) + " (gen " + frame.getValue(1) + ")");
+    }
+
+    private void updatePercentDead(){
+        CAGrid ca = anim.getCA();
+        double cells = (double) ca.getWidth() * ca.getHeight();
+        double dead = anim.getFrame().getCount(Covid7State.DEAD);
+        lblPercentDead.setText(String.format("%.2f%%", 100 * dead / cells));
+    }
+
+    private void updatePopulation(){
+        Frame frame = anim.getFrame();
+        StringBuilder text = new StringBuilder();
+        for(int s=0; s<anim.getCA().getNumStates(); s++) {
+            if(s > 0) { text.append(" / "); }
+            text.append(frame.getCount(s));
+        }
+        lblPopulation.setText(text.toString());
+    }
+
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+
+}
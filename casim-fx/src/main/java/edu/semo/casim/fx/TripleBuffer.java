@@ -0,0 +1,78 @@
+package edu.semo.casim.fx;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands objects from one producer thread to one consumer thread without locks.
+ * The producer fills the back buffer and publishes it, the consumer takes the
+ * most recently published one. Neither ever waits for the other, and anything
+ * published in between is skipped.
+ */
+final class TripleBuffer<T>
+{
+    private static final int FRESH = 4; // Set in middle when it holds an unread buffer
+
+    private final Object [] buffers;    // The three buffers
+    private final AtomicInteger middle; // The index of the buffer between the two threads, maybe | FRESH
+    private int back;                   // The index of the producer's buffer
+    private int front;                  // The index of the consumer's buffer
+
+
+    /**
+     * Construct a triple buffer. The first object is the consumer's until
+     * something is published.
+     */
+    TripleBuffer(T a, T b, T c)
+    {
+        buffers = new Object[] {a, b, c};
+        front = 0;
+        middle = new AtomicInteger(1);
+        back = 2;
+    }
+
+
+    /**
+     * Get the buffer the producer is filling.
+     * @return the back buffer
+     */
+    @SuppressWarnings("unchecked")
+    T back()
+    {
+        return (T) buffers[back];
+    }
+
+
+    /**
+     * Publish the back buffer and get another one to fill.
+     */
+    void publish()
+    {
+        back = middle.getAndSet(back | FRESH) & ~FRESH;
+    }
+
+
+    /**
+     * Take the most recently published buffer, if there is a new one.
+     * @return the new front buffer, or null if nothing was published since the last call
+     */
+    @SuppressWarnings("unchecked")
+    T latest()
+    {
+        if((middle.get() & FRESH) == 0) {
+            return null;
+        }
+        front = middle.getAndSet(front) & ~FRESH;
+        return (T) buffers[front];
+    }
+
+
+    /**
+     * Get the buffer the consumer holds.
+     * @return the front buffer
+     */
+    @SuppressWarnings("unchecked")
+    T front()
+    {
+        return (T) buffers[front];
+    }
+}
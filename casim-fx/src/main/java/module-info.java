@@ -0,0 +1,8 @@
+module edu.semo {
+    requires javafx.controls;
+    requires javafx.fxml;
+    requires javafx.media;
+    requires edu.semo.casim.core;
+    opens edu.semo.casim.fx to javafx.fxml;
+    exports edu.semo.casim.fx;
+}
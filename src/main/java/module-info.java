@@ -1,7 +0,0 @@
-module edu.semo {
-    requires javafx.controls;
-    requires javafx.fxml;
-    requires javafx.media;
-    opens edu.semo.casim to javafx.fxml;
-    exports edu.semo.casim;
-}
\ No newline at end of file